@@ -0,0 +1,82 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * BufferPool.java
+ * Pool of PooledFrames, each owning a fixed size direct buffer, used to route binary messages between NIO sessions.  A
+ * frame is taken by the loop that reads a message and returned by the loop that finishes writing it to the recipient, so
+ * the free list is shared by every loop.  It is a bounded lock-free ring (each slot carries a sequence number, as in
+ * Vyukov's MPMC queue): unlike ConcurrentLinkedQueue it does not allocate a node per offer, and unlike
+ * ArrayBlockingQueue it does not allocate lock queue nodes when loops contend.  Once the pool has warmed up, routing a
+ * message allocates nothing on the heap.
+ */
+public class BufferPool {
+
+    final int chunkSize;
+    private final int mask;
+    private final AtomicReferenceArray<PooledFrame> slots;
+    private final AtomicLongArray sequence;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * @param chunkSize : size of each direct buffer, larger frames are routed through the heap instead
+     * @param maxPooled : number of free frames kept for reuse (rounded up to a power of two), frames released beyond
+     *                    that are left to the GC
+     */
+    BufferPool(int chunkSize, int maxPooled) {
+        int capacity = Integer.highestOneBit(Math.max(2, maxPooled) * 2 - 1);
+        this.chunkSize = chunkSize;
+        this.mask = capacity - 1;
+        this.slots = new AtomicReferenceArray<>(capacity);
+        this.sequence = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++)
+            sequence.set(i, i);
+    }
+
+    // Takes a cleared frame from the pool, allocating a new one only if the pool is empty
+    PooledFrame acquire() {
+        long pos = head.get();
+        while (true) {
+            int slot = (int) pos & mask;
+            long diff = sequence.get(slot) - (pos + 1);
+            if (diff == 0) {
+                if (head.compareAndSet(pos, pos + 1)) {
+                    PooledFrame f = slots.get(slot);
+                    slots.set(slot, null);
+                    sequence.set(slot, pos + mask + 1);
+                    return f;
+                }
+                pos = head.get();
+            }
+            else if (diff < 0) {
+                return new PooledFrame(this, ByteBuffer.allocateDirect(chunkSize));
+            }
+            else pos = head.get();
+        }
+    }
+
+    // Returns a frame once its buffer has been written out
+    void release(PooledFrame f) {
+        f.buffer.clear();
+        long pos = tail.get();
+        while (true) {
+            int slot = (int) pos & mask;
+            long diff = sequence.get(slot) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    slots.set(slot, f);
+                    sequence.set(slot, pos + 1);
+                    return;
+                }
+                pos = tail.get();
+            }
+            else if (diff < 0) {
+                return;
+            }
+            else pos = tail.get();
+        }
+    }
+}
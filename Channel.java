@@ -0,0 +1,57 @@
+import java.util.Arrays;
+
+/**
+ * Channel.java
+ * A named group of users on the Server ("#name").  A message published to a channel is delivered to every other member
+ * as one SharedFrame, see Server.Connection.publish().  Members stay in a channel while they are offline, so they get its
+ * messages when they return, until they leave it.
+ *
+ * The members are kept in an array that is replaced (copy on write) whenever someone joins or leaves.  Publishing reads
+ * the current array without locking, so a channel with thousands of members is walked at array speed while joins and
+ * leaves, which are rare next to messages, pay for the copy.
+ */
+public class Channel {
+
+    final String name;
+    private volatile Server.Connection[] members = new Server.Connection[0];
+
+    Channel(String name) {
+        this.name = name;
+    }
+
+    // Adds a member, returns false if they already were one
+    synchronized boolean join(Server.Connection c) {
+        if (indexOf(c) >= 0) return false;
+        Server.Connection[] m = Arrays.copyOf(members, members.length + 1);
+        m[m.length - 1] = c;
+        members = m;
+        return true;
+    }
+
+    // Removes a member, returns false if they were not one
+    synchronized boolean leave(Server.Connection c) {
+        int i = indexOf(c);
+        if (i < 0) return false;
+        Server.Connection[] m = new Server.Connection[members.length - 1];
+        System.arraycopy(members, 0, m, 0, i);
+        System.arraycopy(members, i + 1, m, i, m.length - i);
+        members = m;
+        return true;
+    }
+
+    private int indexOf(Server.Connection c) {
+        Server.Connection[] m = members;
+        for (int i = 0; i < m.length; i++)
+            if (m[i] == c) return i;
+        return -1;
+    }
+
+    // The members when called.  Must not be modified.
+    Server.Connection[] members() {
+        return members;
+    }
+
+    int size() {
+        return members.length;
+    }
+}
@@ -1,20 +1,90 @@
 import java.io.*; 
 import java.net.*; 
 import java.util.*; 
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLSocketFactory;
 
+/**
+ * Client.java
+ * A chat client with two threads of its own.  The receiver thread blocks reading from the server and hands every message
+ * and warning to addMessageToHistory(), which ClientGui overrides; the sender thread writes out what the other threads
+ * queue with send(), a batch per flush.  No other thread touches the socket, so the Swing thread never blocks on it.
+ *
+ * Messages are pipelined: up to -Dwindow (default 256) of them can be waiting for the server's ACK (see Frame), and the
+ * ones past that wait in the Client until ACKs come back.  Each ACK is passed on to messageAcknowledged().
+ *
+ * A server that is one node of a cluster may redirect the login to the node that owns the username, see connect().
+ * Traffic is compressed when the server agrees to it, see deflate, and encrypted with -Dtls=on, see tls.
+ */
 public class Client{
 
     private Socket socket = null;
     private DataInputStream input  = null;
     private DataOutputStream out = null;
-    private ArrayList<Long> clientDelay = new ArrayList<>();
+    // delays of the messages received, in microseconds, sent to the server when closing
+    private LatencyHistogram clientDelay = new LatencyHistogram();
 
     private boolean gui;
     private String address;
     private int port;
     private String username;
     private boolean run_server;
-    private int count = 0;
+    // frames waiting for the sender thread, already encoded.  CLOSED is queued last, after the CLOSING frame.
+    private final BlockingQueue<byte[]> outgoing = new LinkedBlockingQueue<>();
+    private static final byte[] CLOSED = new byte[0];
+    private Thread sender;
+    // counted down by stopServer()
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    // set once we start closing the connection, so the receiver thread's read failing is expected
+    private volatile boolean closing;
+    // speak the binary Frame protocol unless started with -Dprotocol=legacy
+    private boolean binary = !"legacy".equals(System.getProperty("protocol"));
+    // whether the server hands out handles (protocol version 2), set once it accepts our username
+    private volatile boolean handles;
+    // whether the server acknowledges messages with ACKs (protocol version 4).  Assumed until it accepts our username.
+    private boolean acks = binary;
+    // offer the server to compress (protocol version 7) unless started with -Dcompress=off, and whether it agreed.  Long
+    // messages are then sent deflated, and what the server sends together arrives as compressed BATCH frames.
+    private final boolean offerDeflate = binary && !"off".equals(System.getProperty("compress"));
+    private volatile boolean deflate;
+    // connect over TLS (to a server started with --tls) when started with -Dtls=on.  The server's certificate is checked
+    // against -Djavax.net.ssl.trustStore.  The default SSLSocketFactory keeps the sessions of this JVM's connections, so
+    // reconnecting to the same server resumes the session instead of repeating the full handshake.
+    private final boolean tls = "on".equals(System.getProperty("tls"));
+    // most messages sent and not acknowledged yet
+    private final int window = Integer.getInteger("window", 256);
+    // ids of the last message sent and the last one acknowledged, the n-th message sent has id n
+    private long lastSent;
+    private long lastAcked;
+    // messages waiting for room in the window, already encoded
+    private final ArrayDeque<byte[]> pending = new ArrayDeque<>();
+    // handles of the usernames we have sent messages to, filled in by the server's RESOLVE answers
+    private final Map<String, Long> handleCache = new ConcurrentHashMap<>();
+    // usernames asked about whose answer has not arrived yet
+    private final Set<String> resolving = ConcurrentHashMap.newKeySet();
+    // measure latency on the server's clock, started with -Dlatency=stamped (binary protocol only), see Frame.  Turned off
+    // if the server turns out not to support it.
+    private volatile boolean stamped = binary && "stamped".equals(System.getProperty("latency"));
+    // TIME probes sent at login to estimate the server's clock
+    private static final int PROBES = 8;
+    private int probes;
+    // server nanoTime minus ours, estimated from the probe with the shortest round trip so far
+    private volatile long clockOffset;
+    private long bestRoundTrip = Long.MAX_VALUE;
+    // counted down once every probe has been answered, or the server turns out not to support them
+    private final CountDownLatch synced = new CountDownLatch(1);
+    // parts of the delays of STAMPED messages, in microseconds: client to server, queueing in the server, server to client
+    private LatencyHistogram toServer = new LatencyHistogram();
+    private LatencyHistogram queueing = new LatencyHistogram();
+    private LatencyHistogram fromServer = new LatencyHistogram();
+    // the server's answer to a binary login, handled by the receiver thread before anything else
+    private Frame loginAnswer;
+    // most REDIRECTs followed while logging in
+    private static final int MAX_REDIRECTS = 4;
 
 	// constructor to put ip address and port 
     public Client(String address, int port, String username) { 
@@ -25,15 +95,9 @@ public class Client{
         // establish a connection 
         try
         { 
-            socket = new Socket(address, port); 
-            System.out.println("Connection established to Server with port:" + port + " for " + username); 
-
-            // takes input from terminal 
-            input = new DataInputStream(socket.getInputStream()); 
-
-            // sends output to the socket 
-            out = new DataOutputStream(socket.getOutputStream());
-            out.writeUTF(username);
+            connect();
+            startSender();
+            sendLogin();
         } 
         catch(UnknownHostException u) 
         { 
@@ -57,15 +121,9 @@ public class Client{
         // establish a connection 
         try
         { 
-            socket = new Socket(address, port); 
-            System.out.println("Connection established to Server with port:" + port + " for " + username); 
-
-            // takes input from terminal 
-            input = new DataInputStream(socket.getInputStream()); 
-
-            // sends output to the socket 
-            out = new DataOutputStream(socket.getOutputStream());
-            out.writeUTF(username);
+            connect();
+            startSender();
+            sendLogin();
         } 
         catch(UnknownHostException u) 
         { 
@@ -81,75 +139,299 @@ public class Client{
         startServer();
     }
 
+    // starts the thread that writes out the queued frames, flushing whenever the queue runs dry
+    private void startSender() {
+        sender = new Thread(() -> {
+            try {
+                while (true) {
+                    byte[] bytes = outgoing.take();
+                    do {
+                        if (bytes == CLOSED) {
+                            out.flush();
+                            return;
+                        }
+                        out.write(bytes);
+                    } while ((bytes = outgoing.poll()) != null);
+                    out.flush();
+                }
+            }
+            catch (InterruptedException e) { }
+            catch (IOException i) {
+                if (!closing) System.out.println(i);
+            }
+        }, "sender");
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    // connects to the server.  With the binary protocol we log in right away and wait for the answer, and a server of a
+    // cluster that does not own our username answers with a REDIRECT to the one that does, which we connect to instead.
+    private void connect() throws IOException {
+        for (int redirects = 0; ; redirects++) {
+            socket = tls ? SSLSocketFactory.getDefault().createSocket(address, port) : new Socket(address, port);
+
+            // takes input from terminal
+            input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+
+            // sends output to the socket, only from the sender thread once it is started
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            if (!binary) break;
+            out.writeShort(Frame.MAGIC);
+            out.writeByte(Frame.VERSION);
+            new Frame(Frame.LOGIN, username, 0, offerDeflate ? new byte[]{Frame.DEFLATE} : Frame.EMPTY).write(out);
+            out.flush();
+            loginAnswer = Frame.read(input);
+            if (loginAnswer.type != Frame.REDIRECT || redirects == MAX_REDIRECTS) break;
+            socket.close();
+            String target = loginAnswer.name;
+            address = target.substring(0, target.lastIndexOf(':'));
+            port = Integer.parseInt(target.substring(target.lastIndexOf(':') + 1));
+            System.out.println("Redirected to " + target + " for " + username);
+        }
+        System.out.println("Connection established to Server with port:" + port + " for " + username);
+    }
+
+    // sends the username when using the legacy protocol (binary clients have logged in in connect())
+    private void sendLogin() throws IOException {
+        if (!binary) send(new Frame(Frame.LOGIN, username, 0, ""), username);
+        //sent before any message, so the server knows our timestamps are on its clock from the start
+        if (stamped) sendProbe();
+    }
+
+    // sends a TIME probe
+    private void sendProbe() throws IOException {
+        send(new Frame(Frame.TIME, "", System.nanoTime(), Frame.EMPTY), null);
+    }
+
+    // estimates the clock offset from the answer to a probe the way NTP does, then sends the next probe
+    private void timed(Frame answer) throws IOException {
+        long received = System.nanoTime();
+        long ingress = answer.stamp(0);
+        long egress = answer.stamp(1);
+        long roundTrip = (received - answer.timestamp) - (egress - ingress);
+        if (roundTrip < bestRoundTrip) {
+            bestRoundTrip = roundTrip;
+            clockOffset = ((ingress - answer.timestamp) + (egress - received)) / 2;
+        }
+        if (++probes < PROBES) sendProbe();
+        else synced.countDown();
+    }
+
+    // timestamp for an outgoing message: our nanoTime on the server's clock when measuring latency, otherwise wall clock
+    private long timestamp() {
+        return stamped ? System.nanoTime() + clockOffset : System.currentTimeMillis();
+    }
+
+    // queues a frame for the sender thread when using the binary protocol, or the equivalent ":::" string when using the
+    // legacy protocol
+    private void send(Frame frame, String legacyText) throws IOException {
+        outgoing.add(encode(frame, legacyText));
+    }
+
+    private byte[] encode(Frame frame, String legacyText) throws IOException {
+        if (deflate) frame = frame.deflated(Compression.THRESHOLD);
+        return binary ? frame.encodeBinary().array() : Frame.encodeUTF(legacyText).array();
+    }
+
+    // sends a message (MSG, SEND or ROBOT frame), or keeps it until the window has room when the server sends ACKs
+    private synchronized void sendMessageFrame(Frame frame, String legacyText) throws IOException {
+        byte[] bytes = encode(frame, legacyText);
+        if (!acks) outgoing.add(bytes);
+        else if (pending.isEmpty() && lastSent - lastAcked < window) {
+            lastSent++;
+            outgoing.add(bytes);
+        }
+        else pending.add(bytes);
+    }
+
+    // the server has handled every message up to id, sends the ones waiting for room in the window
+    private synchronized void acknowledged(long id) {
+        lastAcked = Math.max(lastAcked, id);
+        while (!pending.isEmpty() && lastSent - lastAcked < window) {
+            lastSent++;
+            outgoing.add(pending.poll());
+        }
+        if (pending.isEmpty()) notifyAll();
+    }
+
+    // the server does not send ACKs, sends every message that was waiting for them
+    private synchronized void noAcks() {
+        acks = false;
+        outgoing.addAll(pending);
+        pending.clear();
+        notifyAll();
+    }
+
+    // waits up to 5 seconds for the messages waiting for room in the window to be sent, before closing
+    private synchronized void awaitPending() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!pending.isEmpty() && System.currentTimeMillis() < deadline)
+            wait(Math.max(1, deadline - System.currentTimeMillis()));
+    }
+
     //testing method, sends a message with timestamp
     private void sendRobotMessage() {
-	String time = Long.toString(System.currentTimeMillis());
-        try { out.writeUTF("robotuser:::" + time + ":::robottext"); }
+	long time = timestamp();
+        try { sendMessageFrame(new Frame(Frame.ROBOT, "", time, "robottext"), "robotuser:::" + time + ":::robottext"); }
         catch(IOException e) { e.printStackTrace(); }
     }
 
+    // receiver thread: reads until the connection closes, stopping the client if the server closed it
     private void readMessages() {
         try
         {
-            // takes input from the server socket
-            if (input.available() != 0) {
-                String[] inputs = input.readUTF().split(":::");
-                long received_time = System.currentTimeMillis();
-                long sent_time = Long.parseLong(inputs[1]);
-                long delay = Math.abs(sent_time - received_time);
-                clientDelay.add(delay);
-		StringBuilder msg = new StringBuilder();
-                for (int i = 2; i < inputs.length; i++) {
-                    msg.append(inputs[i]);
-                    if(i != inputs.length-1) { msg.append(":::"); }
-                }
-                addMessageToHistory(inputs[0], true, msg.toString());
-            }
+            if (loginAnswer != null) handle(loginAnswer);
+            while (true) readMessage();
         }
         catch(IOException i)
         {
-            System.out.println(i);
+            if (!closing) {
+                System.out.println(i);
+                stopServer();
+            }
+        }
+    }
+
+    // blocks until a message arrives from the server socket, then handles it
+    private void readMessage() throws IOException {
+        if (binary) {
+            handle(Frame.read(input));
+            return;
         }
+        String[] inputs = input.readUTF().split(":::");
+        StringBuilder text = new StringBuilder();
+        for (int i = 2; i < inputs.length; i++) {
+            text.append(inputs[i]);
+            if(i != inputs.length-1) { text.append(":::"); }
+        }
+        received(inputs[0], Long.parseLong(inputs[1]), text.toString());
+    }
+
+    // handles a frame from the server
+    private void handle(Frame frame) throws IOException {
+        //the server accepted our username and the binary protocol, nothing to show
+        if (frame.type == Frame.LOGIN) {
+            handles = frame.payload.length >= 1 + 8 && frame.payload[0] >= 2;
+            if (frame.payload.length == 0 || frame.payload[0] < 3) {
+                stamped = false;
+                synced.countDown();
+            }
+            if (frame.payload.length == 0 || frame.payload[0] < 4) noAcks();
+            deflate = offerDeflate && frame.payload.length >= 1 + 8 + 1 && (frame.payload[9] & Frame.DEFLATE) != 0;
+            return;
+        }
+        //messages the server wrote together, compressed
+        if (frame.type == Frame.BATCH) {
+            for (Frame f : frame.frames())
+                handle(f);
+            return;
+        }
+        if (frame.type == Frame.ACK) {
+            acknowledged(frame.timestamp);
+            messageAcknowledged(frame.name, frame.timestamp);
+            return;
+        }
+        if (frame.type == Frame.TIME) {
+            timed(frame);
+            return;
+        }
+        //times on the server's clock, split into the parts before, inside and after the server
+        if (frame.type == Frame.STAMPED) {
+            recordStamped(frame, System.nanoTime() + clockOffset);
+            addMessageToHistory(frame.name, true, frame.text());
+            return;
+        }
+        if (frame.type == Frame.RESOLVE) {
+            resolved(frame.name, frame.timestamp);
+            return;
+        }
+        //only left after MAX_REDIRECTS, the cluster does not agree on who owns our username
+        if (frame.type == Frame.REDIRECT) {
+            addMessageToHistory("warning", true, "Redirected too many times, last to " + frame.name + ". Try again.");
+            return;
+        }
+        received(frame.type == Frame.WARNING ? "warning" : frame.name, frame.timestamp, frame.text());
     }
 
+    // records the delay of a message from another client, then passes it on
+    private void received(String from, long sent_time, String msg) {
+        //warnings from the server carry no timestamp, only messages from other clients count towards delay
+        if (!from.equals("warning")) {
+            long received_time = System.currentTimeMillis();
+            long delay = Math.abs(sent_time - received_time);
+            recordDelay(delay * 1000);
+        }
+        addMessageToHistory(from, true, msg);
+    }
+
+    // the histograms are recorded by the receiver thread and sent by the thread closing the connection
+    private synchronized void recordDelay(long micros) {
+        clientDelay.record(micros);
+    }
+
+    private synchronized void recordStamped(Frame frame, long received) {
+        toServer.record((frame.stamp(0) - frame.timestamp) / 1000);
+        queueing.record((frame.stamp(1) - frame.stamp(0)) / 1000);
+        fromServer.record((received - frame.stamp(1)) / 1000);
+        clientDelay.record((received - frame.timestamp) / 1000);
+    }
+
+    //the parts of the delays follow the delays, see Server.collectLatencies()
+    private synchronized byte[] encodeLatencies() throws IOException {
+        ByteArrayOutputStream delays = new ByteArrayOutputStream();
+        delays.write(clientDelay.encode());
+        if (stamped) {
+            delays.write(toServer.encode());
+            delays.write(queueing.encode());
+            delays.write(fromServer.encode());
+        }
+        return delays.toByteArray();
+    }
+
+    // starts the receiver thread, then waits (the GUI until stopServer(), a test client after its robot message) and
+    // closes the connection
     public void startServer() 
     {
-
-        while (run_server) 
+        if (socket == null) return;
+        Thread receiver = new Thread(this::readMessages, "receiver");
+        receiver.setDaemon(true);
+        receiver.start();
+        try
         {
-            // reading input from server socket
-            readMessages();
-            if (!gui){
+            if (gui) {
+                stopped.await();
+            }
+            else if (run_server) {
+                // **USED IN TESTING**
+                //robot messages are only sent once the clock offset is known, or after 2 seconds without an answer
+                if (stamped) synced.await(2, TimeUnit.SECONDS);
                 sendRobotMessage();
-                count += 1;
-                if(count >= 1) break;
             }
-
+            // **USED IN TESTING**
+            //100 messages have been sent, however we want the client to remain running for another "postponeRun"
+            //milliseconds, reading messages and recording delay times.  Set with java -DpostponeRun=10000 Client ...,
+            //off by default.
+            Thread.sleep(Long.getLong("postponeRun", 0L));
         }
-        // **USED IN TESTING**
-        //100 messages have been sent, however we want the client to remain running for another "postponeRun" seconds, reading
-        //messages and recording delay times.
-//        long startTime = System.currentTimeMillis();
-//        long postponeRun = 60000L; //10 seconds
-//        while(System.currentTimeMillis() < startTime+postponeRun) {
-//            readMessages();
-//        }
+        catch (InterruptedException e) { }
 
         // close the connection
         try
         {
-            StringBuilder delay = new StringBuilder("closing:::");
-            for (Long delayTime : clientDelay) {
-                delay.append(Long.toString(delayTime));
-                delay.append(":::");
-            }
+            awaitPending();
+            //the server closes the connection once it has read CLOSING
+            closing = true;
             try{
-                out.writeUTF(delay.toString());
+                synchronized (this) {
+                    send(new Frame(Frame.CLOSING, "", 0, encodeLatencies()), "closing:::" + clientDelay.encodeText());
+                }
             }
             catch (IOException e)
             {
                 e.printStackTrace();
             }
+            outgoing.add(CLOSED);
+            sender.join(5000);
             input.close(); 
             out.close(); 
             socket.close(); 
@@ -158,10 +440,20 @@ public class Client{
         { 
             System.out.println(i); 
         } 
+        catch (InterruptedException e) { }
     }
 
     public void stopServer() {
         run_server = false;
+        stopped.countDown();
+    }
+
+    // Called on the receiver thread for every ACK from the server, see Frame.  Overridden by the child class to show
+    // that messages were delivered.
+    // @param recipient : who the last message delivered since the previous ACK went to, empty if none was delivered
+    // @param id : id of the last message the server has handled, the n-th message sent has id n
+    public void messageAcknowledged(String recipient, long id)
+    {
     }
 
     // !!! DO NOT REMOVE THIS METHOD !!!
@@ -181,7 +473,7 @@ public class Client{
     public void updateUsername(String newUsername) {
         String msg = "username:::" + username + ":::" + newUsername;
         try {
-            out.writeUTF(msg);
+            send(new Frame(Frame.RENAME, newUsername, 0, username), msg);
         } catch(IOException i) { 
             System.out.println(i); 
         }
@@ -189,16 +481,58 @@ public class Client{
 
 
     // send message to other client (called by child class)
+    // once the server has told us the recipient's handle the message is addressed by handle, until then by username
+    // while the handle is looked up
     public void sendMessage(String sentToUsername, String message) 
     {
-        String sentText = sentToUsername + ":::" + System.currentTimeMillis() + ":::" + message;
+        long time = timestamp();
+        String sentText = sentToUsername + ":::" + time + ":::" + message;
         try 
         {
-            out.writeUTF(sentText);    
+            Long handle = handles ? handleCache.get(sentToUsername) : null;
+            if (handle != null) {
+                sendMessageFrame(Frame.send(handle, time, message), null);
+                return;
+            }
+            sendMessageFrame(new Frame(Frame.MSG, sentToUsername, time, message), sentText);
+            //channels have no handle, their messages are always addressed by name
+            if (handles && !sentToUsername.startsWith("#") && resolving.add(sentToUsername))
+                send(new Frame(Frame.RESOLVE, sentToUsername, 0, ""), null);
         } 
         catch(IOException e) { e.printStackTrace(); }
     }
 
+    // joins a channel ("#name"), whose messages then arrive from "#name/sender".  Messages sent to "#name" go to every
+    // other member.
+    public void joinChannel(String channel) {
+        try {
+            send(new Frame(Frame.JOIN, channel, 0, Frame.EMPTY), "join:::" + channel);
+        } catch(IOException i) {
+            System.out.println(i);
+        }
+    }
+
+    // leaves a channel
+    public void leaveChannel(String channel) {
+        try {
+            send(new Frame(Frame.LEAVE, channel, 0, Frame.EMPTY), "leave:::" + channel);
+        } catch(IOException i) {
+            System.out.println(i);
+        }
+    }
+
+    // remembers a username's handle from the server, -1 if there is no such user.  User ids never change, so an older
+    // username with the same id has been renamed and is forgotten.
+    private void resolved(String name, long handle) {
+        resolving.remove(name);
+        if (handle == Frame.NO_HANDLE) {
+            handleCache.remove(name);
+            return;
+        }
+        handleCache.values().removeIf(h -> h >>> 32 == handle >>> 32);
+        handleCache.put(name, handle);
+    }
+
     // main class
     public static void main(String[] args) {
     	new Client (args[0], Integer.parseInt(args[1]), args[2], true);
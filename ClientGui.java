@@ -10,13 +10,18 @@ import java.awt.event.*;
  */
 public class ClientGui extends Client {  
 
-	History history = new History();
+	History history;
 	private String clientUsername;
 	private String newUsername;
 	private JFrame f;
 	private JLabel welcomeText;
 	private JTextField send_to;
-	private JList hist;
+	private JList<String> hist;
+	// Rows shown in hist, two per message, and the History cursor they have been filled up to
+	private final DefaultListModel<String> histRows = new DefaultListModel<>();
+	private long histCursor;
+	// Messages of the history shown when the window opens
+	private static final int SHOWN_AT_OPEN = 1000;
 	private JScrollPane scroll;
 	private JTextField message;
 	private JLabel feedback;
@@ -31,10 +36,31 @@ public class ClientGui extends Client {
 	public ClientGui(String address, int port, String username) {
 		super( address,  port,  username);
 		clientUsername = username;
+		history = openHistory(username);
+		//only the latest messages of an archived history are read back to start with, older ones by Search History
+		histCursor = Math.max(0, history.end() - SHOWN_AT_OPEN);
 		display();
+		updateHistoryDisplay();
 		super.startServer();
 	}
 
+	/**
+   	* Method openHistory
+    * Opens the history archived on disk for a username, in the directory given by -Dhistory (default "history").  An
+    * empty -Dhistory, or an archive that cannot be opened, keeps the history in memory only.
+    * @param username : username of the client, names the archive's files
+    */
+	private static History openHistory(String username) {
+		String dir = System.getProperty("history", "history");
+		if (dir.isEmpty()) return new History();
+		try {
+			return History.open(new java.io.File(dir, username), History.DEFAULT_WINDOW);
+		} catch (java.io.IOException e) {
+			e.printStackTrace();
+			return new History();
+		}
+	}
+
 	/**
    	* Method to update username
     * Calls the updateUsername on the parent class
@@ -98,13 +124,36 @@ public class ClientGui extends Client {
 		}
 	}
 
+	/**
+   	* Method to show acknowledged messages
+    * Shows who the last delivered message went to, from the ACKs the server sends instead of a warning per message
+    * @param recipient : who the last message delivered since the previous ACK went to, empty if none was delivered
+    * @param id : id of the last message the server has handled
+    */
+	@Override
+	public void messageAcknowledged(String recipient, long id) {
+		if (recipient.isEmpty()) return;
+		SwingUtilities.invokeLater(() -> {
+			feedback.setText("Message delivered to " + recipient);
+			feedback.setForeground(Color.green);
+		});
+	}
+
 	/**
    	* Method updateHistoryDisplay
-    * Updates the history text on the page with the latest information
+    * Appends the messages added to the history since the last update to the page, on the Swing event thread.  Rows
+    * of messages that have left the history's window are removed, a tenth of the window at a time.
     */	
 	private void updateHistoryDisplay() {
-		String[] histText = history.getMessages();
-		hist.setListData(histText);
+		SwingUtilities.invokeLater(() -> {
+			for (Message m : history.since(histCursor)) {
+				histRows.addElement(m.getDirectionText() + m.getUsername());
+				histRows.addElement(m.getMessage());
+			}
+			histCursor = history.end();
+			int limit = 2 * History.DEFAULT_WINDOW;
+			if (histRows.size() > limit + limit / 10) histRows.removeRange(0, histRows.size() - limit - 1);
+		});
 	}
 
 	/**
@@ -140,6 +189,11 @@ public class ClientGui extends Client {
 			public void windowClosing(java.awt.event.WindowEvent windowEvent) {
 
 				ClientGui.super.stopServer();				
+				try {
+					history.close();
+				} catch (java.io.IOException e) {
+					e.printStackTrace();
+				}
 				System.exit(0);
 			}
 
@@ -164,7 +218,7 @@ public class ClientGui extends Client {
 		// Action listener to update username
 		menuItem1.addActionListener(new ActionListener() {
 			public void actionPerformed(ActionEvent e) {
-				String username = (String)JOptionPane.showInputDialog(
+				String username = JOptionPane.showInputDialog(
                     f,
                     "Enter New Username:",
                     "Customized Dialog",
@@ -174,6 +228,69 @@ public class ClientGui extends Client {
 				updateUsername(username);
 			}});
 
+		// Menu items to join and leave channels, whose name then goes in the To field
+		JMenuItem join = new JMenuItem("Join Channel", KeyEvent.VK_J);
+		menu.add(join);
+		join.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				String channel = JOptionPane.showInputDialog(
+                    f,
+                    "Channel to join (#name):",
+                    "Join Channel",
+                    JOptionPane.PLAIN_MESSAGE);
+				if (channel != null && !channel.isBlank()) joinChannel(channel.trim());
+			}});
+		JMenuItem leave = new JMenuItem("Leave Channel", KeyEvent.VK_L);
+		menu.add(leave);
+		leave.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				String channel = JOptionPane.showInputDialog(
+                    f,
+                    "Channel to leave (#name):",
+                    "Leave Channel",
+                    JOptionPane.PLAIN_MESSAGE);
+				if (channel != null && !channel.isBlank()) leaveChannel(channel.trim());
+			}});
+
+		// Menu item to search the history
+		JMenuItem search = new JMenuItem("Search History", KeyEvent.VK_S);
+		menu.add(search);
+
+		// Action listener that shows the archived messages containing the words entered
+		search.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				String query = JOptionPane.showInputDialog(
+                    f,
+                    "Search for:",
+                    "Search History",
+                    JOptionPane.PLAIN_MESSAGE);
+				if (query == null || query.isBlank()) return;
+				feedback.setText("Searching history...");
+				//the first search of an archive reads all of it, so it runs off the event thread
+				new SwingWorker<String, Void>() {
+					protected String doInBackground() throws java.io.IOException {
+						StringBuilder found = new StringBuilder();
+						java.util.List<Message> matches = history.search(query);
+						for (Message m : matches.subList(Math.max(0, matches.size() - 50), matches.size()))
+							found.append(m.getDirectionText()).append(m.getUsername()).append(": ").append(m.getMessage()).append('\n');
+						return found.toString();
+					}
+
+					protected void done() {
+						String found = "";
+						try {
+							found = get();
+						} catch (InterruptedException | java.util.concurrent.ExecutionException ex) {
+							ex.printStackTrace();
+						}
+						if (feedback.getText().equals("Searching history...")) feedback.setText("");
+						JTextArea text = new JTextArea(found.isEmpty() ? "No messages found." : found, 15, 40);
+						text.setEditable(false);
+						JOptionPane.showMessageDialog(f, new JScrollPane(text), "Search History", JOptionPane.PLAIN_MESSAGE);
+					}
+				}.execute();
+			}});
+
 		// Menu item that doesn't do anything
 		JMenuItem menuItem2 = new JMenuItem("Change Background Color");
 		menuItem2.setMnemonic(KeyEvent.VK_B);
@@ -246,7 +363,7 @@ public class ClientGui extends Client {
     * Displays a textarea that holds the chat history between this user and another
     */	
 	private void renderHistory() {
-		hist = new JList();
+		hist = new JList<>(histRows);
         scroll = new JScrollPane();
         scroll.setViewportView(hist);
   		scroll.setVerticalScrollBarPolicy(JScrollPane.VERTICAL_SCROLLBAR_ALWAYS);
@@ -0,0 +1,559 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Cluster.java
+ * Several Servers sharing one set of usernames.  Each node owns the usernames that hash to it on a consistent-hash ring
+ * with VNODES points per node, so a node joining or leaving only moves the users next to its own points.  A client that
+ * logs in to a node that does not own its username is sent a REDIRECT to the owner's client port (see Frame), so every
+ * user is normally connected to, and has their mailbox on, the node that owns them.
+ *
+ * Nodes talk over links on a port of their own (--cluster), one TCP connection per pair of nodes carrying binary Frames
+ * of the types below.  A node starts by linking to its --peers.  Every link starts with HELLO, after which each side sends
+ * NODES, the nodes it is linked to, so a new node links to the rest of the cluster through any one of them.  A node is in
+ * the ring while there is a link to it: when a link breaks the node is dropped and dialed again every second, and a node
+ * that shuts down hands its users over and says BYE first, so it is not dialed again.
+ *
+ * A message for a username the local directory does not have is sent to the node that owns it as a FORWARD frame, and the
+ * owner delivers it like a local one.  What a local sender would have been told (offline, unknown user, full mailbox)
+ * comes back as a NOTICE and reaches the sender as a warning.
+ *
+ * When the ring changes, users who are offline on a node that no longer owns them are removed from its directory and
+ * their waiting messages sent to the new owner (HANDOFF), which keeps them until the user logs in there.  Users who are
+ * online stay connected where they are: the owner is told where they are (LOCATED) and passes their messages on, and they
+ * are handed off once they close.
+ *
+ * Not covered: the messages of a node that crashes stay with it (with --wal until it restarts), frames still in a link's
+ * buffers when it breaks are lost, channels are local to each node, and nodes trust each other.
+ */
+public class Cluster {
+
+    //Frame types between nodes, never sent to clients
+    static final byte HELLO = 20;    //name: the node's id, payload: the host:port its clients connect to
+    static final byte NODES = 21;    //payload: "id address" of every node the sender is linked to, one per line
+    static final byte FORWARD = 22;  //name: recipient, timestamp: nodes it has been through, payload: the message as a binary frame
+    static final byte NOTICE = 23;   //name: sender of a forwarded message, timestamp: nodes it has been through, payload: warning text
+    static final byte HANDOFF = 24;  //name: username now owned by the receiver, payload: their waiting messages as binary frames
+    static final byte LOCATED = 25;  //name: username online at the sender although the receiver owns it
+    static final byte BYE = 26;      //the sender is shutting down
+
+    //points on the ring per node
+    static final int VNODES = 64;
+    //most nodes a message or notice is passed through: the owner, then the node a LOCATED user is on
+    static final int MAX_HOPS = 2;
+    //largest HANDOFF payload, a user with more messages waiting is handed off in several frames
+    private static final int HANDOFF_CHUNK = 1 << 20;
+    //most payload bytes a link keeps queued for a node that is slow to read them, frames past it are refused
+    private static final int LINK_QUEUE = 64 << 20;
+
+    //this node's id ("host:cluster port") and the address its clients connect to ("host:port")
+    final String self;
+    final String address;
+    private final Server server;
+    private final int port;
+    //client address of every node in the ring, this one included, by node id
+    private final ConcurrentHashMap<String, String> members = new ConcurrentHashMap<>();
+    //open links by node id
+    private final ConcurrentHashMap<String, Link> links = new ConcurrentHashMap<>();
+    //cluster addresses dialed every second until linked: the peers and every node heard of, until it says BYE
+    private final Set<String> known = ConcurrentHashMap.newKeySet();
+    private volatile Ring ring;
+    //users owned here but online at another node, that node's id by username (see LOCATED)
+    private final ConcurrentHashMap<String, String> located = new ConcurrentHashMap<>();
+    //users online here but owned by another node, the owner told about them by username
+    private final ConcurrentHashMap<String, String> announced = new ConcurrentHashMap<>();
+    private Thread maintainer;
+    //set when the ring has changed since the last rebalance()
+    private volatile boolean changed;
+    private volatile boolean leaving;
+
+    /**
+     * @param server : the Server this node routes for
+     * @param config : its options, see --cluster, --peers and --advertise
+     */
+    Cluster(Server server, ServerConfig config) {
+        this.server = server;
+        this.port = config.cluster;
+        this.self = config.advertise + ":" + config.cluster;
+        this.address = config.advertise + ":" + config.port;
+        members.put(self, address);
+        ring = new Ring(members.keySet());
+        known.addAll(config.peers);
+        known.remove(self);
+    }
+
+    /**
+     * Starts listening for other nodes and the thread that dials them and moves users whenever the ring changes.
+     * @throws IOException if the cluster port cannot be bound
+     */
+    void start() throws IOException {
+        ServerSocket ss = new ServerSocket(port);
+        Thread acceptor = new Thread(() -> {
+            while (true) {
+                try {
+                    open(ss.accept(), null);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }, "cluster-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        maintainer = new Thread(this::maintain, "cluster");
+        maintainer.setDaemon(true);
+        maintainer.start();
+        Log.info("Cluster node " + self + " listening on port " + port);
+    }
+
+    // The node that owns a username, null if there is none (only while this node is leaving the cluster)
+    String owner(String username) {
+        return ring.owner(username);
+    }
+
+    // Number of nodes in the ring, this one included
+    int size() {
+        return members.size();
+    }
+
+    /**
+     * Whether a username can log in here.
+     * @param username : the username the client sent
+     * @param binary : whether the client speaks the binary protocol
+     * @param version : its protocol version
+     * @return null if the user can log in, otherwise what to send before closing: a REDIRECT to the owner for a client
+     *         that follows them, a warning for any other, or a warning that the username is online at another node
+     */
+    Frame refuse(String username, boolean binary, int version) {
+        String owner = owner(username);
+        if (owner != null && !owner.equals(self)) {
+            String target = members.getOrDefault(owner, owner);
+            if (binary && version >= 6) return new Frame(Frame.REDIRECT, target, 0, Frame.EMPTY);
+            return Frame.warning("Your username belongs to the server at " + target + ". Log in there.");
+        }
+        if (located.containsKey(username)) return Frame.warning("Username is taken! Try again.");
+        return null;
+    }
+
+    /**
+     * Sends a message to the node a user without a Connection here can be found at: their owner, or if that is this node,
+     * the node they are online at.
+     * @param receiver : the recipient's username
+     * @param msg : the message, addressed from its sender
+     * @param hops : nodes the message has been forwarded through already
+     * @return QUEUED if it was forwarded, REJECTED if the node cannot be reached, null if no node has the user
+     */
+    Mailbox.Delivery forward(String receiver, Frame msg, int hops) {
+        String node = owner(receiver);
+        if (node == null || node.equals(self)) node = located.get(receiver);
+        if (node == null || hops >= MAX_HOPS) return null;
+        Link link = links.get(node);
+        try {
+            if (link == null || !link.send(new Frame(FORWARD, receiver, hops + 1, bytes(msg))))
+                return Mailbox.Delivery.REJECTED;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return Mailbox.Delivery.REJECTED;
+        }
+        server.metrics.forwarded.increment();
+        return Mailbox.Delivery.QUEUED;
+    }
+
+    /**
+     * Gives a warning to a user, here if they have a Connection here and otherwise through the node that has them.
+     * @param username : the user
+     * @param text : the warning text
+     * @param hops : nodes the notice has been through already
+     */
+    void notice(String username, String text, int hops) {
+        if (server.notice(username, text)) return;
+        String node = owner(username);
+        if (node == null || node.equals(self)) node = located.get(username);
+        Link link = node == null || hops >= MAX_HOPS ? null : links.get(node);
+        if (link != null) link.send(new Frame(NOTICE, username, hops + 1, text));
+    }
+
+    // The binary encoding of any kind of frame
+    private static byte[] bytes(Frame msg) throws IOException {
+        ByteBuffer buf = msg.encode(true).duplicate();
+        byte[] bytes = new byte[buf.remaining()];
+        buf.get(bytes);
+        return bytes;
+    }
+
+    // Frames written back to back by bytes()
+    private static List<Frame> frames(byte[] payload) throws IOException {
+        List<Frame> frames = new ArrayList<>();
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        while (in.available() > 0)
+            frames.add(Frame.read(in));
+        return frames;
+    }
+
+    /**
+     * Dials the nodes that are known but not linked, and moves users after the ring changes.  Runs once a second on its
+     * own daemon thread, and right away when a link opens or closes.
+     */
+    private void maintain() {
+        while (true) {
+            for (String node : known) {
+                if (!links.containsKey(node)) dial(node);
+            }
+            if (changed) {
+                changed = false;
+                rebalance();
+            }
+            else handOffClosed();
+            LockSupport.parkNanos(1_000_000_000L);
+        }
+    }
+
+    // Wakes the maintainer thread after the ring changed
+    private void changed() {
+        changed = true;
+        if (maintainer != null) LockSupport.unpark(maintainer);
+    }
+
+    // Opens a link to a node's cluster port, quietly giving up until the next second if it is not up
+    private void dial(String node) {
+        int colon = node.lastIndexOf(':');
+        Socket s = new Socket();
+        try {
+            s.connect(new InetSocketAddress(node.substring(0, colon), Integer.parseInt(node.substring(colon + 1))), 1000);
+            open(s, node);
+        } catch (IOException e) {
+            try {
+                s.close();
+            } catch (IOException e2) {
+                e2.printStackTrace();
+            }
+        }
+    }
+
+    // Starts a link on a connected socket: says HELLO and starts the thread reading from it
+    private void open(Socket s, String dialed) throws IOException {
+        Link link = new Link(s, dialed);
+        link.send(new Frame(HELLO, self, 0, address));
+        Thread reader = new Thread(link, "cluster-link");
+        reader.setDaemon(true);
+        reader.start();
+        Thread writer = new Thread(link::drain, "cluster-link-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Adds a node to the ring once its HELLO has arrived.  Nodes that dial each other at the same time end up with two
+     * links, and both keep the one dialed by the node with the smaller id.
+     */
+    private void linked(Link link, String clientAddress) {
+        String node = link.node;
+        if (link.dialed != null && !link.dialed.equals(node)) {
+            //a peer given under another name than the one it goes by
+            known.remove(link.dialed);
+        }
+        known.add(node);
+        Link replaced;
+        synchronized (this) {
+            Link existing = links.get(node);
+            boolean dialedBySmaller = (link.dialed != null) == (self.compareTo(node) < 0);
+            if (existing != null && !dialedBySmaller) {
+                link.close();
+                return;
+            }
+            replaced = links.put(node, link);
+            members.put(node, clientAddress);
+            ring = new Ring(members.keySet());
+        }
+        if (replaced != null) replaced.close();
+        else Log.info("Node " + node + " joined the cluster, " + members.size() + " nodes");
+        StringBuilder nodes = new StringBuilder();
+        for (Map.Entry<String, String> member : members.entrySet())
+            nodes.append(member.getKey()).append(' ').append(member.getValue()).append('\n');
+        link.send(new Frame(NODES, self, 0, nodes.toString()));
+        changed();
+    }
+
+    // Drops a node from the ring when its link closes, unless the link had already been replaced
+    private void unlinked(Link link) {
+        String node = link.node;
+        if (node == null) return;
+        synchronized (this) {
+            if (!links.remove(node, link)) return;
+            members.remove(node);
+            ring = new Ring(members.keySet());
+        }
+        located.values().removeIf(node::equals);
+        if (link.bye) Log.info("Node " + node + " left the cluster, " + members.size() + " nodes");
+        else Log.warn("Lost the link to node " + node + ", " + members.size() + " nodes");
+        changed();
+    }
+
+    // Handles a frame from another node
+    private void received(Link link, Frame frame) throws IOException {
+        if (frame.type == FORWARD) {
+            Frame msg = frames(frame.payload).get(0);
+            String notice = server.deliverForwarded(frame.name, msg, (int) frame.timestamp);
+            if (notice != null) notice(msg.name, notice, 0);
+        }
+        else if (frame.type == NOTICE)
+            notice(frame.name, frame.text(), (int) frame.timestamp);
+        else if (frame.type == HANDOFF) {
+            located.remove(frame.name, link.node);
+            server.adopt(frame.name, frames(frame.payload));
+        }
+        else if (frame.type == LOCATED)
+            located.put(frame.name, link.node);
+        else if (frame.type == NODES) {
+            for (String line : frame.text().split("\n")) {
+                String node = line.substring(0, Math.max(0, line.indexOf(' ')));
+                if (!node.isEmpty() && !node.equals(self) && known.add(node)) changed();
+            }
+        }
+        else if (frame.type == BYE) {
+            link.bye = true;
+            known.remove(link.node);
+        }
+    }
+
+    /**
+     * Moves every user this node no longer owns after the ring changed: users who are offline are handed to their owner,
+     * along with the messages waiting for users who have no Connection here, and the owners of users who are online are
+     * told where they are.
+     */
+    private void rebalance() {
+        Ring r = ring;
+        for (Server.Connection c : server.connections()) {
+            String owner = r.owner(c.username);
+            if (owner == null || owner.equals(self)) {
+                announced.remove(c.username);
+                continue;
+            }
+            Link link = links.get(owner);
+            if (link == null) continue;
+            if (!c.awake) handOff(c, link);
+            else if (!owner.equals(announced.put(c.username, owner)))
+                link.send(new Frame(LOCATED, c.username, 0, Frame.EMPTY));
+        }
+        for (String username : server.waiting()) {
+            String owner = r.owner(username);
+            Link link = owner == null || owner.equals(self) ? null : links.get(owner);
+            if (link != null) handOff(username, server.takeWaiting(username), link);
+        }
+    }
+
+    // Hands off the users announced to their owners who have gone offline since, see rebalance()
+    private void handOffClosed() {
+        for (Map.Entry<String, String> user : announced.entrySet()) {
+            Server.Connection c = server.lookup(user.getKey());
+            Link link = links.get(user.getValue());
+            if (c == null) announced.remove(user.getKey());
+            else if (!c.awake && link != null) handOff(c, link);
+        }
+    }
+
+    // Removes an offline user from this node and sends them to their owner
+    private void handOff(Server.Connection c, Link link) {
+        List<Frame> msgs = new ArrayList<>();
+        String username = c.username;
+        if (!c.retire(msgs)) return;
+        announced.remove(username);
+        handOff(username, msgs, link);
+    }
+
+    /**
+     * Sends a user's waiting messages to the node that owns them, in HANDOFF frames of up to HANDOFF_CHUNK bytes.  Always
+     * sends at least one, which tells the owner the user is no longer here.  Messages that cannot be sent are kept here.
+     */
+    private void handOff(String username, List<Frame> msgs, Link link) {
+        ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+        int sent = 0;
+        try {
+            for (int i = 0; i <= msgs.size(); i++) {
+                if (i < msgs.size()) chunk.write(bytes(msgs.get(i)));
+                if (i < msgs.size() && chunk.size() < HANDOFF_CHUNK) continue;
+                if (!link.send(new Frame(HANDOFF, username, 0, chunk.toByteArray()))) break;
+                chunk.reset();
+                sent = Math.min(i + 1, msgs.size());
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if (sent < msgs.size()) {
+            Log.warn("Could not hand " + username + " to " + link.node + ", keeping " + (msgs.size() - sent) + " messages");
+            server.adopt(username, msgs.subList(sent, msgs.size()));
+            return;
+        }
+        for (Frame msg : msgs)
+            if (msg instanceof PooledFrame) ((PooledFrame) msg).release();
+        Log.info("Handed " + username + " to " + link.node + " with " + msgs.size() + " messages");
+    }
+
+    /**
+     * Leaves the cluster when the Server shuts down: every user is handed to the node that owns them without this one,
+     * and the other nodes are told not to dial this one again.
+     */
+    void leave() {
+        if (leaving) return;
+        leaving = true;
+        synchronized (this) {
+            members.remove(self);
+            ring = new Ring(members.keySet());
+        }
+        for (Server.Connection c : server.connections())
+            c.sleep();
+        announced.clear();
+        rebalance();
+        for (Link link : links.values()) {
+            link.send(new Frame(BYE, self, 0, Frame.EMPTY));
+            link.close();
+        }
+    }
+
+    /**
+     * Link class (inner class of Cluster)
+     * The connection to one other node.  Its own thread reads the frames the node sends, and any thread can send with
+     * send(), which only queues the frame: a second thread writes what is queued and flushes once per batch, so a node that
+     * is slow to read never blocks the event loop or Connection forwarding to it, it just has frames refused once
+     * LINK_QUEUE bytes are waiting.  Closing the link lets that thread write what is already queued, such as a BYE, first.
+     */
+    private class Link implements Runnable {
+        final Socket socket;
+        final DataInputStream in;
+        final DataOutputStream out;
+        //the cluster address this node dialed, null if the other node dialed
+        final String dialed;
+        //the other node's id, from its HELLO
+        volatile String node;
+        //the other node said BYE
+        volatile boolean bye;
+        //closed by this node
+        private volatile boolean closed;
+        //frames waiting for the writer thread and their payload bytes, guarded by the link
+        private final ArrayDeque<Frame> queue = new ArrayDeque<>();
+        private long queued;
+
+        Link(Socket socket, String dialed) throws IOException {
+            this.socket = socket;
+            this.dialed = dialed;
+            socket.setTcpNoDelay(true);
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        }
+
+        // Queues a frame for the writer thread, false if the link is closed or too far behind
+        synchronized boolean send(Frame frame) {
+            if (closed || queued + frame.payload.length > LINK_QUEUE) return false;
+            queue.add(frame);
+            queued += frame.payload.length;
+            if (queue.size() == 1) notify();
+            return true;
+        }
+
+        // Refuses further frames, the writer thread writes those already queued and then closes the socket
+        synchronized void close() {
+            closed = true;
+            notify();
+        }
+
+        // Queued frames, waiting for some if there are none, or null once the link is closed and they are all written
+        private synchronized Frame[] take() throws InterruptedException {
+            while (queue.isEmpty() && !closed)
+                wait();
+            if (queue.isEmpty()) return null;
+            Frame[] batch = queue.toArray(new Frame[0]);
+            queue.clear();
+            queued = 0;
+            return batch;
+        }
+
+        // The writer thread: writes the queued frames a batch at a time until the link is closed or breaks
+        void drain() {
+            try {
+                for (Frame[] batch; (batch = take()) != null; ) {
+                    for (Frame frame : batch)
+                        frame.write(out);
+                    out.flush();
+                }
+            } catch (IOException | InterruptedException e) {
+                if (node != null && !closed && !bye) Log.debug("Link to node " + node + " broke: " + e);
+            } finally {
+                close();
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                Frame hello = Frame.read(in);
+                if (hello.type != HELLO || hello.name.equals(self))
+                    throw new IOException("Not a cluster node: " + socket.getRemoteSocketAddress());
+                node = hello.name;
+                linked(this, hello.text());
+                while (true)
+                    received(this, Frame.read(in));
+            } catch (IOException e) {
+                if (node != null && !closed && !bye) Log.debug("Link to node " + node + " broke: " + e);
+            } finally {
+                close();
+                unlinked(this);
+            }
+        }
+    }
+
+    /**
+     * Ring class (inner class of Cluster)
+     * Consistent-hash ring of the nodes, immutable: a new one replaces it whenever a node joins or leaves.  A username is
+     * owned by the node of the first point at or after the username's hash, wrapping around.
+     */
+    static final class Ring {
+        private final long[] points;
+        private final String[] nodes;
+
+        Ring(Collection<String> members) {
+            List<String> sorted = new ArrayList<>(members);
+            Collections.sort(sorted);
+            long[][] entries = new long[sorted.size() * VNODES][];
+            for (int n = 0; n < sorted.size(); n++)
+                for (int v = 0; v < VNODES; v++)
+                    entries[n * VNODES + v] = new long[]{hash(sorted.get(n) + "#" + v), n};
+            Arrays.sort(entries, (a, b) -> Long.compare(a[0], b[0]));
+            points = new long[entries.length];
+            nodes = new String[entries.length];
+            for (int i = 0; i < entries.length; i++) {
+                points[i] = entries[i][0];
+                nodes[i] = sorted.get((int) entries[i][1]);
+            }
+        }
+
+        // The node that owns a username, null if the ring is empty
+        String owner(String username) {
+            if (points.length == 0) return null;
+            int i = Arrays.binarySearch(points, hash(username));
+            if (i < 0) i = -i - 1;
+            return nodes[i == points.length ? 0 : i];
+        }
+
+        // 64 bit FNV-1a of the UTF-8 bytes, with a final mix so similar names land far apart
+        static long hash(String s) {
+            long h = 0xcbf29ce484222325L;
+            for (byte b : s.getBytes(StandardCharsets.UTF_8)) {
+                h ^= b & 0xFF;
+                h *= 0x100000001b3L;
+            }
+            h ^= h >>> 33;
+            h *= 0xff51afd7ed558ccdL;
+            h ^= h >>> 33;
+            return h;
+        }
+    }
+}
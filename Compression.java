@@ -0,0 +1,141 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compression.java
+ * Deflate for frame payloads and BATCHes of frames, see Frame.COMPRESSED.  Both sides start from a preset dictionary of
+ * words and phrases common in chat messages and Server warnings, so even a payload of a few hundred bytes compresses.
+ *
+ * Every payload is compressed on its own, with no history carried from one frame to the next.  That costs some ratio
+ * next to a stream per connection, but a Connection keeps nothing for it (an offline user still costs a few hundred
+ * bytes, see Server.Connection.hibernate()), and frames can be inflated in any order on any thread.  The Deflaters and
+ * Inflaters, which hold native memory, are kept one per thread.
+ *
+ * A compressed payload is the length of the original as an int, then the raw Deflate stream.
+ */
+public class Compression {
+
+    // Smallest payload, or batch of frames, worth compressing unless set with --compress-threshold
+    static final int THRESHOLD = 512;
+
+    // Preset dictionary.  Deflate reaches back 32 KB, and the strings expected most often are at the end, where matches
+    // are shortest to encode.
+    static final byte[] DICTIONARY = ("http://https://www..com.org/the be to of and a in that have I it for not on with he "
+            + "as you do at this but his by from they we say her she or an will my one all would there their what so up out "
+            + "if about who get which go me when make can like time no just him know take people into year your good some "
+            + "could them see other than then now look only come its over think also back after use two how our work first "
+            + "well way even new want because any these give day most us is are was were been has had did said lol haha ok "
+            + "okay yes yeah thanks thank you please sorry hello hi hey morning tonight tomorrow today later see you soon "
+            + "what's up how are you doing I'm I'll I've don't can't won't didn't it's that's let me know sounds good "
+            + "does not exist! is offline and will get your message when they wake up. 's mailbox is full, your message "
+            + "was not delivered. Username is taken! Try again. Message delivered to ").getBytes(StandardCharsets.UTF_8);
+
+    private static final ThreadLocal<Deflater> deflaters =
+            ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED, true));
+    private static final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(() -> new Inflater(true));
+
+    /**
+     * Compresses bytes with the preset dictionary.
+     * @param data : the bytes
+     * @param offset : where they start in data
+     * @param length : how many there are
+     * @return the compressed payload, or null if it would not be smaller than the bytes themselves
+     */
+    static byte[] deflate(byte[] data, int offset, int length) {
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        deflater.setDictionary(DICTIONARY);
+        deflater.setInput(data, offset, length);
+        deflater.finish();
+        byte[] out = new byte[4 + length];
+        ByteBuffer.wrap(out).putInt(length);
+        int n = 4;
+        while (!deflater.finished() && n < out.length)
+            n += deflater.deflate(out, n, out.length - n);
+        if (!deflater.finished() || n >= length) return null;
+        return Arrays.copyOf(out, n);
+    }
+
+    /**
+     * Restores a payload compressed by deflate().
+     * @param payload : the compressed payload
+     * @return the original bytes
+     * @throws IOException if the payload is malformed or would inflate past Frame.MAX_LENGTH
+     */
+    static byte[] inflate(byte[] payload) throws IOException {
+        if (payload.length < 4) throw new IOException("Bad compressed payload");
+        int length = ByteBuffer.wrap(payload).getInt();
+        if (length < 0 || length > Frame.MAX_LENGTH) throw new IOException("Bad compressed length " + length);
+        Inflater inflater = inflaters.get();
+        inflater.reset();
+        inflater.setDictionary(DICTIONARY);
+        inflater.setInput(payload, 4, payload.length - 4);
+        byte[] out = new byte[length];
+        int n = 0;
+        try {
+            while (n < length) {
+                int inflated = inflater.inflate(out, n, length - n);
+                if (inflated == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) break;
+                n += inflated;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Bad compressed payload", e);
+        }
+        if (n != length) throw new IOException("Compressed payload ends after " + n + " of " + length + " bytes");
+        return out;
+    }
+
+    /**
+     * Batch class (inner class of Compression)
+     * Frames encoded back to back for one write, sent as a single compressed BATCH frame when they are large enough
+     * together and compress.  Frames are stamped (see Frame.stampEgress()) as they are added.  Pooled frames are copied,
+     * and stay with the caller.
+     */
+    static class Batch {
+        private byte[] bytes = new byte[4096];
+        private int size;
+        private int count;
+
+        void add(Frame msg) throws IOException {
+            msg.stampEgress();
+            ByteBuffer encoded = msg.encode(true).duplicate();
+            int n = encoded.remaining();
+            if (size + n > bytes.length) bytes = Arrays.copyOf(bytes, Math.max(2 * bytes.length, size + n));
+            encoded.get(bytes, size, n);
+            size += n;
+            count++;
+        }
+
+        // Bytes of the frames added so far, as they would be written without compression
+        int size() {
+            return size;
+        }
+
+        /**
+         * @param threshold : fewest bytes of frames worth compressing
+         * @return the frames as one compressed BATCH frame, or null if they are fewer bytes than threshold or do not
+         *         compress
+         */
+        Frame compress(int threshold) {
+            if (size < threshold) return null;
+            byte[] payload = deflate(bytes, 0, size);
+            if (payload == null) return null;
+            return new Frame((byte) (Frame.BATCH | Frame.COMPRESSED), "", count, payload);
+        }
+
+        // Writes the frames as they are, uncompressed
+        void writeTo(OutputStream out) throws IOException {
+            out.write(bytes, 0, size);
+        }
+
+        // The frames as they are, uncompressed, in a buffer ready to be written
+        ByteBuffer buffer() {
+            return ByteBuffer.wrap(bytes, 0, size);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * DirectoryBenchmark.java
+ * Contention benchmark for the Server's user directory.  Many threads route messages at once, each one looking up its
+ * recipient the way Connection.sendMsgToSocket() does, with every sixteenth message a robot message that picks a random
+ * recipient like sendRobotMsgToSocket().  It runs once against the synchronizedMap the Server used to have (containsKey
+ * then get, and keySet().toArray() for robot messages), then against UserDirectory by username and by id (SEND frames),
+ * and prints routes per second.
+ *
+ * Usage: java DirectoryBenchmark [threads (default 64)] [users (default 1000)] [seconds per run (default 5)]
+ */
+public class DirectoryBenchmark {
+
+    /** The two directory operations on the routing path */
+    private interface Directory {
+        // Finds the recipient of a message for names[user]
+        Object route(int user);
+        Object sample();
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int users = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        String[] names = new String[users];
+        for (int i = 0; i < users; i++)
+            names[i] = "user" + i;
+
+        Map<String, Object> map = Collections.synchronizedMap(new HashMap<>());
+        UserDirectory<Object> directory = new UserDirectory<>();
+        for (String name : names) {
+            Object connection = new Object();
+            map.put(name, connection);
+            directory.update(name, c -> c, id -> connection);
+        }
+        Directory synchronizedMap = new Directory() {
+            public Object route(int user) {
+                String username = names[user];
+                return map.containsKey(username) ? map.get(username) : null;
+            }
+            public Object sample() {
+                Object[] keys = map.keySet().toArray();
+                return map.get(String.valueOf(keys[ThreadLocalRandom.current().nextInt(keys.length)]));
+            }
+        };
+        Directory userDirectory = new Directory() {
+            public Object route(int user) {
+                return directory.get(names[user]);
+            }
+            public Object sample() {
+                return directory.random();
+            }
+        };
+        Directory userIds = new Directory() {
+            public Object route(int user) {
+                //ids are handed out in the order the names were added
+                return directory.byId(user);
+            }
+            public Object sample() {
+                return directory.random();
+            }
+        };
+
+        System.out.println(threads + " threads, " + users + " users, " + seconds + " s per run");
+        //the first round warms up the JIT
+        for (int round = 0; round < 2; round++) {
+            System.out.printf("synchronizedMap: %,d routes/s%n", run(synchronizedMap, users, threads, seconds));
+            System.out.printf("UserDirectory:   %,d routes/s%n", run(userDirectory, users, threads, seconds));
+            System.out.printf("by id:           %,d routes/s%n", run(userIds, users, threads, seconds));
+        }
+    }
+
+    // Routes from every thread for the given time, returns routes per second
+    private static long run(Directory directory, int users, int threads, int seconds) throws InterruptedException {
+        LongAdder routes = new LongAdder();
+        CountDownLatch start = new CountDownLatch(1);
+        long[] end = new long[1];
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long n = 0;
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                while (System.nanoTime() < end[0]) {
+                    for (int j = 0; j < 16; j++) {
+                        Object dest = j == 0 ? directory.sample() : directory.route(random.nextInt(users));
+                        if (dest == null) throw new IllegalStateException("missing user");
+                    }
+                    n += 16;
+                }
+                routes.add(n);
+            });
+            workers[i].start();
+        }
+        end[0] = System.nanoTime() + seconds * 1_000_000_000L;
+        start.countDown();
+        for (Thread t : workers)
+            t.join();
+        return routes.sum() / seconds;
+    }
+}
@@ -0,0 +1,445 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Frame.java
+ * A single message between a client and the Server, and the codecs for both wire protocols.
+ *
+ * Binary protocol: a client opts in by sending the 2 byte MAGIC and a version byte instead of the writeUTF username, then
+ * a LOGIN frame.  Every frame after that is
+ *     int length | byte type | short name length | name (UTF-8) | long timestamp | int payload length | payload (UTF-8)
+ * where length counts every byte after the length field.  The name is the recipient on frames sent to the Server and the
+ * sender on frames delivered by it, so the Server can route a message from the header alone and forward the payload bytes
+ * without decoding them.  Frames are limited to MAX_LENGTH instead of writeUTF's 64 KB, and ":::" has no meaning inside
+ * a payload.
+ *
+ * Since version 2 the LOGIN frame sent back by the Server also carries the user's handle: their integer id in the
+ * Server's connection table (high 32 bits) and how many times they have picked a username (low 32 bits).  A client can
+ * resolve any username to a handle with a RESOLVE frame, and send SEND frames whose name field is the recipient's 8 byte
+ * handle instead of a username, which the Server routes with an array index instead of a hash lookup.  Ids never change,
+ * so a handle keeps reaching its user after they rename, and the Server answers a handle with an old rename count with a
+ * RESOLVE frame carrying the user's new username and handle.
+ *
+ * Since version 3 a client can measure latency on the Server's clock.  It sends TIME probes, which the Server answers
+ * with the times it received and sent the answer (System.nanoTime()), and estimates the offset between the two clocks the
+ * way NTP does.  From its first TIME frame on, the client's message timestamps are its nanoTime() plus that offset, and
+ * messages between two such clients are delivered as STAMPED frames carrying the Server's ingress and egress times, so
+ * the receiver can split each delay into client to Server, queueing in the Server, and Server to client.
+ *
+ * Since version 4 the Server acknowledges messages in batches instead of answering each one.  A message's id is its
+ * position among the MSG, SEND and ROBOT frames the client has sent since it logged in (the first is 1), so ids never go
+ * on the wire with the message.  Once the Server has handled every frame the client sent so far (or every ACK_EVERY
+ * messages of a long burst) it sends one ACK with the id of the last message handled.  Messages that could not be
+ * delivered are still answered with a WARNING, before the ACK that covers them, and the "Message delivered" warnings
+ * are not sent at all.  A client can therefore keep many messages in flight and learn how they went from a few frames.
+ *
+ * Since version 5 users can JOIN and LEAVE channels ("#name").  A MSG whose recipient is a channel the sender is in goes
+ * to every other member, as a MSG whose name is "#name/sender".
+ *
+ * Since version 6 a Server that is one node of a Cluster answers the LOGIN of a username owned by another node with a
+ * REDIRECT to that node and closes the connection, and the client logs in there instead.  Older clients are sent a
+ * warning naming the node.
+ *
+ * Since version 7 a client can offer to compress with the DEFLATE flag in the payload of its LOGIN frame, and the Server
+ * says whether it accepted with the same flag after the handle in its LOGIN answer.  If it did, frames whose payload is
+ * at least a threshold (by default Compression.THRESHOLD bytes) may be sent with the COMPRESSED flag set on their type and
+ * the payload deflated (see Compression), and the Server writes the messages it sends together, such as the backlog of a
+ * user coming back online, as one compressed BATCH frame.  Short frames and everything sent to older clients stay as
+ * they are.
+ *
+ * Legacy protocol: every message is one writeUTF string in the ":::" separated formats described in README.md.  Old
+ * clients keep working because fromLegacy() and toLegacy() translate those strings to and from frames.  A string is
+ * limited to MAX_UTF_LENGTH bytes, so a longer message is refused when it is sent to a legacy client who is online, and
+ * replaced by a warning if it is already queued when one logs in, see legacyText().
+ */
+public class Frame {
+
+    //First two bytes sent by a binary client.  A legacy client would need a 65535 byte username to send the same bytes.
+    static final int MAGIC = 0xFFFF;
+    static final byte VERSION = 7;
+    static final int MAX_LENGTH = 16 << 20;
+    //Longest string writeUTF can write, in bytes of modified UTF-8: the longest frame a legacy client can be sent
+    static final int MAX_UTF_LENGTH = 65535;
+    //type, name length, timestamp and payload length
+    static final int HEADER_LENGTH = 1 + 2 + 8 + 4;
+
+    //Frame types
+    static final byte LOGIN = 1;    //name: username.  Sent back by the Server when accepted, payload: its version and the user's handle
+    static final byte MSG = 2;      //name: recipient (to the Server) or sender (from the Server), payload: message text
+    static final byte ROBOT = 3;    //**USED FOR TESTING** message for a random user, see Server.sendRobotMsgToSocket()
+    static final byte RENAME = 4;   //name: requested username, payload: current username
+    static final byte CLOSING = 5;  //payload: the client's delay histogram, see LatencyHistogram.encode()
+    static final byte WARNING = 6;  //payload: feedback text for the client
+    static final byte SEND = 7;     //name: the recipient's handle (8 bytes), payload: message text.  Delivered as MSG.
+    static final byte RESOLVE = 8;  //name: username.  Answered by the Server with timestamp: the user's handle, or -1
+    static final byte TIME = 9;     //clock probe, timestamp: the client's nanoTime.  Answered with the same timestamp and payload: STAMPS
+    static final byte STAMPED = 10; //MSG between clients measuring latency, timestamp: sent on the Server's clock, payload: STAMPS then the text
+    static final byte ACK = 11;     //name: recipient of the last message delivered since the previous ACK, or empty.  timestamp: id of the last message handled
+    static final byte JOIN = 12;    //name: channel to join, answered with a warning
+    static final byte LEAVE = 13;   //name: channel to leave, answered with a warning
+    static final byte REDIRECT = 14; //name: "host:port" of the cluster node that owns the username, answering a LOGIN
+    static final byte BATCH = 15;   //from the Server, always COMPRESSED.  timestamp: number of frames, payload: the frames back to back
+    //flag on the type of a frame whose payload is deflated, see Compression
+    static final byte COMPRESSED = (byte) 0x80;
+    //flag in a LOGIN payload: the client can inflate and send COMPRESSED frames, and in the answer: the Server agrees
+    static final byte DEFLATE = 1;
+    //most messages a client can send in one burst before the Server acknowledges them, see ACK
+    static final int ACK_EVERY = 64;
+    //handle field of frames other than SEND
+    static final long NO_HANDLE = -1;
+    //length of the Server's ingress and egress nanoTime at the start of a STAMPED payload or TIME answer
+    static final int STAMPS = 16;
+
+    static final byte[] EMPTY = new byte[0];
+
+    final byte type;
+    final String name;
+    final long timestamp;
+    final byte[] payload;
+    //the recipient of a SEND frame, whose name is empty
+    final long handle;
+
+    Frame(byte type, String name, long timestamp, byte[] payload) {
+        this.type = type;
+        this.name = name;
+        this.timestamp = timestamp;
+        this.payload = payload;
+        this.handle = NO_HANDLE;
+    }
+
+    private Frame(long handle, long timestamp, byte[] payload) {
+        this(SEND, handle, timestamp, payload);
+    }
+
+    // A SEND frame, or a COMPRESSED one
+    private Frame(byte type, long handle, long timestamp, byte[] payload) {
+        this.type = type;
+        this.name = "";
+        this.timestamp = timestamp;
+        this.payload = payload;
+        this.handle = handle;
+    }
+
+    Frame(byte type, String name, long timestamp, String text) {
+        this(type, name, timestamp, text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // A warning from the Server to a client
+    static Frame warning(String text) {
+        return new Frame(WARNING, "", 0, text);
+    }
+
+    // A message for the user a handle was resolved to
+    static Frame send(long handle, long timestamp, String text) {
+        return new Frame(handle, timestamp, text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * A frame that carries the Server's ingress time, and room for its egress time which stampEgress() fills in.
+     * @param type : STAMPED or TIME
+     * @param name : the sender of a STAMPED frame
+     * @param timestamp : the sender's timestamp
+     * @param ingress : System.nanoTime() when the Server received the message
+     * @param text : the message text, EMPTY for TIME
+     */
+    static Frame stamped(byte type, String name, long timestamp, long ingress, byte[] text) {
+        byte[] payload = new byte[STAMPS + text.length];
+        ByteBuffer.wrap(payload).putLong(ingress);
+        System.arraycopy(text, 0, payload, STAMPS, text.length);
+        return new Frame(type, name, timestamp, payload);
+    }
+
+    // Records the time a STAMPED frame or TIME answer is written out, again if it has to be written again
+    void stampEgress() {
+        if ((type == STAMPED || type == TIME) && payload.length >= STAMPS)
+            ByteBuffer.wrap(payload).putLong(8, System.nanoTime());
+    }
+
+    // The Server's ingress (0) or egress (1) time in a STAMPED frame or TIME answer
+    long stamp(int i) {
+        return ByteBuffer.wrap(payload).getLong(i * 8);
+    }
+
+    /**
+     * This frame with its payload deflated, for a peer that agreed to DEFLATE.
+     * @param threshold : smallest payload worth compressing
+     * @return the COMPRESSED frame, or this frame if its payload is shorter than threshold or does not compress
+     */
+    Frame deflated(int threshold) {
+        if (payload.length < threshold || (type & COMPRESSED) != 0) return this;
+        byte[] deflated = Compression.deflate(payload, 0, payload.length);
+        if (deflated == null) return this;
+        byte flagged = (byte) (type | COMPRESSED);
+        return type == SEND ? new Frame(flagged, handle, timestamp, deflated) : new Frame(flagged, name, timestamp, deflated);
+    }
+
+    /**
+     * The frames in a BATCH.
+     * @return the frames, in the order they were sent
+     * @throws IOException if one of them is malformed
+     */
+    List<Frame> frames() throws IOException {
+        List<Frame> frames = new ArrayList<>((int) Math.min(timestamp, ACK_EVERY));
+        ByteBuffer buf = ByteBuffer.wrap(payload);
+        while (buf.hasRemaining()) {
+            int length = buf.getInt();
+            if (length < HEADER_LENGTH || length > buf.remaining()) throw new IOException("Bad frame length " + length);
+            frames.add(read(buf, length));
+        }
+        return frames;
+    }
+
+    // The name field as written: the UTF-8 name, or the handle for SEND frames
+    private byte[] nameField() {
+        if ((type & ~COMPRESSED) == SEND) return ByteBuffer.allocate(8).putLong(handle).array();
+        return name.getBytes(StandardCharsets.UTF_8);
+    }
+
+    // The payload decoded as text, without the stamps of a STAMPED frame
+    String text() {
+        if (type == STAMPED && payload.length >= STAMPS)
+            return new String(payload, STAMPS, payload.length - STAMPS, StandardCharsets.UTF_8);
+        return new String(payload, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes the frame in the binary format.
+     * @param out : stream to the other side
+     */
+    void write(DataOutputStream out) throws IOException {
+        byte[] n = nameField();
+        out.writeInt(HEADER_LENGTH + n.length + payload.length);
+        out.writeByte(type);
+        out.writeShort(n.length);
+        out.write(n);
+        out.writeLong(timestamp);
+        out.writeInt(payload.length);
+        out.write(payload);
+    }
+
+    /**
+     * Writes the frame in whichever protocol the other side speaks, see stampEgress().
+     * @param out : stream to the other side
+     * @param binary : true for the binary protocol, false for a legacy writeUTF string
+     */
+    void writeTo(DataOutputStream out, boolean binary) throws IOException {
+        stampEgress();
+        if (binary) write(out);
+        else out.writeUTF(legacyText());
+    }
+
+    /**
+     * Reads one binary frame.
+     * @param in : stream from the other side
+     * @return the frame
+     * @throws IOException if the stream closes or the frame is malformed
+     */
+    static Frame read(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < HEADER_LENGTH || length > MAX_LENGTH) throw new IOException("Bad frame length " + length);
+        byte[] body = new byte[length];
+        in.readFully(body);
+        return read(ByteBuffer.wrap(body), length);
+    }
+
+    /**
+     * Decodes one binary frame from a buffer holding at least the whole frame.  A COMPRESSED payload is inflated, and the
+     * frame comes back without the flag.
+     * @param buf : buffer positioned just after the frame's length field
+     * @param length : the frame's length field
+     * @return the frame
+     * @throws IOException if the frame is malformed
+     */
+    static Frame read(ByteBuffer buf, int length) throws IOException {
+        byte type = buf.get();
+        boolean compressed = (type & COMPRESSED) != 0;
+        type &= ~COMPRESSED;
+        int n = buf.getShort() & 0xFFFF;
+        if (HEADER_LENGTH + n > length) throw new IOException("Bad name length " + n);
+        long handle = NO_HANDLE;
+        String name = "";
+        if (type == SEND) {
+            if (n != 8) throw new IOException("Bad handle length " + n);
+            handle = buf.getLong();
+        }
+        else {
+            byte[] nameBytes = new byte[n];
+            buf.get(nameBytes);
+            name = new String(nameBytes, StandardCharsets.UTF_8);
+        }
+        long timestamp = buf.getLong();
+        int p = buf.getInt();
+        if (HEADER_LENGTH + n + p != length) throw new IOException("Bad payload length " + p);
+        byte[] payload = p == 0 ? EMPTY : new byte[p];
+        buf.get(payload);
+        if (compressed) payload = Compression.inflate(payload);
+        if (type == SEND) return new Frame(handle, timestamp, payload);
+        return new Frame(type, name, timestamp, payload);
+    }
+
+    /**
+     * Encodes the frame for a non-blocking channel.
+     * @param binary : true for the binary protocol, false for a legacy writeUTF string
+     * @return a buffer ready to be written
+     */
+    ByteBuffer encode(boolean binary) throws IOException {
+        return binary ? encodeBinary() : encodeUTF(legacyText());
+    }
+
+    // Encodes the frame in the binary format, into a heap buffer of exactly the frame's size
+    ByteBuffer encodeBinary() {
+        byte[] n = nameField();
+        ByteBuffer buf = ByteBuffer.allocate(4 + HEADER_LENGTH + n.length + payload.length);
+        buf.putInt(HEADER_LENGTH + n.length + payload.length);
+        buf.put(type);
+        buf.putShort((short) n.length);
+        buf.put(n);
+        buf.putLong(timestamp);
+        buf.putInt(payload.length);
+        buf.put(payload);
+        buf.flip();
+        return buf;
+    }
+
+    /**
+     * Translates the frame into the ":::" separated string a legacy client expects.
+     * @return "warning:::0:::text" for warnings, otherwise "sender:::timestamp:::text"
+     */
+    String toLegacy() {
+        if (type == WARNING) return "warning:::0:::" + text();
+        return name + ":::" + timestamp + ":::" + text();
+    }
+
+    /**
+     * Whether toLegacy() fits in one writeUTF string.  Only frames of more than about 20,000 characters are measured.
+     */
+    boolean fitsLegacy() {
+        //a byte of UTF-8 decodes to at most one char, and a char takes at most 3 bytes of modified UTF-8
+        if (3 * (payload.length + name.length() + 48) <= MAX_UTF_LENGTH) return true;
+        String text = toLegacy();
+        long utflen = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            utflen += (c >= 0x0001 && c <= 0x007F) ? 1 : (c <= 0x07FF) ? 2 : 3;
+        }
+        return utflen <= MAX_UTF_LENGTH;
+    }
+
+    /**
+     * The string a legacy client is sent for this frame: toLegacy(), or if that does not fit in one writeUTF a warning
+     * naming the sender in its place.  The message is dropped rather than failing the write again every time the client
+     * logs in.
+     */
+    String legacyText() {
+        if (fitsLegacy()) return toLegacy();
+        return warning(String.format("A message from %s was too long for this client (%d bytes), it was not delivered.",
+                name, payload.length)).toLegacy();
+    }
+
+    /**
+     * Translates a string sent by a legacy client into a frame.
+     * Message Types:
+     *     "robotuser:::time:::text"      -> ROBOT
+     *     "username:::old:::new"         -> RENAME
+     *     "closing:::histogram"          -> CLOSING (LatencyHistogram.encodeText(), or delays separated by ":::")
+     *     "join:::#channel"              -> JOIN
+     *     "leave:::#channel"             -> LEAVE
+     *     "recipient:::time:::text"      -> MSG
+     * Only the first two separators are split on, the rest of the string is kept as the payload exactly as sent.
+     * @param text : the string read with readUTF()
+     * @return the frame
+     */
+    static Frame fromLegacy(String text) {
+        int first = text.indexOf(":::");
+        String head = first < 0 ? text : text.substring(0, first);
+        String rest = first < 0 ? "" : text.substring(first + 3);
+        if (head.equals("closing")) return new Frame(CLOSING, "", 0, rest);
+        if (head.equals("join")) return new Frame(JOIN, rest, 0, EMPTY);
+        if (head.equals("leave")) return new Frame(LEAVE, rest, 0, EMPTY);
+        int second = rest.indexOf(":::");
+        String field = second < 0 ? rest : rest.substring(0, second);
+        String body = second < 0 ? "" : rest.substring(second + 3);
+        if (head.equals("username")) return new Frame(RENAME, body, 0, field);
+        long timestamp;
+        try {
+            timestamp = Long.parseLong(field);
+        } catch (NumberFormatException e) {
+            timestamp = 0;
+        }
+        if (head.equals("robotuser")) return new Frame(ROBOT, "", timestamp, body);
+        return new Frame(MSG, head, timestamp, body);
+    }
+
+    /**
+     * Reads the rest of a legacy writeUTF string whose 2 byte length has already been read.
+     * @param in : stream from the client
+     * @param len : the length that was read
+     * @return the decoded string
+     */
+    static String readUTF(DataInputStream in, int len) throws IOException {
+        byte[] bytes = new byte[len];
+        in.readFully(bytes);
+        return readUTF(ByteBuffer.wrap(bytes), len);
+    }
+
+    /**
+     * Decodes len bytes of modified UTF-8 (as written by DataOutputStream.writeUTF) from the buffer.
+     * @param buf : buffer positioned at the start of the string
+     * @param len : encoded length in bytes
+     * @return the decoded string
+     * @throws UTFDataFormatException if the bytes are not valid modified UTF-8
+     */
+    static String readUTF(ByteBuffer buf, int len) throws UTFDataFormatException {
+        char[] chars = new char[len];
+        int n = 0;
+        int end = buf.position() + len;
+        while (buf.position() < end) {
+            int b = buf.get() & 0xFF;
+            if (b < 0x80) {
+                chars[n++] = (char) b;
+            } else if ((b >> 5) == 0x6 && buf.position() < end) {
+                chars[n++] = (char) (((b & 0x1F) << 6) | (buf.get() & 0x3F));
+            } else if ((b >> 4) == 0xE && buf.position() + 1 < end) {
+                chars[n++] = (char) (((b & 0x0F) << 12) | ((buf.get() & 0x3F) << 6) | (buf.get() & 0x3F));
+            } else {
+                throw new UTFDataFormatException("malformed input around byte " + buf.position());
+            }
+        }
+        return new String(chars, 0, n);
+    }
+
+    /**
+     * Encodes a string the same way DataOutputStream.writeUTF does: a 2 byte length followed by modified UTF-8.
+     * @param text : the string to encode
+     * @return a buffer ready to be written
+     * @throws UTFDataFormatException if the encoded string is longer than 65535 bytes
+     */
+    static ByteBuffer encodeUTF(String text) throws UTFDataFormatException {
+        int utflen = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            utflen += (c >= 0x0001 && c <= 0x007F) ? 1 : (c <= 0x07FF) ? 2 : 3;
+        }
+        if (utflen > 65535) throw new UTFDataFormatException("encoded string too long: " + utflen + " bytes");
+        ByteBuffer buf = ByteBuffer.allocate(2 + utflen);
+        buf.putShort((short) utflen);
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) {
+                buf.put((byte) c);
+            } else if (c <= 0x07FF) {
+                buf.put((byte) (0xC0 | ((c >> 6) & 0x1F)));
+                buf.put((byte) (0x80 | (c & 0x3F)));
+            } else {
+                buf.put((byte) (0xE0 | ((c >> 12) & 0x0F)));
+                buf.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                buf.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+        buf.flip();
+        return buf;
+    }
+}
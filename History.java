@@ -1,77 +1,243 @@
-import java.util.LinkedList;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.ListIterator;
-import java.lang.StringBuilder;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 
-/** 
+/**
  * History.java
  * History class stores the message transaction history between a client
  * 		and other clients
+ *
+ * Every message gets a sequence number, and a reader keeps the sequence number it has read up to (its cursor) so it can
+ * ask for only the messages added since, see since().  Only the latest window messages are kept: older ones are
+ * forgotten as new ones arrive, so adding a message and reading the new ones take constant time however long the
+ * session.  Each conversation (the messages to and from one username) is also indexed, see conversation().
+ *
+ * A History opened on a file also keeps every message in a HistoryArchive on disk.  Opening it reads no messages: the
+ * latest window messages are read back from the archive a page (HistoryArchive.PAGE) at a time, newest first, as far
+ * back as a reader asks for, and older ones are read from the archive when between() or search() need them.
  */
-public class History {  
+public class History implements Closeable {
 
-	// Stores the message history
-	private LinkedList< Message> history = new LinkedList< Message>();
+	// Messages kept by default, see History(int)
+	static final int DEFAULT_WINDOW = 100_000;
 
-	// Creates a new Message, and adds it to the history
-	public void addMessage(String username, boolean incoming, String message) {
-		Message m = new Message(username, incoming, message);
-		history.add(m);
+	private final int window;
+	// The messages in the window, message seq at ring[seq % ring.length].  Grows up to window before it wraps around.
+	private Message[] ring;
+	// Sequence numbers of the oldest message kept and of the next message
+	private long first;
+	private long next;
+	// Sequence number of the oldest message read into the window.  Those from first up to it are still only in the archive.
+	private long loaded;
+	// The messages kept for each conversation, oldest first
+	private final Map<String, ArrayDeque<Message>> conversations = new HashMap<>();
+	// Every message ever added, null for a History kept only in memory
+	private HistoryArchive archive;
+
+	public History() {
+		this(DEFAULT_WINDOW);
 	}
 
-	// Returns an array of the messages, along with text containing who they are from
-	public String[] getMessages() {
+	/**
+	 * History constructor
+	 * @param window : most messages kept in memory
+	 */
+	public History(int window) {
+		if (window <= 0) throw new IllegalArgumentException("window must be positive");
+		this.window = window;
+		this.ring = new Message[Math.min(16, window)];
+	}
 
-		LinkedList< String> msg = new LinkedList< String>();
-		ListIterator<Message> listIterator = history.listIterator();
+	/**
+	 * Opens a History kept on disk.  Its window is the latest window messages, read back when a reader first asks for
+	 * them, see load().
+	 * @param base : path of the archive's files, without extension (see HistoryArchive)
+	 * @param window : most messages kept in memory
+	 * @throws IOException if the archive cannot be opened
+	 */
+	public static History open(File base, int window) throws IOException {
+		History history = new History(window);
+		HistoryArchive archive = new HistoryArchive(base);
+		history.next = history.loaded = archive.count();
+		history.first = Math.max(0, history.next - window);
+		history.ring = new Message[(int) Math.max(history.ring.length, history.next - history.first)];
+		history.archive = archive;
+		return history;
+	}
 
-		while (listIterator.hasNext()) {
-			Message nextMessage = listIterator.next();
-			msg.add(nextMessage.getDirectionText() + nextMessage.getUsername());
-			msg.add(nextMessage.getMessage());
+	/**
+	 * Reads the messages of the window from a sequence number up to the oldest one read so far back from the archive,
+	 * a page at a time, newest page first, adding each to the front of its conversation.  If the archive cannot be read
+	 * the messages not read yet are dropped from the window.
+	 * @param from : oldest sequence number wanted
+	 */
+	private void load(long from) {
+		from = Math.max(from, first);
+		try {
+			while (loaded > from) {
+				long start = Math.max(from, loaded - HistoryArchive.PAGE);
+				List<Message> page = archive.read(start, loaded);
+				for (int i = page.size() - 1; i >= 0; i--) {
+					Message m = page.get(i);
+					ring[(int) (m.getSeq() % ring.length)] = m;
+					conversations.computeIfAbsent(m.getUsername(), u -> new ArrayDeque<>()).addFirst(m);
+				}
+				loaded = start;
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			first = loaded;
 		}
-		
-		return msg.toArray(new String[msg.size()]);
 	}
 
-}
+	// Creates a new Message, and adds it to the history (and its archive).  Returns its sequence number.
+	public synchronized long addMessage(String username, boolean incoming, String message) {
+		Message m = null;
+		if (archive != null) {
+			try {
+				m = archive.append(username, incoming, message);
+			} catch (IOException e) {
+				//the message is still shown, it is only missing from the archive
+				e.printStackTrace();
+			}
+		}
+		if (m == null) m = new Message(next, System.currentTimeMillis(), username, incoming, message);
+		keep(m);
+		return m.getSeq();
+	}
 
-/** 
- *  Message class stores message information, including whether it
- * 			is an incoming or outgoing message, the username, and 
- *			message content.
- */
-class Message {
-
-	private boolean is_incoming;
-	private String message;
-	private String username;
-
-	// Message constructor, stores username, incoming, and message as local vars
-	public Message(String uname, boolean incoming, String m) {
-		is_incoming = incoming;
-		message = m;
-		username= uname;
-	}	
-
-	// Returns "To: " if message is outgoing, and "From: " if message is incoming
-	public String getDirectionText() {
-		if (is_incoming) {
-			return "From: ";
-		} else {
-			return "To: ";
+	// Adds a message with the next sequence number to the window
+	private void keep(Message m) {
+		if (next - first == ring.length) {
+			if (ring.length < window) grow((int) Math.min(window, 2L * ring.length));
+			else forgetOldest();
+		}
+		ring[(int) (next % ring.length)] = m;
+		next++;
+		conversations.computeIfAbsent(m.getUsername(), u -> new ArrayDeque<>()).addLast(m);
+	}
+
+	// Moves the ring to a larger array.  Each message goes to the slot its seq maps to in the new length, as a History
+	// reopened from its archive starts at a seq that is not a multiple of either length.
+	private void grow(int length) {
+		Message[] grown = new Message[length];
+		for (long seq = first; seq < next; seq++)
+			grown[(int) (seq % length)] = ring[(int) (seq % ring.length)];
+		ring = grown;
+	}
+
+	// Drops the oldest message from the window and from its conversation
+	private void forgetOldest() {
+		int i = (int) (first % ring.length);
+		if (ring[i] == null) {
+			//never read back from the archive
+			first++;
+			loaded = Math.max(loaded, first);
+			return;
+		}
+		Message old = ring[i];
+		ring[i] = null;
+		first++;
+		ArrayDeque<Message> conversation = conversations.get(old.getUsername());
+		conversation.pollFirst();
+		if (conversation.isEmpty()) conversations.remove(old.getUsername());
+	}
+
+	// Sequence number the next message will get: the cursor of a reader that has read everything
+	public synchronized long end() {
+		return next;
+	}
+
+	/**
+	 * Returns the messages added since a cursor, oldest first.  Messages that have already left the window are skipped.
+	 * @param cursor : sequence number of the first message wanted, e.g. end() when the reader last looked
+	 * @return the messages, in the order they were added
+	 */
+	public synchronized List<Message> since(long cursor) {
+		load(cursor);
+		long from = Math.max(cursor, first);
+		List<Message> messages = new ArrayList<>((int) Math.max(0, next - from));
+		for (long seq = from; seq < next; seq++)
+			messages.add(ring[(int) (seq % ring.length)]);
+		return messages;
+	}
+
+	/**
+	 * Returns the messages to and from one username added since a cursor, oldest first.  Takes time proportional to the
+	 * number of messages returned.
+	 * @param username : the other side of the conversation
+	 * @param cursor : sequence number of the first message wanted, 0 for the whole conversation still in the window
+	 * @return the messages, in the order they were added
+	 */
+	public synchronized List<Message> conversation(String username, long cursor) {
+		load(cursor);
+		ArrayDeque<Message> conversation = conversations.get(username);
+		LinkedList<Message> messages = new LinkedList<>();
+		if (conversation == null) return messages;
+		Iterator<Message> newestFirst = conversation.descendingIterator();
+		while (newestFirst.hasNext()) {
+			Message m = newestFirst.next();
+			if (m.getSeq() < cursor) break;
+			messages.addFirst(m);
 		}
+		return messages;
+	}
+
+	/**
+	 * Returns the messages in a time range, from the archive if there is one and otherwise from the window.
+	 * @param username : the other side of the conversation, or null for every conversation
+	 * @param from : earliest time (System.currentTimeMillis()), inclusive
+	 * @param to : latest time, exclusive
+	 * @return the messages, oldest first
+	 */
+	public synchronized List<Message> between(String username, long from, long to) throws IOException {
+		if (archive != null) return archive.between(username, from, to);
+		List<Message> messages = new ArrayList<>();
+		for (Message m : since(first))
+			if (m.getTime() >= from && m.getTime() < to && (username == null || username.equals(m.getUsername())))
+				messages.add(m);
+		return messages;
 	}
 
-	// Returns the message body
-	public String getMessage() {
-		return message;
+	/**
+	 * Returns the messages that contain every word of a query, ignoring case, from the archive if there is one and
+	 * otherwise from the window.
+	 * @param query : one or more words
+	 * @return the messages, oldest first
+	 */
+	public synchronized List<Message> search(String query) throws IOException {
+		if (archive != null) return archive.search(query);
+		List<Message> messages = new ArrayList<>();
+		Set<String> wanted = HistoryArchive.words(query);
+		for (Message m : since(first))
+			if (HistoryArchive.words(m.getMessage()).containsAll(wanted)) messages.add(m);
+		return messages;
 	}
 
-	// Returns the username
-	public String getUsername() {
-		return username;
+	// Writes the archive out and closes it
+	@Override
+	public synchronized void close() throws IOException {
+		if (archive != null) archive.close();
+		archive = null;
+	}
+
+	// Returns an array of the messages in the window, along with text containing who they are from
+	public synchronized String[] getMessages() {
+		List<String> msg = new ArrayList<>();
+		for (Message m : since(first)) {
+			msg.add(m.getDirectionText() + m.getUsername());
+			msg.add(m.getMessage());
+		}
+		return msg.toArray(new String[msg.size()]);
 	}
 
 }
@@ -0,0 +1,397 @@
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * HistoryArchive.java
+ * Keeps every message of a History on disk, in three files next to each other:
+ *     base.names : the usernames seen so far, each as a varint length and UTF-8 bytes.  A username's id is its position.
+ *     base.log   : one record per message, appended in order: varint username id, incoming byte, varint time
+ *                  (milliseconds, never decreasing), varint body length and the UTF-8 body.
+ *     base.idx   : memory mapped.  The number of messages (8 bytes), then one 24 byte entry per message: its record's
+ *                  offset in the log, its time, its username id and its record's length.
+ * A message's sequence number is its position in the log, so any message is found with one index lookup and one read,
+ * and messages in a time range by binary search on the index.  Two kinds of postings (sorted sequence numbers) are kept
+ * in memory, each built the first time it is needed and kept up to date afterwards: those of every username, built from
+ * the index alone, so the messages of one username in a time range cost as much as there are of them; and those of
+ * every word, an inverted index for keyword search built by reading the log once.  The log is always read in pages of
+ * at most PAGE messages and PAGE_BYTES bytes.
+ *
+ * Opening an archive reads only the names and the index.  Log records the index does not cover (the index was lost, or
+ * the process stopped between the two writes) are indexed again, and a partial record at the end of the log is cut off.
+ */
+public class HistoryArchive implements Closeable {
+
+    private static final int HEADER = 8;
+    private static final int ENTRY = 24;
+    //most messages, and bytes of the log unless a single record is larger, read at once
+    static final int PAGE = 10_000;
+    private static final int PAGE_BYTES = 4 << 20;
+
+    private final FileChannel names;
+    private final FileChannel log;
+    private final FileChannel indexFile;
+    private MappedByteBuffer index;
+    //number of messages, and where the next record goes
+    private long count;
+    private long logEnd;
+    private long lastTime;
+
+    private final List<String> dictionary = new ArrayList<>();
+    private final Map<String, Integer> ids = new HashMap<>();
+    //word -> sequence numbers of the messages containing it, null until the first search()
+    private Map<String, Postings> words;
+    //username id -> sequence numbers of the messages to and from it, null until the first between() for one username
+    private List<Postings> peers;
+
+    /**
+     * Opens (or creates) the archive stored at base.names, base.log and base.idx.
+     * @param base : the files' path without extension
+     * @throws IOException if the files cannot be opened or the log is corrupt
+     */
+    HistoryArchive(File base) throws IOException {
+        File dir = base.getAbsoluteFile().getParentFile();
+        if (dir != null) dir.mkdirs();
+        names = open(new File(base.getPath() + ".names"));
+        log = open(new File(base.getPath() + ".log"));
+        indexFile = open(new File(base.getPath() + ".idx"));
+        loadNames();
+        long entries = indexFile.size() < HEADER ? 0 : (indexFile.size() - HEADER) / ENTRY;
+        map(Math.max(1024, entries));
+        count = Math.min(index.getLong(0), entries);
+        //index entries for records that never made it to the log are dropped
+        while (count > 0 && offset(count - 1) + length(count - 1) > log.size())
+            count--;
+        logEnd = count == 0 ? 0 : offset(count - 1) + length(count - 1);
+        lastTime = count == 0 ? 0 : time(count - 1);
+        recover();
+    }
+
+    private static FileChannel open(File f) throws IOException {
+        return FileChannel.open(f.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    // Reads the whole names file into the dictionary
+    private void loadNames() throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate((int) names.size());
+        names.read(buf, 0);
+        buf.flip();
+        while (buf.hasRemaining()) {
+            int start = buf.position();
+            try {
+                int n = (int) readVarLong(buf);
+                if (n > buf.remaining()) throw new EOFException();
+                byte[] b = new byte[n];
+                buf.get(b);
+                String name = new String(b, StandardCharsets.UTF_8);
+                ids.put(name, dictionary.size());
+                dictionary.add(name);
+            } catch (IOException e) {
+                //a name cut off by a crash, it is written again when the user next appears
+                names.truncate(start);
+                break;
+            }
+        }
+        names.position(names.size());
+    }
+
+    // Maps the index file with room for at least the given number of entries
+    private void map(long entries) throws IOException {
+        index = indexFile.map(FileChannel.MapMode.READ_WRITE, 0, HEADER + entries * ENTRY);
+    }
+
+    // Indexes the log records after logEnd, and cuts off a record left incomplete
+    private void recover() throws IOException {
+        long size = log.size();
+        if (logEnd == size) return;
+        ByteBuffer buf = ByteBuffer.allocate((int) Math.min(size - logEnd, Integer.MAX_VALUE - 8));
+        log.read(buf, logEnd);
+        buf.flip();
+        long base = logEnd;
+        while (buf.hasRemaining()) {
+            int start = buf.position();
+            try {
+                int user = (int) readVarLong(buf);
+                buf.get();
+                long time = readVarLong(buf);
+                int n = (int) readVarLong(buf);
+                if (n > buf.remaining() || user >= dictionary.size()) throw new EOFException();
+                buf.position(buf.position() + n);
+                addEntry(base + start, time, user, buf.position() - start);
+            } catch (IOException | BufferUnderflowException e) {
+                break;
+            }
+        }
+        log.truncate(logEnd);
+    }
+
+    // Appends an index entry for the record at offset, and moves logEnd past it
+    private void addEntry(long offset, long time, int user, int length) throws IOException {
+        if (HEADER + (count + 1) * ENTRY > index.capacity()) map(2 * count + 1024);
+        int at = (int) (HEADER + count * ENTRY);
+        index.putLong(at, offset);
+        index.putLong(at + 8, time);
+        index.putInt(at + 16, user);
+        index.putInt(at + 20, length);
+        count++;
+        index.putLong(0, count);
+        logEnd = offset + length;
+        lastTime = Math.max(lastTime, time);
+    }
+
+    private long offset(long seq) {
+        return index.getLong((int) (HEADER + seq * ENTRY));
+    }
+
+    private long time(long seq) {
+        return index.getLong((int) (HEADER + seq * ENTRY + 8));
+    }
+
+    private int user(long seq) {
+        return index.getInt((int) (HEADER + seq * ENTRY + 16));
+    }
+
+    private int length(long seq) {
+        return index.getInt((int) (HEADER + seq * ENTRY + 20));
+    }
+
+    // Number of messages in the archive, which is also the sequence number of the next one
+    long count() {
+        return count;
+    }
+
+    /**
+     * Appends a message.  Its time is raised to the previous message's if the clock went back, so the index stays sorted.
+     * @return the message as stored, with its sequence number and time
+     */
+    Message append(String username, boolean incoming, String text) throws IOException {
+        Integer id = ids.get(username);
+        if (id == null) {
+            byte[] name = username.getBytes(StandardCharsets.UTF_8);
+            ByteArrayOutputStream record = new ByteArrayOutputStream(name.length + 5);
+            writeVarLong(record, name.length);
+            record.write(name);
+            names.write(ByteBuffer.wrap(record.toByteArray()));
+            id = dictionary.size();
+            ids.put(username, id);
+            dictionary.add(username);
+        }
+        long time = Math.max(lastTime, System.currentTimeMillis());
+        byte[] body = text.getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream record = new ByteArrayOutputStream(body.length + 16);
+        writeVarLong(record, id);
+        record.write(incoming ? 1 : 0);
+        writeVarLong(record, time);
+        writeVarLong(record, body.length);
+        record.write(body);
+        ByteBuffer buf = ByteBuffer.wrap(record.toByteArray());
+        long offset = logEnd;
+        while (buf.hasRemaining())
+            log.write(buf, offset + buf.position());
+        long seq = count;
+        addEntry(offset, time, id, buf.limit());
+        if (words != null) addWords(seq, text);
+        if (peers != null) addPeer(seq, id);
+        return new Message(seq, time, username, incoming, text);
+    }
+
+    /**
+     * Reads the messages from one sequence number up to (not including) another, a page at a time.
+     */
+    List<Message> read(long from, long to) throws IOException {
+        from = Math.max(0, from);
+        to = Math.min(to, count);
+        List<Message> messages = new ArrayList<>((int) Math.min(PAGE, Math.max(0, to - from)));
+        long seq = from;
+        while (seq < to) {
+            //one read of the log for every record of the page, which has at least one
+            long start = offset(seq);
+            long end = seq + 1;
+            while (end < to && end - seq < PAGE && offset(end) + length(end) - start <= PAGE_BYTES)
+                end++;
+            ByteBuffer buf = ByteBuffer.allocate((int) (offset(end - 1) + length(end - 1) - start));
+            while (buf.hasRemaining() && log.read(buf, start + buf.position()) >= 0) ;
+            buf.flip();
+            for (; seq < end; seq++)
+                messages.add(decode(seq, buf));
+        }
+        return messages;
+    }
+
+    // Decodes the record at the buffer's position
+    private Message decode(long seq, ByteBuffer buf) throws IOException {
+        String username = dictionary.get((int) readVarLong(buf));
+        boolean incoming = buf.get() != 0;
+        long time = readVarLong(buf);
+        int n = (int) readVarLong(buf);
+        String text = new String(buf.array(), buf.arrayOffset() + buf.position(), n, StandardCharsets.UTF_8);
+        buf.position(buf.position() + n);
+        return new Message(seq, time, username, incoming, text);
+    }
+
+    // Reads one message by sequence number
+    Message get(long seq) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(length(seq));
+        while (buf.hasRemaining() && log.read(buf, offset(seq) + buf.position()) >= 0) ;
+        buf.flip();
+        return decode(seq, buf);
+    }
+
+    /**
+     * Finds the messages in a time range, optionally only those to and from one username.
+     * @param username : the other side of the conversation, or null for everyone
+     * @param from : earliest time (System.currentTimeMillis()), inclusive
+     * @param to : latest time, exclusive
+     * @return the messages, oldest first
+     */
+    List<Message> between(String username, long from, long to) throws IOException {
+        Integer id = username == null ? null : ids.get(username);
+        List<Message> messages = new ArrayList<>();
+        if (username != null && id == null) return messages;
+        long lo = firstAt(from);
+        long hi = firstAt(to);
+        if (id == null) return read(lo, hi);
+        if (peers == null) {
+            peers = new ArrayList<>();
+            for (long seq = 0; seq < count; seq++)
+                addPeer(seq, user(seq));
+        }
+        Postings p = id < peers.size() ? peers.get(id) : null;
+        if (p == null) return messages;
+        for (int i = p.lowerBound(lo); i < p.size && p.seqs[i] < hi; i++)
+            messages.add(get(p.seqs[i]));
+        return messages;
+    }
+
+    // The sequence number of the first message at or after a time, count if there is none
+    private long firstAt(long time) {
+        long lo = 0, hi = count;
+        while (lo < hi) {
+            long mid = (lo + hi) >>> 1;
+            if (time(mid) < time) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    private void addPeer(long seq, int id) {
+        while (peers.size() <= id)
+            peers.add(null);
+        if (peers.get(id) == null) peers.set(id, new Postings());
+        peers.get(id).add(seq);
+    }
+
+    /**
+     * Finds the messages containing every word of a query, ignoring case.  The first search reads the whole log to build
+     * the inverted index.
+     * @param query : one or more words
+     * @return the messages, oldest first
+     */
+    List<Message> search(String query) throws IOException {
+        if (words == null) {
+            words = new HashMap<>();
+            for (long seq = 0; seq < count; seq += PAGE)
+                for (Message m : read(seq, seq + PAGE))
+                    addWords(m.getSeq(), m.getMessage());
+        }
+        Postings matches = null;
+        for (String word : words(query)) {
+            Postings p = words.get(word);
+            if (p == null) return new ArrayList<>();
+            matches = matches == null ? p : matches.intersect(p);
+        }
+        List<Message> messages = new ArrayList<>();
+        if (matches == null) return messages;
+        for (int i = 0; i < matches.size; i++)
+            messages.add(get(matches.seqs[i]));
+        return messages;
+    }
+
+    private void addWords(long seq, String text) {
+        for (String word : words(text))
+            words.computeIfAbsent(word, w -> new Postings()).add(seq);
+    }
+
+    // The distinct lower case words of a text: runs of letters and digits
+    static Set<String> words(String text) {
+        Set<String> words = new LinkedHashSet<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean part = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (part && start < 0) start = i;
+            else if (!part && start >= 0) {
+                words.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+        return words;
+    }
+
+    // Writes the index and log out to disk and closes the files
+    @Override
+    public void close() throws IOException {
+        index.force();
+        log.force(false);
+        names.close();
+        log.close();
+        indexFile.close();
+    }
+
+    // Sequence numbers of the messages containing a word, in increasing order
+    private static class Postings {
+        long[] seqs = new long[4];
+        int size;
+
+        void add(long seq) {
+            if (size > 0 && seqs[size - 1] == seq) return;
+            if (size == seqs.length) seqs = Arrays.copyOf(seqs, 2 * size);
+            seqs[size++] = seq;
+        }
+
+        // Index of the first sequence number at or after seq, size if there is none
+        int lowerBound(long seq) {
+            int i = Arrays.binarySearch(seqs, 0, size, seq);
+            return i < 0 ? -i - 1 : i;
+        }
+
+        Postings intersect(Postings other) {
+            Postings both = new Postings();
+            int i = 0, j = 0;
+            while (i < size && j < other.size) {
+                if (seqs[i] < other.seqs[j]) i++;
+                else if (seqs[i] > other.seqs[j]) j++;
+                else {
+                    both.add(seqs[i]);
+                    i++;
+                    j++;
+                }
+            }
+            return both;
+        }
+    }
+
+    // Writes 7 bits per byte, low bits first, with the top bit set on every byte but the last
+    private static void writeVarLong(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarLong(ByteBuffer buf) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (!buf.hasRemaining()) throw new EOFException();
+            byte b = buf.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) return value;
+        }
+        throw new IOException("Bad varint in history archive");
+    }
+}
@@ -0,0 +1,247 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * LatencyHistogram.java
+ * Histogram of latencies (or any non-negative long values) with a bounded relative error, in the style of HdrHistogram.
+ * Values below 128 are counted exactly, larger values fall into buckets that are 1/64 of their power of two wide, so
+ * every value is reported within 1.6% of what was recorded, from nanoseconds up to Long.MAX_VALUE, in a fixed 29 KB of
+ * counts.  Recording is a few shifts and an array increment and never allocates.
+ *
+ * A histogram is not thread safe.  Each thread records into its own, and the results are combined with add().
+ * encode() packs the non-empty buckets into a few bytes each (a few KB at most), so a client can send its whole
+ * histograms to the Server in one frame, and decode() reads back either those or a legacy ":::" separated list of delays.
+ */
+public class LatencyHistogram {
+
+    //values below SUB_COUNT get a bucket each, above that every power of two is split into HALF buckets
+    private static final int SUB_BITS = 7;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int HALF = SUB_COUNT / 2;
+    static final int BUCKETS = (64 - SUB_BITS + 1) * HALF + HALF;
+
+    //first byte of an encoded histogram.  Never the first byte of a legacy delay list, which starts with a digit.
+    static final byte ENCODING = 1;
+    //first character of an encoded histogram sent as text by a legacy client
+    static final char TEXT_ENCODING = 'H';
+
+    private final long[] counts = new long[BUCKETS];
+    private long count;
+    private long max;
+    private long min = Long.MAX_VALUE;
+    private double sum;
+
+    // Bucket holding a value, also used by recorders that count buckets themselves (see Metrics.Histogram)
+    static int bucket(long value) {
+        if (value < SUB_COUNT) return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BITS - 1);
+        return (shift + 1) * HALF + (int) (value >>> shift) - HALF;
+    }
+
+    // Largest value that falls into a bucket
+    private static long highest(int index) {
+        if (index < SUB_COUNT) return index;
+        int shift = index / HALF - 1;
+        long sub = index % HALF + HALF;
+        return ((sub + 1) << shift) - 1;
+    }
+
+    /**
+     * Records one value.
+     * @param value : the value, negative values are recorded as 0
+     */
+    void record(long value) {
+        if (value < 0) value = 0;
+        counts[bucket(value)]++;
+        count++;
+        sum += value;
+        if (value > max) max = value;
+        if (value < min) min = value;
+    }
+
+    /**
+     * Records values counted elsewhere by bucket, each as the highest value of the bucket (but no more than max).
+     * @param index : the bucket, see bucket()
+     * @param n : how many values fell into it
+     * @param max : the largest value recorded
+     */
+    void recordBucket(int index, long n, long max) {
+        long value = Math.min(highest(index), max);
+        counts[index] += n;
+        count += n;
+        sum += (double) value * n;
+        if (value > this.max) this.max = value;
+        if (value < min) min = value;
+    }
+
+    // Adds every value recorded in another histogram to this one
+    void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++)
+            counts[i] += other.counts[i];
+        count += other.count;
+        sum += other.sum;
+        max = Math.max(max, other.max);
+        min = Math.min(min, other.min);
+    }
+
+    // Forgets every recorded value
+    void reset() {
+        Arrays.fill(counts, 0);
+        count = 0;
+        sum = 0;
+        max = 0;
+        min = Long.MAX_VALUE;
+    }
+
+    long count() {
+        return count;
+    }
+
+    long max() {
+        return max;
+    }
+
+    long min() {
+        return count == 0 ? 0 : min;
+    }
+
+    double mean() {
+        return count == 0 ? 0 : sum / count;
+    }
+
+    /**
+     * Returns the value at a percentile: at least that percentage of the recorded values are less than or equal to it
+     * (up to the histogram's precision, and never more than the largest value recorded).
+     * @param percentile : between 0 and 100
+     * @return the value, 0 if nothing was recorded
+     */
+    long percentile(double percentile) {
+        if (count == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) return Math.min(highest(i), max);
+        }
+        return max;
+    }
+
+    /**
+     * Summary of the histogram in one line.
+     * @param unit : size of the unit values are printed in, e.g. 1000 to print nanoseconds as microseconds
+     * @param name : name of the unit
+     */
+    String summary(long unit, String name) {
+        return String.format("n=%d mean=%.1f p50=%.1f p90=%.1f p99=%.1f p99.9=%.1f max=%.1f (%s)", count, mean() / unit,
+                (double) percentile(50) / unit, (double) percentile(90) / unit, (double) percentile(99) / unit,
+                (double) percentile(99.9) / unit, (double) max / unit, name);
+    }
+
+    /**
+     * Packs the histogram into bytes: ENCODING, then min, max, the sum of the values and the number of non-empty buckets,
+     * then (gap from the previous non-empty bucket, count) for each of them, all as variable length integers.  Encoded
+     * histograms can be concatenated and decoded together.
+     * @return the encoded histogram
+     */
+    byte[] encode() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64);
+        out.write(ENCODING);
+        writeVarLong(out, min());
+        writeVarLong(out, max);
+        writeVarLong(out, Double.doubleToRawLongBits(sum));
+        int buckets = 0;
+        for (long c : counts)
+            if (c != 0) buckets++;
+        writeVarLong(out, buckets);
+        int previous = -1;
+        for (int i = 0; i < BUCKETS; i++) {
+            if (counts[i] == 0) continue;
+            writeVarLong(out, i - previous);
+            writeVarLong(out, counts[i]);
+            previous = i;
+        }
+        return out.toByteArray();
+    }
+
+    // The encoded histogram as text a legacy client can send with writeUTF, always well under its 64 KB limit
+    String encodeText() {
+        return TEXT_ENCODING + Base64.getEncoder().encodeToString(encode());
+    }
+
+    /**
+     * Reads the histograms sent by a client: bytes from one or more encode(), text from encodeText(), or the ":::"
+     * separated delays in milliseconds that clients sent before histograms existed.
+     * @param payload : the client's CLOSING payload
+     * @param legacyUnit : what each legacy delay is multiplied by, e.g. 1000 to record milliseconds as microseconds
+     * @return the histograms, in the order they were encoded
+     * @throws IOException if the payload is malformed
+     */
+    static List<LatencyHistogram> decode(byte[] payload, long legacyUnit) throws IOException {
+        String text = new String(payload, StandardCharsets.UTF_8);
+        try {
+            if (!text.isEmpty() && text.charAt(0) == TEXT_ENCODING)
+                payload = Base64.getDecoder().decode(text.substring(1));
+            else if (payload.length == 0 || payload[0] != ENCODING) {
+                LatencyHistogram histogram = new LatencyHistogram();
+                for (String delay : text.split(":::"))
+                    if (!delay.isEmpty()) histogram.record(Long.parseLong(delay) * legacyUnit);
+                return List.of(histogram);
+            }
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Bad delays: " + e.getMessage());
+        }
+        List<LatencyHistogram> histograms = new ArrayList<>();
+        ByteBuffer buf = ByteBuffer.wrap(payload);
+        while (buf.hasRemaining()) {
+            if (buf.get() != ENCODING) throw new IOException("Bad histogram encoding");
+            histograms.add(decode(buf));
+        }
+        return histograms;
+    }
+
+    // Reads the fields after ENCODING
+    private static LatencyHistogram decode(ByteBuffer buf) throws IOException {
+        LatencyHistogram histogram = new LatencyHistogram();
+        long min = readVarLong(buf);
+        histogram.max = readVarLong(buf);
+        histogram.sum = Double.longBitsToDouble(readVarLong(buf));
+        long buckets = readVarLong(buf);
+        int index = -1;
+        for (long b = 0; b < buckets; b++) {
+            long gap = readVarLong(buf);
+            long count = readVarLong(buf);
+            if (gap <= 0 || index + gap >= BUCKETS || count <= 0) throw new IOException("Bad histogram bucket");
+            index += (int) gap;
+            histogram.counts[index] = count;
+            histogram.count += count;
+        }
+        if (histogram.count > 0) histogram.min = min;
+        return histogram;
+    }
+
+    // Writes 7 bits per byte, low bits first, with the top bit set on every byte but the last
+    private static void writeVarLong(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarLong(ByteBuffer buf) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (!buf.hasRemaining()) throw new IOException("Truncated histogram");
+            byte b = buf.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) return value;
+        }
+        throw new IOException("Bad histogram varint");
+    }
+}
@@ -0,0 +1,703 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+
+/**
+ * LoadGenerator.java
+ * Simulates thousands of chat clients against a running Server from one JVM over loopback, instead of starting a Client
+ * JVM per user like shelltester.bash.  The clients are spread over a few selector threads, log in like Client does, and
+ * send messages to each other at a fixed total rate for a fixed time, reconnecting some of them along the way if asked.
+ *
+ * Usage: java LoadGenerator host port [--name=value ...]
+ *   --clients=N               : simulated users (default 1000), logged in as PREFIX0 .. PREFIX(N-1)
+ *   --prefix=NAME             : username prefix (default "load")
+ *   --rate=N                  : messages per second sent by all clients together (default 10000)
+ *   --size=SPEC               : message text size in bytes: N, MIN-MAX (uniform) or exp:MEAN (exponential), default 64
+ *   --to=random|hotspot|fanin : recipients are a uniformly random user (default), mostly one of a few hot users, or
+ *                               always PREFIX0
+ *   --hot=FRACTION            : share of users that are hot with --to=hotspot (default 0.01)
+ *   --hot-share=FRACTION      : share of messages sent to hot users with --to=hotspot (default 0.9)
+ *   --churn=N                 : clients that drop their connection and log in again, per second (default 0)
+ *   --warmup=SECONDS          : how long to send before measuring (default 5)
+ *   --duration=SECONDS        : how long to measure for (default 30)
+ *   --threads=N               : selector threads driving the clients (default: number of available processors)
+ *   --protocol=binary|legacy  : wire protocol the clients speak (default binary)
+ *   --compress=on|off         : binary clients offer DEFLATE at login (default off), see Compression
+ *   --compress-threshold=BYTES: smallest message text the clients send deflated (default 512)
+ *   --tls=on|off              : connect over TLS, to a Server started with --tls (default off), see TlsChannel.  The
+ *                               Server's certificate is checked against -Djavax.net.ssl.trustStore.  Clients that log in
+ *                               again for --churn resume their TLS session.
+ *
+ * Latency is measured from when a message was due to be sent, not when it actually went out, so a generator held up by
+ * a slow Server does not hide the delay.  Sender and recipient share this JVM, so the System.nanoTime() of that moment
+ * travels in the message's timestamp field, which the Server forwards unchanged.
+ *
+ * Prints a line per second while running, then a summary ending with one RESULT line of key=value pairs for scripts
+ * (see loadtester.bash).  The summary includes the bytes the clients wrote and read and the CPU time the generator's
+ * threads took while measuring, so runs with and without --compress show what compression costs and saves.  With --tls
+ * the bytes are those of the TLS records, and the time it took every client to log in includes the TLS handshake.
+ */
+public class LoadGenerator {
+
+    private enum Recipients { RANDOM, HOTSPOT, FANIN }
+
+    // how long a client whose connection dropped or whose login was refused waits before logging in again
+    private static final long RECONNECT_NANOS = 100_000_000L;
+    // frames waiting for a client's socket beyond which the client stops sending: the Server is not reading from it
+    private static final int MAX_BACKLOG = 1024;
+    // most sends a driver makes before it looks at its sockets again, when it has fallen behind
+    private static final int MAX_BURST = 10_000;
+
+    // options
+    private String host;
+    private int port;
+    private int clients = 1000;
+    private String prefix = "load";
+    private double rate = 10000;
+    private String size = "64";
+    private Recipients to = Recipients.RANDOM;
+    private double hot = 0.01;
+    private double hotShare = 0.9;
+    private double churn = 0;
+    private int warmup = 5;
+    private int duration = 30;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private boolean binary = true;
+    private boolean compress = false;
+    private int compressThreshold = Compression.THRESHOLD;
+    //set with --tls=on, shared by every client so their sessions can be resumed
+    private SSLContext tls;
+
+    // derived from the options
+    private byte[][] names;
+    private String[] textNames;
+    private int sizeMin, sizeMax;
+    private double sizeMean;
+    private byte[] text;
+    private String textString;
+
+    // shared by the drivers
+    private volatile boolean sending;
+    private volatile boolean measuring;
+    private volatile boolean stopped;
+    private final AtomicInteger connected = new AtomicInteger();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder offline = new LongAdder();
+    private final LongAdder full = new LongAdder();
+    private final LongAdder unknown = new LongAdder();
+    private final LongAdder refused = new LongAdder();
+    private final LongAdder otherWarnings = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+    private final LongAdder backlogged = new LongAdder();
+    private final LongAdder reconnects = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator = new LoadGenerator();
+        try {
+            generator.parse(args);
+        } catch (RuntimeException e) {
+            System.out.println("Usage: java LoadGenerator host port [--clients=N] [--rate=N] [--size=N|MIN-MAX|exp:MEAN] "
+                    + "[--to=random|hotspot|fanin] [--churn=N] [--warmup=S] [--duration=S] [--threads=N] "
+                    + "[--protocol=binary|legacy] [--compress=on|off] [--compress-threshold=BYTES] [--tls=on|off]  ("
+                    + e.getMessage() + ")");
+            System.exit(2);
+        }
+        generator.run();
+    }
+
+    private void parse(String[] args) {
+        host = args[0];
+        port = Integer.parseInt(args[1]);
+        for (int i = 2; i < args.length; i++) {
+            String arg = args[i];
+            int eq = arg.indexOf('=');
+            if (!arg.startsWith("--") || eq < 0)
+                throw new IllegalArgumentException("Options must look like --name=value: " + arg);
+            String name = arg.substring(2, eq);
+            String value = arg.substring(eq + 1);
+            switch (name) {
+                case "clients": clients = Integer.parseInt(value); break;
+                case "prefix": prefix = value; break;
+                case "rate": rate = Double.parseDouble(value); break;
+                case "size": size = value; break;
+                case "to": to = Recipients.valueOf(value.toUpperCase()); break;
+                case "hot": hot = Double.parseDouble(value); break;
+                case "hot-share": hotShare = Double.parseDouble(value); break;
+                case "churn": churn = Double.parseDouble(value); break;
+                case "warmup": warmup = Integer.parseInt(value); break;
+                case "duration": duration = Integer.parseInt(value); break;
+                case "threads": threads = Integer.parseInt(value); break;
+                case "protocol": binary = !value.equals("legacy"); break;
+                case "compress": compress = value.equals("on"); break;
+                case "compress-threshold": compressThreshold = Integer.parseInt(value); break;
+                case "tls": tls = value.equals("on") ? defaultContext() : null; break;
+                default: throw new IllegalArgumentException("Unknown option --" + name);
+            }
+        }
+        if (clients < 2) throw new IllegalArgumentException("--clients must be at least 2");
+        threads = Math.max(1, Math.min(threads, clients));
+        if (size.startsWith("exp:")) {
+            sizeMean = Double.parseDouble(size.substring(4));
+            sizeMin = 0;
+            sizeMax = (int) Math.min(sizeMean * 20, 60_000);
+        }
+        else if (size.indexOf('-') > 0) {
+            sizeMin = Integer.parseInt(size.substring(0, size.indexOf('-')));
+            sizeMax = Integer.parseInt(size.substring(size.indexOf('-') + 1));
+        }
+        else sizeMin = sizeMax = Integer.parseInt(size);
+        //legacy messages are single writeUTF strings
+        if (!binary && sizeMax > 60_000) throw new IllegalArgumentException("Legacy messages are limited to 60000 bytes");
+
+        names = new byte[clients][];
+        textNames = new String[clients];
+        for (int i = 0; i < clients; i++) {
+            textNames[i] = prefix + i;
+            names[i] = textNames[i].getBytes(StandardCharsets.UTF_8);
+        }
+        char[] chars = new char[sizeMax];
+        Random random = new Random(42);
+        for (int i = 0; i < chars.length; i++)
+            chars[i] = (char) ('a' + random.nextInt(26));
+        textString = new String(chars);
+        text = textString.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static SSLContext defaultContext() {
+        try {
+            return SSLContext.getDefault();
+        } catch (java.security.NoSuchAlgorithmException e) {
+            throw new IllegalArgumentException("TLS is not available: " + e.getMessage());
+        }
+    }
+
+    private void run() throws InterruptedException {
+        System.out.printf("%d %s clients on %d threads against %s:%d, %.0f msgs/s, size %s, to %s, churn %.1f/s%s%s%n",
+                clients, binary ? "binary" : "legacy", threads, host, port, rate, size, to.name().toLowerCase(), churn,
+                compress ? ", compressed" : "", tls != null ? ", over TLS" : "");
+        Driver[] drivers = new Driver[threads];
+        for (int i = 0; i < threads; i++)
+            drivers[i] = new Driver(i);
+        for (int i = 0; i < clients; i++)
+            drivers[i % threads].sims.add(new Sim(i));
+        for (Driver d : drivers)
+            d.start();
+
+        //ramp up: wait until every client is logged in, or give up waiting after a minute
+        long start = System.nanoTime();
+        while (connected.get() < clients && System.nanoTime() - start < 60_000_000_000L)
+            Thread.sleep(100);
+        System.out.printf("%d of %d clients logged in after %d ms%n", connected.get(), clients,
+                (System.nanoTime() - start) / 1_000_000);
+
+        sending = true;
+        long sentBefore = 0, receivedBefore = 0, outBefore = 0, inBefore = 0;
+        long lastSent = 0, lastReceived = 0;
+        long measureStart = System.nanoTime();
+        measuring = warmup == 0;
+        for (int second = 1; second <= warmup + duration; second++) {
+            Thread.sleep(1000);
+            if (second == warmup) {
+                measuring = true;
+                measureStart = System.nanoTime();
+                sentBefore = sent.sum();
+                receivedBefore = received.sum();
+                outBefore = bytesOut.sum();
+                inBefore = bytesIn.sum();
+            }
+            long s = sent.sum(), r = received.sum();
+            System.out.printf("%4ds %s clients %d/%d  sent %d/s  received %d/s  full %d  offline %d%n", second,
+                    second <= warmup ? "warmup " : "", connected.get(), clients, s - lastSent, r - lastReceived,
+                    full.sum(), offline.sum());
+            lastSent = s;
+            lastReceived = r;
+        }
+        sending = false;
+        double seconds = (System.nanoTime() - measureStart) / 1e9;
+        long measuredSent = sent.sum() - sentBefore;
+        long measuredReceived = received.sum() - receivedBefore;
+        long measuredOut = bytesOut.sum() - outBefore;
+        long measuredIn = bytesIn.sum() - inBefore;
+
+        //let the messages still in flight arrive, for their latencies
+        long drainStart = System.nanoTime();
+        long total = sent.sum();
+        while (received.sum() + offline.sum() + full.sum() + unknown.sum() < total
+                && System.nanoTime() - drainStart < 5_000_000_000L)
+            Thread.sleep(50);
+        stopped = true;
+        LatencyHistogram latency = new LatencyHistogram();
+        long cpuNanos = 0;
+        for (Driver d : drivers) {
+            d.selector.wakeup();
+            d.join();
+            latency.add(d.latency);
+            cpuNanos += d.cpuNanos;
+        }
+
+        System.out.printf("Sent %d messages in %.1f s (%.0f/s), received %d (%.0f/s)%n", measuredSent, seconds,
+                measuredSent / seconds, measuredReceived, measuredReceived / seconds);
+        System.out.printf("Replies: delivered=%d offline=%d full=%d unknown=%d other=%d, logins refused=%d%n",
+                delivered.sum(), offline.sum(), full.sum(), unknown.sum(), otherWarnings.sum(), refused.sum());
+        System.out.printf("Generator: skipped (sender not logged in)=%d backlogged (server not reading)=%d reconnects=%d%n",
+                skipped.sum(), backlogged.sum(), reconnects.sum());
+        System.out.println("Latency " + latency.summary(1000, "us"));
+        System.out.printf("Wire: %d bytes written (%.0f per message sent), %d bytes read (%.0f per message received), "
+                        + "generator CPU %d ms%n", measuredOut, measuredOut / (double) Math.max(1, measuredSent), measuredIn,
+                measuredIn / (double) Math.max(1, measuredReceived), cpuNanos / 1_000_000);
+        System.out.printf("RESULT clients=%d rate=%.0f size=%s to=%s churn=%.1f sent=%d received=%d throughput=%.0f "
+                        + "p50_us=%d p90_us=%d p99_us=%d p999_us=%d max_us=%d full=%d offline=%d backlogged=%d "
+                        + "compress=%s tls=%s bytes_out=%d bytes_in=%d cpu_ms=%d%n",
+                clients, rate, size, to.name().toLowerCase(), churn, measuredSent, measuredReceived,
+                measuredReceived / seconds, latency.percentile(50) / 1000, latency.percentile(90) / 1000,
+                latency.percentile(99) / 1000, latency.percentile(99.9) / 1000, latency.max() / 1000, full.sum(),
+                offline.sum(), backlogged.sum(), compress ? "on" : "off", tls != null ? "on" : "off", measuredOut, measuredIn,
+                cpuNanos / 1_000_000);
+    }
+
+    // Size of the next message's text
+    private int nextSize(ThreadLocalRandom random) {
+        if (sizeMean > 0) return (int) Math.min(sizeMax, -sizeMean * Math.log(1 - random.nextDouble()));
+        return sizeMin == sizeMax ? sizeMin : sizeMin + random.nextInt(sizeMax - sizeMin + 1);
+    }
+
+    // Index of the recipient of the next message from a sender
+    private int nextRecipient(ThreadLocalRandom random, int sender) {
+        if (to == Recipients.FANIN && sender != 0) return 0;
+        if (to == Recipients.HOTSPOT && random.nextDouble() < hotShare) {
+            int hotUsers = Math.max(1, (int) (clients * hot));
+            int r = random.nextInt(hotUsers);
+            if (r != sender) return r;
+        }
+        int r = random.nextInt(clients - 1);
+        return r >= sender ? r + 1 : r;
+    }
+
+    // Encodes a message, timestamped with when it was due.  Texts of compressThreshold bytes or more are deflated for a
+    // client whose login accepted DEFLATE.
+    private ByteBuffer message(int recipient, long due, int length, boolean deflate) throws IOException {
+        if (!binary) return Frame.encodeUTF(textNames[recipient] + ":::" + due + ":::" + textString.substring(0, length));
+        if (deflate && length >= compressThreshold)
+            return new Frame(Frame.MSG, textNames[recipient], due, Arrays.copyOf(text, length)).deflated(compressThreshold).encodeBinary();
+        byte[] name = names[recipient];
+        ByteBuffer buf = ByteBuffer.allocate(4 + Frame.HEADER_LENGTH + name.length + length);
+        buf.putInt(Frame.HEADER_LENGTH + name.length + length);
+        buf.put(Frame.MSG);
+        buf.putShort((short) name.length);
+        buf.put(name);
+        buf.putLong(due);
+        buf.putInt(length);
+        buf.put(text, 0, length);
+        buf.flip();
+        return buf;
+    }
+
+    // Counts a warning from the Server by what it says.  Binary clients count delivered messages from the Server's ACKs,
+    // which also cover the messages warned about here.
+    private void warning(Sim sim, String text) {
+        boolean acked = binary;
+        if (text.startsWith("Message delivered")) delivered.increment();
+        else if (text.contains("is offline")) count(offline, acked);
+        else if (text.contains("mailbox is full")) count(full, acked);
+        else if (text.contains("does not exist") || text.startsWith("Unknown recipient")) count(unknown, acked);
+        else if (text.startsWith("Username is taken") || text.startsWith("Invalid username")) {
+            refused.increment();
+            sim.refused = true;
+        }
+        else otherWarnings.increment();
+    }
+
+    // Counts an undelivered message, and takes it back out of the delivered ones the next ACK will count
+    private void count(LongAdder undelivered, boolean acked) {
+        undelivered.increment();
+        if (acked) delivered.decrement();
+    }
+
+    /** One simulated client */
+    private class Sim {
+        final int index;
+        SocketChannel channel;
+        //encrypts channel with --tls=on
+        TlsChannel tls;
+        SelectionKey key;
+        boolean ready;
+        //set when the Server refused the login, the connection is about to be closed by the Server
+        boolean refused;
+        long reconnectAt;
+        //id of the last message the Server acknowledged on this connection, see Frame.ACK
+        long acked;
+        //whether the Server accepted DEFLATE at login
+        boolean deflate;
+        ByteBuffer in = ByteBuffer.allocate(4096);
+        final ArrayDeque<ByteBuffer> out = new ArrayDeque<>();
+
+        Sim(int index) {
+            this.index = index;
+        }
+    }
+
+    /**
+     * Driver class (inner class of LoadGenerator)
+     * Selector thread owning a share of the clients: connects and logs them in, sends their share of the messages on
+     * schedule, reads what the Server sends them, and drops and reconnects them for --churn.
+     */
+    private class Driver extends Thread {
+        final Selector selector;
+        final List<Sim> sims = new ArrayList<>();
+        final LatencyHistogram latency = new LatencyHistogram();
+        //clients waiting to (re)connect, the one that is due first at the head
+        final PriorityQueue<Sim> reconnecting = new PriorityQueue<>(Comparator.comparingLong((Sim s) -> s.reconnectAt));
+        final double interval;
+        final double churnInterval;
+        boolean recording;
+        //CPU time this thread took while measuring, see run()
+        long cpuNanos;
+        private long cpuStart;
+
+        Driver(int id) {
+            super("load-" + id);
+            try {
+                selector = Selector.open();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            interval = rate > 0 ? threads * 1e9 / rate : 0;
+            churnInterval = churn > 0 ? threads * 1e9 / churn : 0;
+        }
+
+        @Override
+        public void run() {
+            //logins are spread out a little so the Server's accept backlog does not overflow
+            long start = System.nanoTime();
+            for (int i = 0; i < sims.size(); i++) {
+                sims.get(i).reconnectAt = start + i * 100_000L;
+                reconnecting.add(sims.get(i));
+            }
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            double nextSend = 0;
+            double nextChurn = 0;
+            while (!stopped) {
+                try {
+                    long now = System.nanoTime();
+                    while (!reconnecting.isEmpty() && reconnecting.peek().reconnectAt - now <= 0) {
+                        Sim sim = reconnecting.poll();
+                        try {
+                            connect(sim);
+                        } catch (IOException e) {
+                            sim.reconnectAt = now + RECONNECT_NANOS;
+                            reconnecting.add(sim);
+                        }
+                    }
+                    long next = now + 100_000_000L;
+                    if (sending && interval > 0) {
+                        if (nextSend == 0) nextSend = now;
+                        if (!recording && measuring) {
+                            recording = true;
+                            latency.reset();
+                            cpuStart = cpuTime();
+                        }
+                        for (int n = 0; nextSend <= now && n < MAX_BURST; n++) {
+                            send(random, (long) nextSend);
+                            nextSend += interval;
+                        }
+                        next = Math.min(next, (long) nextSend);
+                    }
+                    if (sending && churnInterval > 0) {
+                        if (nextChurn == 0) nextChurn = now + churnInterval;
+                        while (nextChurn <= now) {
+                            Sim sim = sims.get(random.nextInt(sims.size()));
+                            if (sim.ready) {
+                                reconnects.increment();
+                                drop(sim, 0);
+                            }
+                            nextChurn += churnInterval;
+                        }
+                        next = Math.min(next, (long) nextChurn);
+                    }
+                    if (!reconnecting.isEmpty()) next = Math.min(next, reconnecting.peek().reconnectAt);
+                    long millis = (next - System.nanoTime()) / 1_000_000;
+                    if (millis > 0) selector.select(this::process, millis);
+                    else selector.selectNow(this::process);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            if (recording) cpuNanos = cpuTime() - cpuStart;
+            for (Sim sim : sims) {
+                try {
+                    if (sim.tls != null) sim.tls.close();
+                    else if (sim.channel != null) sim.channel.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        private long cpuTime() {
+            return ManagementFactory.getThreadMXBean().getCurrentThreadCpuTime();
+        }
+
+        private void connect(Sim sim) throws IOException {
+            sim.channel = SocketChannel.open();
+            sim.channel.configureBlocking(false);
+            sim.channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            sim.in.clear();
+            sim.acked = 0;
+            sim.deflate = false;
+            sim.out.clear();
+            sim.refused = false;
+            sim.tls = null;
+            sim.key = sim.channel.register(selector, SelectionKey.OP_CONNECT, sim);
+            if (sim.channel.connect(new InetSocketAddress(host, port))) connected(sim);
+        }
+
+        // Sends the login once the connection is established.  With TLS the login waits in out until the handshake, which
+        // the login's write starts, is done.
+        private void connected(Sim sim) throws IOException {
+            sim.key.interestOps(SelectionKey.OP_READ);
+            if (tls != null) {
+                SSLEngine engine = tls.createSSLEngine(host, port);
+                engine.setUseClientMode(true);
+                sim.tls = new TlsChannel(sim.channel, engine, bytesIn, bytesOut);
+            }
+            byte[] name = names[sim.index];
+            if (binary) {
+                byte[] flags = compress ? new byte[]{Frame.DEFLATE} : Frame.EMPTY;
+                ByteBuffer login = ByteBuffer.allocate(3 + 4 + Frame.HEADER_LENGTH + name.length + flags.length);
+                login.putShort((short) Frame.MAGIC).put(Frame.VERSION);
+                login.putInt(Frame.HEADER_LENGTH + name.length + flags.length).put(Frame.LOGIN)
+                        .putShort((short) name.length).put(name);
+                login.putLong(0).putInt(flags.length).put(flags).flip();
+                write(sim, login);
+            }
+            else {
+                write(sim, Frame.encodeUTF(textNames[sim.index]));
+                //legacy logins are not acknowledged, a refused one is followed by a warning and the Server closing
+                ready(sim);
+            }
+        }
+
+        private void ready(Sim sim) {
+            sim.ready = true;
+            connected.incrementAndGet();
+        }
+
+        // Closes a client's connection and schedules it to log in again after the given delay
+        private void drop(Sim sim, long delay) {
+            if (sim.ready) connected.decrementAndGet();
+            sim.ready = false;
+            if (sim.key != null) sim.key.cancel();
+            try {
+                if (sim.tls != null) sim.tls.close();
+                else sim.channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            sim.reconnectAt = System.nanoTime() + delay;
+            reconnecting.add(sim);
+        }
+
+        // Queues one message from a random client of this driver, due at the given time
+        private void send(ThreadLocalRandom random, long due) throws IOException {
+            Sim sender = null;
+            for (int tries = 0; tries < 4 && sender == null; tries++) {
+                Sim sim = sims.get(random.nextInt(sims.size()));
+                if (sim.ready) sender = sim;
+            }
+            if (sender == null) {
+                skipped.increment();
+                return;
+            }
+            if (sender.out.size() >= MAX_BACKLOG) {
+                backlogged.increment();
+                return;
+            }
+            try {
+                write(sender, message(nextRecipient(random, sender.index), due, nextSize(random), sender.deflate));
+            } catch (IOException e) {
+                drop(sender, RECONNECT_NANOS);
+                return;
+            }
+            sent.increment();
+        }
+
+        private void write(Sim sim, ByteBuffer buf) throws IOException {
+            if (sim.tls != null) {
+                sim.out.add(buf);
+                writeTls(sim);
+                return;
+            }
+            if (sim.out.isEmpty()) {
+                bytesOut.add(sim.channel.write(buf));
+                if (!buf.hasRemaining()) return;
+                sim.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+            sim.out.add(buf);
+        }
+
+        // Encrypts and writes as much of a TLS client's output as the socket takes, waiting for OP_WRITE if records are left
+        private void writeTls(Sim sim) throws IOException {
+            ByteBuffer[] bufs = sim.out.toArray(new ByteBuffer[0]);
+            sim.tls.write(bufs, 0, bufs.length);
+            while (!sim.out.isEmpty() && !sim.out.peek().hasRemaining())
+                sim.out.poll();
+            sim.key.interestOps(SelectionKey.OP_READ | (sim.tls.pending() ? SelectionKey.OP_WRITE : 0));
+        }
+
+        private void process(SelectionKey key) {
+            Sim sim = (Sim) key.attachment();
+            try {
+                if (key.isConnectable()) {
+                    sim.channel.finishConnect();
+                    connected(sim);
+                    return;
+                }
+                if (key.isReadable()) read(sim);
+                if (key.isValid() && key.isWritable() && sim.tls != null) writeTls(sim);
+                else if (key.isValid() && key.isWritable()) {
+                    ByteBuffer buf;
+                    while ((buf = sim.out.peek()) != null) {
+                        bytesOut.add(sim.channel.write(buf));
+                        if (buf.hasRemaining()) return;
+                        sim.out.poll();
+                    }
+                    key.interestOps(SelectionKey.OP_READ);
+                }
+            } catch (IOException e) {
+                drop(sim, RECONNECT_NANOS);
+            }
+        }
+
+        private void read(Sim sim) throws IOException {
+            if (sim.tls != null) {
+                readTls(sim);
+                return;
+            }
+            int n = sim.channel.read(sim.in);
+            if (n < 0) {
+                drop(sim, RECONNECT_NANOS);
+                return;
+            }
+            bytesIn.add(n);
+            handleInput(sim);
+        }
+
+        // Reads through the TlsChannel until it has no plaintext left, then sends what waited for the handshake
+        private void readTls(Sim sim) throws IOException {
+            do {
+                if (sim.tls.read(sim.in) < 0) {
+                    drop(sim, RECONNECT_NANOS);
+                    return;
+                }
+                if (!handleInput(sim)) return;
+            } while (sim.tls.buffered() && sim.in.hasRemaining());
+            if (!sim.out.isEmpty() || sim.tls.pending()) writeTls(sim);
+        }
+
+        // Handles the complete frames or strings in the input buffer, false if the client was dropped
+        private boolean handleInput(Sim sim) throws IOException {
+            sim.in.flip();
+            long now = System.nanoTime();
+            while (binary ? readFrame(sim, now) : readLegacy(sim, now)) ;
+            if (sim.refused) {
+                drop(sim, RECONNECT_NANOS);
+                return false;
+            }
+            //grow() may have replaced the buffer
+            sim.in.compact();
+            return true;
+        }
+
+        // Handles one binary frame from the input buffer, false if it is not complete yet
+        private boolean readFrame(Sim sim, long now) throws IOException {
+            ByteBuffer in = sim.in;
+            int start = in.position();
+            if (in.remaining() < 4) return false;
+            int length = in.getInt(start);
+            if (in.remaining() < 4 + length) {
+                grow(sim, 4 + length);
+                return false;
+            }
+            handle(sim, in, start, length, now);
+            in.position(start + 4 + length);
+            return true;
+        }
+
+        // Handles the complete binary frame at start, which is length bytes after its length field
+        private void handle(Sim sim, ByteBuffer in, int start, int length, long now) throws IOException {
+            byte type = in.get(start + 4);
+            int nameLength = in.getShort(start + 5) & 0xFFFF;
+            if (type == Frame.MSG) {
+                received.increment();
+                if (recording) latency.record(now - in.getLong(start + 7 + nameLength));
+            }
+            else if (type == Frame.LOGIN) {
+                int payload = start + 7 + nameLength + 8;
+                sim.deflate = compress && in.getInt(payload) >= 1 + 8 + 1 && (in.get(payload + 4 + 9) & Frame.DEFLATE) != 0;
+                ready(sim);
+            }
+            else if (type == (byte) (Frame.BATCH | Frame.COMPRESSED)) {
+                //messages the Server wrote together, see Frame.BATCH
+                ByteBuffer frames = ByteBuffer.wrap(Frame.read(in.duplicate().position(start + 4), length).payload);
+                while (frames.hasRemaining()) {
+                    int at = frames.position();
+                    int frameLength = frames.getInt(at);
+                    handle(sim, frames, at, frameLength, now);
+                    frames.position(at + 4 + frameLength);
+                }
+            }
+            else if (type == Frame.ACK) {
+                //the messages that could not be delivered were answered with a warning before the ACK, see warning()
+                long id = in.getLong(start + 7 + nameLength);
+                delivered.add(id - sim.acked);
+                sim.acked = id;
+            }
+            else if (type == Frame.WARNING) {
+                int payload = start + 7 + nameLength + 8;
+                byte[] bytes = new byte[in.getInt(payload)];
+                in.get(payload + 4, bytes);
+                warning(sim, new String(bytes, StandardCharsets.UTF_8));
+            }
+        }
+
+        // Handles one legacy string from the input buffer, false if it is not complete yet
+        private boolean readLegacy(Sim sim, long now) throws IOException {
+            ByteBuffer in = sim.in;
+            if (in.remaining() < 2) return false;
+            int length = in.getShort(in.position()) & 0xFFFF;
+            if (in.remaining() < 2 + length) {
+                grow(sim, 2 + length);
+                return false;
+            }
+            in.position(in.position() + 2);
+            String line = Frame.readUTF(in, length);
+            if (line.startsWith("warning:::")) {
+                warning(sim, line.substring(line.indexOf(":::", 10) + 3));
+                return true;
+            }
+            received.increment();
+            int first = line.indexOf(":::");
+            int second = line.indexOf(":::", first + 3);
+            if (recording && second > 0) latency.record(now - Long.parseLong(line.substring(first + 3, second)));
+            return true;
+        }
+
+        // Makes sure a frame of the given size fits in a client's input buffer once it has been compacted
+        private void grow(Sim sim, int size) {
+            if (sim.in.capacity() < size) sim.in = ByteBuffer.allocate(size).put(sim.in).flip();
+        }
+    }
+}
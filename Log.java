@@ -0,0 +1,145 @@
+import java.io.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Log.java
+ * Server logging with levels and an asynchronous appender.  Logging threads only put the line in a fixed-size ring
+ * buffer, without locking or waiting; a daemon thread writes the lines to standard output, parked while there are none.  When the ring is full the line
+ * is dropped and counted, and the writer reports how many were lost.  Lines go to System.out, a batch per print.
+ *
+ * The level is read once from -Dlog=debug|info|warn|error (default info) into the static final DEBUG, INFO and WARN
+ * flags, so a log line guarded by one of them, as in
+ *     if (Log.DEBUG) Log.debug("..." + username);
+ * costs nothing when its level is off: the JIT removes the whole statement, string building included.
+ */
+public class Log {
+
+    enum Level { DEBUG, INFO, WARN, ERROR }
+
+    static final Level LEVEL = Level.valueOf(System.getProperty("log", "info").toUpperCase());
+    static final boolean DEBUG = LEVEL.compareTo(Level.DEBUG) <= 0;
+    static final boolean INFO = LEVEL.compareTo(Level.INFO) <= 0;
+    static final boolean WARN = LEVEL.compareTo(Level.WARN) <= 0;
+
+    //Lines waiting to be written.  Bounded multi-producer queue: a slot's sequence number says whether it is free for the
+    //producer claiming position p (sequence == p) or holds the line for the consumer at position p (sequence == p + 1).
+    private static final int CAPACITY = 1 << 14;
+    private static final int MASK = CAPACITY - 1;
+    private static final AtomicReferenceArray<String> lines = new AtomicReferenceArray<>(CAPACITY);
+    private static final AtomicLongArray sequences = new AtomicLongArray(CAPACITY);
+    private static final AtomicLong tail = new AtomicLong();
+    private static long head;
+    private static final LongAdder dropped = new LongAdder();
+    //the writer thread, and whether it is parked or about to park, so the next append() unparks it
+    private static final Thread writer = new Thread(Log::drain, "log");
+    private static volatile boolean parked;
+
+    static {
+        for (int i = 0; i < CAPACITY; i++)
+            sequences.set(i, i);
+        writer.setDaemon(true);
+        writer.start();
+        //lines still in the ring when the Server exits are written out
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            while (flush()) ;
+        }));
+    }
+
+    static void debug(String line) {
+        if (DEBUG) append(line);
+    }
+
+    static void info(String line) {
+        if (INFO) append(line);
+    }
+
+    static void warn(String line) {
+        if (WARN) append("WARN " + line);
+    }
+
+    static void error(String line) {
+        append("ERROR " + line);
+    }
+
+    // Logs an exception with its stack trace at ERROR
+    static void error(String line, Throwable e) {
+        StringWriter trace = new StringWriter();
+        e.printStackTrace(new PrintWriter(trace));
+        append("ERROR " + line + ": " + trace);
+    }
+
+    /**
+     * Puts a line in the ring for the writer thread, or drops it if the ring is full.  Never blocks.
+     * @param line : the line, without a trailing newline
+     */
+    static void append(String line) {
+        long pos = tail.get();
+        while (true) {
+            int i = (int) pos & MASK;
+            long diff = sequences.get(i) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    lines.set(i, line);
+                    sequences.set(i, pos + 1);
+                    if (parked) LockSupport.unpark(writer);
+                    return;
+                }
+                pos = tail.get();
+            }
+            else if (diff < 0) {
+                dropped.increment();
+                return;
+            }
+            else pos = tail.get();
+        }
+    }
+
+    // Whether the ring has no line for the writer
+    private static synchronized boolean empty() {
+        return sequences.get((int) head & MASK) != head + 1;
+    }
+
+    // Takes the next line out of the ring, or null if it is empty.  Only called by one thread at a time.
+    private static synchronized String poll() {
+        int i = (int) head & MASK;
+        if (sequences.get(i) != head + 1) return null;
+        String line = lines.get(i);
+        lines.set(i, null);
+        sequences.set(i, head + CAPACITY);
+        head++;
+        return line;
+    }
+
+    // Writes out everything in the ring with one print, then reports lines that were dropped since the last report
+    private static synchronized boolean flush() {
+        StringBuilder batch = new StringBuilder();
+        String line;
+        while ((line = poll()) != null && batch.length() < 1 << 20)
+            batch.append(line).append('\n');
+        if (line != null) batch.append(line).append('\n');
+        long lost = dropped.sumThenReset();
+        if (lost > 0) batch.append("WARN ").append(lost).append(" log lines dropped, the log could not keep up\n");
+        if (batch.length() == 0) return false;
+        System.out.print(batch);
+        System.out.flush();
+        return true;
+    }
+
+    /**
+     * Writer thread: writes lines as they come, and parks when the ring is empty until append() unparks it.  parked is
+     * set before the ring is checked again and read by append() after its line is in, so either this thread sees the line
+     * or append() sees the flag.
+     */
+    private static void drain() {
+        while (true) {
+            if (flush()) continue;
+            parked = true;
+            if (empty()) LockSupport.park();
+            parked = false;
+        }
+    }
+}
@@ -0,0 +1,256 @@
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+
+/**
+ * Mailbox.java
+ * Messages waiting to be written to one user, bounded by --mailbox.  Compound operations on a Connection synchronize on
+ * its Mailbox, which also guards every method here.
+ *
+ * What happens to a message for a full mailbox depends on --overflow:
+ *   reject      : the message is refused and the sender is warned (see Server.Connection.sendMsgToSocket())
+ *   drop-oldest : the oldest queued message is dropped to make room
+ *   spill       : the message is appended to the OfflineLog.  Later messages follow it there to keep their order, and
+ *                 the mailbox refills from the log whenever it runs empty.
+ * While the user is offline and the Server runs with --wal, every message goes to the log regardless of capacity.
+ * Without it, messages kept for an offline user are compacted, see compact().
+ *
+ * A mailbox is saturated when its owner is online and it holds capacity messages.  With --backpressure, a client that
+ * sends to a saturated mailbox stops being read until the mailbox has drained to half its capacity, see whenDrained().
+ */
+public class Mailbox {
+
+    enum Overflow { REJECT, DROP_OLDEST, SPILL }
+
+    // Result of offer().  MOVED: the owner has been handed to another node of the Cluster, see retire()
+    enum Delivery { QUEUED, OFFLINE, REJECTED, MOVED }
+
+    private ArrayDeque<Frame> queue = new ArrayDeque<>();
+    private final int capacity;
+    private final Overflow overflow;
+    private final OfflineLog log;
+    //username the log records are kept under
+    private String owner;
+    //the owner is offline (the mailbox starts offline until its Connection wakes it)
+    private boolean offline = true;
+    //messages for this owner are in the log behind the queued ones, so new messages have to go there too
+    private boolean spilled;
+    //the owner's messages have been taken by retire(), nothing is queued here any more
+    private boolean moved;
+    //called once the mailbox is no longer saturated
+    private final ArrayList<Runnable> waiters = new ArrayList<>();
+
+    /**
+     * @param capacity : most messages kept in memory
+     * @param overflow : what to do with a message for a full mailbox
+     * @param log : the Server's offline log, or null if it runs without --wal
+     */
+    Mailbox(int capacity, Overflow overflow, OfflineLog log) {
+        this.capacity = capacity;
+        this.overflow = overflow;
+        this.log = log;
+    }
+
+    /**
+     * Adds a message for the owner.
+     * @param msg : the message, addressed from its sender.  The mailbox owns it unless it is rejected.
+     * @return QUEUED if the owner is online, OFFLINE if the owner will get it when they return, REJECTED if it was refused,
+     *         MOVED if the owner is no longer on this Server
+     */
+    synchronized Delivery offer(Frame msg) {
+        if (moved) return Delivery.MOVED;
+        if (log != null && (offline || spilled) && append(msg)) return offline ? Delivery.OFFLINE : Delivery.QUEUED;
+        if (queue.size() >= capacity) {
+            if (overflow == Overflow.REJECT) return Delivery.REJECTED;
+            if (overflow == Overflow.SPILL && log != null && append(msg)) {
+                spilled = true;
+                return offline ? Delivery.OFFLINE : Delivery.QUEUED;
+            }
+            //drop oldest, also used when the log cannot be written
+            release(queue.poll());
+        }
+        queue.add(offline ? unpooled(msg) : msg);
+        return offline ? Delivery.OFFLINE : Delivery.QUEUED;
+    }
+
+    /**
+     * Shrinks the mailbox of an owner who went offline: the queue, which keeps the size it grew to while the owner was
+     * online, is replaced by one just large enough for what is waiting, and pooled frames are copied out of their pool
+     * chunk (--pool-chunk bytes of direct memory each) so the pool gets it back.  An empty mailbox then costs a few dozen
+     * bytes.
+     */
+    private void compact() {
+        ArrayDeque<Frame> compacted = new ArrayDeque<>(queue.size());
+        for (Frame msg : queue)
+            compacted.add(unpooled(msg));
+        queue = compacted;
+    }
+
+    // A frame that does not hold on to a pool chunk: pooled frames are decoded and released
+    private static Frame unpooled(Frame msg) {
+        if (!(msg instanceof PooledFrame)) return msg;
+        try {
+            Frame decoded = ((PooledFrame) msg).decode();
+            release(msg);
+            return decoded;
+        } catch (IOException e) {
+            //keeps the chunk rather than lose the message
+            e.printStackTrace();
+            return msg;
+        }
+    }
+
+    // Appends a message to the log.  Pooled frames go back to their pool once logged.
+    private boolean append(Frame msg) {
+        try {
+            log.append(owner, msg);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+        release(msg);
+        return true;
+    }
+
+    private static void release(Frame msg) {
+        if (msg instanceof PooledFrame) ((PooledFrame) msg).release();
+    }
+
+    // Returns the oldest message without removing it, or null if there is none
+    synchronized Frame peek() {
+        if (queue.isEmpty()) refill();
+        return queue.peek();
+    }
+
+    // Removes and returns the oldest message, or null if there is none
+    synchronized Frame poll() {
+        if (queue.isEmpty()) refill();
+        Frame msg = queue.poll();
+        if (!waiters.isEmpty() && queue.size() <= capacity / 2) drained();
+        return msg;
+    }
+
+    /**
+     * Puts back messages that were taken with poll() but could not be written, ahead of everything else.
+     * @param msgs : the messages, oldest first
+     * @param n : how many of them
+     */
+    synchronized void requeue(Frame[] msgs, int n) {
+        for (int i = n - 1; i >= 0; i--)
+            queue.addFirst(msgs[i]);
+    }
+
+    // Moves up to a mailbox's worth of messages from the log into the queue while the owner is online
+    private void refill() {
+        if (!spilled || offline) return;
+        try {
+            log.take(owner, capacity, queue);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        spilled = log.has(owner);
+    }
+
+    /**
+     * The owner went offline.  With a log, queued messages are moved to it so they survive a restart, after any that
+     * were already spilled there.  Whatever stays in memory is compacted.
+     */
+    synchronized void sleep() {
+        offline = true;
+        drained();
+        if (log == null) {
+            compact();
+            return;
+        }
+        if (spilled) {
+            try {
+                log.take(owner, Integer.MAX_VALUE, queue);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        Frame msg;
+        while ((msg = queue.peek()) != null && append(msg))
+            queue.poll();
+        spilled = false;
+        compact();
+    }
+
+    /**
+     * Takes every message waiting for an offline owner, from the log and from memory, so a Cluster can hand the owner to
+     * the node that owns them now.  Messages offered after this are refused as MOVED.
+     * @param into : gets the messages, oldest first
+     */
+    synchronized void retire(Collection<Frame> into) {
+        moved = true;
+        if (log != null && log.has(owner)) {
+            try {
+                log.take(owner, Integer.MAX_VALUE, into);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        into.addAll(queue);
+        queue.clear();
+    }
+
+    // The owner is back online: messages waiting in the log start coming back
+    synchronized void wake() {
+        offline = false;
+        spilled = log != null && log.has(owner);
+        refill();
+    }
+
+    /**
+     * Changes the username the log records are kept under, moving any that are waiting under the old one.
+     * @param username : the new username
+     */
+    synchronized void rename(String username) {
+        if (log != null && owner != null && log.has(owner)) {
+            try {
+                log.move(owner, username);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        owner = username;
+    }
+
+    // Number of messages held in memory, after refilling from the log if none are
+    synchronized int size() {
+        if (queue.isEmpty()) refill();
+        return queue.size();
+    }
+
+    // Number of messages waiting for the owner, in memory and in the log
+    synchronized int depth() {
+        return queue.size() + (log == null ? 0 : log.pending(owner));
+    }
+
+    // {depth(), of which in memory}, read together and without refilling, for reports that must not move messages
+    synchronized long[] depths() {
+        return new long[]{depth(), queue.size()};
+    }
+
+    // Whether the owner is online and the mailbox is full
+    synchronized boolean saturated() {
+        return !offline && queue.size() >= capacity;
+    }
+
+    /**
+     * Runs a callback once the mailbox is no longer saturated, right away if it is not saturated now.  The callback runs
+     * on the thread that drains the mailbox, while holding its monitor, so it should only hand off to its own thread.
+     * @param callback : called once
+     */
+    synchronized void whenDrained(Runnable callback) {
+        if (saturated()) waiters.add(callback);
+        else callback.run();
+    }
+
+    private void drained() {
+        for (int i = 0; i < waiters.size(); i++)
+            waiters.get(i).run();
+        waiters.clear();
+    }
+}
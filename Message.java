@@ -0,0 +1,53 @@
+/**
+ * Message.java
+ * Message class stores message information, including whether it
+ * 			is an incoming or outgoing message, the username, and
+ *			message content.
+ */
+public class Message {
+
+	private final long seq;
+	private final long time;
+	private boolean is_incoming;
+	private String message;
+	private String username;
+
+	// Message constructor, stores its sequence number, time, username, incoming, and message as local vars
+	public Message(long seq, long time, String uname, boolean incoming, String m) {
+		this.seq = seq;
+		this.time = time;
+		is_incoming = incoming;
+		message = m;
+		username= uname;
+	}
+
+	// Returns the message's sequence number in its History
+	public long getSeq() {
+		return seq;
+	}
+
+	// Returns when the message was added, in System.currentTimeMillis()
+	public long getTime() {
+		return time;
+	}
+
+	// Returns "To: " if message is outgoing, and "From: " if message is incoming
+	public String getDirectionText() {
+		if (is_incoming) {
+			return "From: ";
+		} else {
+			return "To: ";
+		}
+	}
+
+	// Returns the message body
+	public String getMessage() {
+		return message;
+	}
+
+	// Returns the username
+	public String getUsername() {
+		return username;
+	}
+
+}
@@ -0,0 +1,212 @@
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Metrics.java
+ * Counters the Server keeps about its own traffic: connections accepted, messages routed (by how they were delivered),
+ * bytes read and written, and how long routing a message takes.  Every counter is a LongAdder or a striped histogram, so
+ * routing threads never wait on each other to count.  With --metrics the counters, per second rates and whatever the
+ * Server adds (connections and mailbox depths, see Server.metricsPage()) are served as plain text at
+ * http://localhost:PORT/metrics.
+ */
+public class Metrics {
+
+    final LongAdder accepted = new LongAdder();
+    //accepted connections closed before they sent a username, or that took longer than --handshake-timeout-ms
+    final LongAdder handshakesFailed = new LongAdder();
+    final LongAdder bytesIn = new LongAdder();
+    final LongAdder bytesOut = new LongAdder();
+    //bytes not written because batches of messages were compressed, see Compression
+    final LongAdder compressionSaved = new LongAdder();
+    //messages routed to a recipient, indexed by Mailbox.Delivery ordinal
+    private final LongAdder[] deliveries = new LongAdder[Mailbox.Delivery.values().length];
+    //messages for usernames that do not exist
+    final LongAdder unknown = new LongAdder();
+    //messages sent on to another node of the Cluster
+    final LongAdder forwarded = new LongAdder();
+    //nanoseconds from looking up a message's recipient to having queued it
+    final Histogram routing = new Histogram();
+
+    //totals at the last tick() and the rates since then, see rates()
+    private final long[] last = new long[4];
+    private volatile double[] rates = new double[4];
+    private long lastTick = System.nanoTime();
+
+    Metrics() {
+        for (int i = 0; i < deliveries.length; i++)
+            deliveries[i] = new LongAdder();
+    }
+
+    // Counts a message routed to a recipient's mailbox
+    void delivered(Mailbox.Delivery delivery) {
+        deliveries[delivery.ordinal()].increment();
+    }
+
+    // Messages queued for online or offline recipients
+    long routed() {
+        return deliveries[Mailbox.Delivery.QUEUED.ordinal()].sum() + deliveries[Mailbox.Delivery.OFFLINE.ordinal()].sum();
+    }
+
+    /**
+     * Updates the per second rates of routed messages, accepted connections and bytes in and out.  Called once a second
+     * by the thread serve() starts.
+     */
+    void tick() {
+        long now = System.nanoTime();
+        long[] totals = {routed(), accepted.sum(), bytesIn.sum(), bytesOut.sum()};
+        double seconds = (now - lastTick) / 1e9;
+        double[] r = new double[totals.length];
+        for (int i = 0; i < totals.length; i++) {
+            r[i] = (totals[i] - last[i]) / seconds;
+            last[i] = totals[i];
+        }
+        lastTick = now;
+        rates = r;
+    }
+
+    /**
+     * Appends the counters in the text format Prometheus scrapes: one "name value" line each.
+     * @param page : the page being built
+     */
+    void render(StringBuilder page) {
+        double[] r = rates;
+        line(page, "accepted_total", accepted.sum());
+        line(page, "accepted_per_second", r[1]);
+        line(page, "handshakes_failed_total", handshakesFailed.sum());
+        line(page, "messages_routed_total", routed());
+        line(page, "messages_routed_per_second", r[0]);
+        line(page, "messages_queued_total", deliveries[Mailbox.Delivery.QUEUED.ordinal()].sum());
+        line(page, "messages_offline_total", deliveries[Mailbox.Delivery.OFFLINE.ordinal()].sum());
+        line(page, "messages_rejected_total", deliveries[Mailbox.Delivery.REJECTED.ordinal()].sum());
+        line(page, "messages_unknown_recipient_total", unknown.sum());
+        line(page, "messages_forwarded_total", forwarded.sum());
+        line(page, "bytes_in_total", bytesIn.sum());
+        line(page, "bytes_in_per_second", r[2]);
+        line(page, "bytes_out_total", bytesOut.sum());
+        line(page, "bytes_out_per_second", r[3]);
+        line(page, "bytes_saved_by_compression_total", compressionSaved.sum());
+        LatencyHistogram h = routing.snapshot();
+        for (String q : new String[]{"0.5", "0.9", "0.99", "0.999"})
+            line(page, "routing_latency_ns{quantile=\"" + q + "\"}", h.percentile(Double.parseDouble(q) * 100));
+        line(page, "routing_latency_ns_max", h.max());
+        line(page, "routing_latency_ns_count", h.count());
+    }
+
+    static void line(StringBuilder page, String name, long value) {
+        page.append(name).append(' ').append(value).append('\n');
+    }
+
+    static void line(StringBuilder page, String name, double value) {
+        page.append(name).append(' ').append(String.format("%.1f", value)).append('\n');
+    }
+
+    /**
+     * Serves the page at http://localhost:port/metrics from the HTTP server's own thread, and starts the daemon thread
+     * that updates the rates every second.  Only the loopback interface is bound.
+     * @param port : the port to listen on
+     * @param page : builds the page for each request
+     * @throws IOException if the port cannot be bound
+     */
+    void serve(int port, Supplier<String> page) throws IOException {
+        HttpServer http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        http.createContext("/metrics", exchange -> {
+            byte[] body = page.get().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        http.start();
+        Thread ticker = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                tick();
+            }
+        }, "metrics");
+        ticker.setDaemon(true);
+        ticker.start();
+    }
+
+    // Input stream that counts the bytes read from a client socket into bytesIn
+    InputStream counting(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0) bytesIn.increment();
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = super.read(b, off, len);
+                if (n > 0) bytesIn.add(n);
+                return n;
+            }
+        };
+    }
+
+    // Output stream that counts the bytes written to a client socket into bytesOut
+    OutputStream counting(OutputStream out) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                bytesOut.increment();
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                bytesOut.add(len);
+            }
+        };
+    }
+
+    /**
+     * Histogram that any number of threads record into without locking.  Bucket counts are spread over STRIPES arrays
+     * by thread, so threads rarely increment the same counter, and are added up into a LatencyHistogram (with the same
+     * buckets) when the page is built.
+     */
+    static class Histogram {
+        private static final int STRIPES = 8;
+        private final AtomicLongArray[] stripes = new AtomicLongArray[STRIPES];
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        Histogram() {
+            for (int i = 0; i < STRIPES; i++)
+                stripes[i] = new AtomicLongArray(LatencyHistogram.BUCKETS);
+        }
+
+        void record(long value) {
+            if (value < 0) value = 0;
+            stripes[(int) Thread.currentThread().getId() & (STRIPES - 1)].incrementAndGet(LatencyHistogram.bucket(value));
+            max.accumulate(value);
+        }
+
+        // Everything recorded so far, each value counted as the highest value of its bucket
+        LatencyHistogram snapshot() {
+            LatencyHistogram h = new LatencyHistogram();
+            for (int i = 0; i < LatencyHistogram.BUCKETS; i++) {
+                long n = 0;
+                for (AtomicLongArray stripe : stripes)
+                    n += stripe.get(i);
+                if (n > 0) h.recordBucket(i, n, max.get());
+            }
+            return h;
+        }
+    }
+}
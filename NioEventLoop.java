@@ -0,0 +1,739 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+
+/**
+ * NioEventLoop.java
+ * Selector based event loop used when the Server runs with --mode=nio.  A small fixed number of loops multiplex all client
+ * sockets, and a client is only touched when its socket is readable or messages are waiting in its Connection's msgQueue,
+ * so idle and offline users cost no CPU.  Both wire protocols are supported: each session detects from its first bytes
+ * whether the client speaks the binary Frame protocol or legacy writeUTF strings.
+ *
+ * Messages between binary clients take a zero-copy path (see Session.route()): the frame is copied once out of the read
+ * buffer into a PooledFrame with the sender's name written into its header, that same direct buffer is queued for the
+ * recipient and written with a gathering write, and it goes back to the BufferPool once flushed.
+ *
+ * Output is batched: a session writes up to --batch queued messages with one gathering write, and with --linger-us a
+ * session whose batch is not full waits that long for more messages before it is flushed.  While a flush is pending,
+ * further messages for the session neither reschedule it nor wake the selector.
+ *
+ * A client that has not logged in (with --tls, handshake included) within --handshake-timeout-ms is closed by its loop,
+ * which keeps the sessions still logging in in the order they were registered and checks the oldest after every select.
+ *
+ * Backpressure: after a client sends to a saturated Mailbox its session stops reading (OP_READ is dropped and frames
+ * already in its input buffer wait) until that mailbox drains and hands the session back to its loop.
+ *
+ * With --tls every session reads and writes through a TlsChannel, which runs the handshake on the loop as records arrive.
+ * Frames are still queued and gathered as above, but are encrypted into the TlsChannel's own buffer before the write, so
+ * routed frames are copied once more and go back to the pool as soon as they are encrypted.
+ */
+public class NioEventLoop extends Thread {
+
+    //Most buffers a single gathering write can take (IOV_MAX on Linux)
+    private static final int MAX_GATHER = 1024;
+
+    private final Server server;
+    private final int batch;
+    private final long lingerNanos;
+    private final int compressThreshold;
+    private final long handshakeNanos;
+    private final BufferPool pool;
+    //shared by every session so clients can resume their TLS sessions, null without --tls
+    private final SSLContext tls;
+    private final Selector selector;
+    private final Consumer<SelectionKey> onSelect = this::process;
+    //Channels handed over by the accepting thread, registered by the loop itself
+    private final ConcurrentLinkedQueue<SocketChannel> registrations = new ConcurrentLinkedQueue<>();
+    //Paused sessions whose target mailbox has drained, handed back by whichever thread drained it
+    private final ConcurrentLinkedQueue<Session> resumes = new ConcurrentLinkedQueue<>();
+    //Sessions with newly queued messages, drained by the loop after every select.  Guarded by its own monitor.
+    private final ArrayDeque<Session> flushes = new ArrayDeque<>();
+    //Sessions taken from flushes that are waiting for their linger to expire, or rescheduled by the loop itself because
+    //more messages are waiting.  Only touched by the loop.
+    private final ArrayDeque<Session> pending = new ArrayDeque<>();
+    private boolean rescheduled;
+    //Sessions registered by this loop that may not have logged in yet, oldest first.  Only touched by the loop.
+    private final ArrayDeque<Session> handshakes = new ArrayDeque<>();
+
+    private NioEventLoop(Server server, BufferPool pool, SSLContext tls, ServerConfig config, int id) throws IOException {
+        super("nio-loop-" + id);
+        this.server = server;
+        this.pool = pool;
+        this.tls = tls;
+        this.batch = config.batch;
+        this.lingerNanos = config.lingerNanos;
+        this.compressThreshold = config.compressThreshold;
+        this.handshakeNanos = config.handshakeMillis * 1_000_000L;
+        this.selector = Selector.open();
+    }
+
+    /**
+     * Opens the listening channel, starts the event loops and accepts clients forever, handing each accepted socket to the
+     * next loop in round robin order.
+     * @param server : the Server whose directory the clients log into
+     * @param config : port, number of loops, buffer pool sizes and the TLS key store
+     * @throws IOException if the listening channel cannot be opened or the key store cannot be loaded
+     */
+    static void listen(Server server, ServerConfig config) throws IOException {
+        BufferPool pool = new BufferPool(config.poolChunk, config.poolSize);
+        SSLContext tls = null;
+        if (config.tls != null) {
+            try {
+                tls = TlsChannel.serverContext(config.tls, config.tlsPassword);
+            } catch (java.security.GeneralSecurityException e) {
+                throw new IOException("Cannot load key store " + config.tls, e);
+            }
+        }
+        NioEventLoop[] group = new NioEventLoop[config.loops];
+        for (int i = 0; i < group.length; i++) {
+            group[i] = new NioEventLoop(server, pool, tls, config, i);
+            group[i].start();
+        }
+        ServerSocketChannel ssc = ServerSocketChannel.open();
+        ssc.bind(new InetSocketAddress(config.port), config.backlog);
+        int next = 0;
+        while (true) {
+            SocketChannel channel = ssc.accept();
+            server.metrics.accepted.increment();
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            NioEventLoop loop = group[next++ % group.length];
+            loop.registrations.add(channel);
+            loop.selector.wakeup();
+        }
+    }
+
+    /**
+     * Event loop run() method.  Blocks in select() until a socket is readable or writable, a new channel is handed over,
+     * another loop has queued messages for one of our sessions, a pending session's linger expires, or a client runs out
+     * of time to log in.
+     */
+    @Override
+    public void run() {
+        long deadline = -1;
+        while (true) {
+            try {
+                select(deadline);
+                SocketChannel channel;
+                while ((channel = registrations.poll()) != null) {
+                    Session s = new Session(channel, tls == null ? null : encrypt(channel));
+                    s.key = channel.register(selector, SelectionKey.OP_READ, s);
+                    handshakes.add(s);
+                }
+                Session s;
+                while ((s = resumes.poll()) != null) {
+                    try {
+                        s.resume();
+                    } catch (IOException e) {
+                        s.close();
+                    }
+                }
+                deadline = earliest(flushPending(), expireHandshakes());
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // Selects until the deadline (System.nanoTime(), or -1 for none).  A deadline less than a millisecond away is polled.
+    private void select(long deadline) throws IOException {
+        if (deadline == -1) {
+            selector.select(onSelect);
+            return;
+        }
+        long millis = (deadline - System.nanoTime()) / 1_000_000;
+        if (millis > 0) selector.select(onSelect, millis);
+        else selector.selectNow(onSelect);
+    }
+
+    /**
+     * Flushes every scheduled session whose batch is ready, keeping the others in pending.
+     * @return when the next pending session has to be looked at again, -1 if none is pending
+     */
+    private long flushPending() {
+        Session s;
+        while ((s = nextFlush()) != null)
+            pending.add(s);
+        long now = System.nanoTime();
+        long deadline = -1;
+        rescheduled = false;
+        for (int n = pending.size(); n > 0; n--) {
+            s = pending.poll();
+            long ready = s.flushRequested + lingerNanos;
+            if (lingerNanos != 0 && ready - now > 0 && s.queued() < batch) {
+                pending.add(s);
+                if (deadline == -1 || ready - deadline < 0) deadline = ready;
+                continue;
+            }
+            try {
+                s.flush();
+            } catch (IOException e) {
+                s.close();
+            }
+        }
+        return rescheduled ? now : deadline;
+    }
+
+    /**
+     * Closes the sessions that have not logged in within handshakeNanos, and forgets those that have logged in or closed.
+     * @return when the oldest session still logging in runs out of time, -1 if there is none
+     */
+    private long expireHandshakes() {
+        long now = System.nanoTime();
+        Session s;
+        while ((s = handshakes.peek()) != null) {
+            if (s.connection == null && s.key.isValid()) {
+                long expires = s.registered + handshakeNanos;
+                if (expires - now > 0) return expires;
+                if (Log.DEBUG) Log.debug("Closing " + s.channel.socket().getRemoteSocketAddress() + ", it did not log in in time");
+                s.close();
+            }
+            handshakes.poll();
+        }
+        return -1;
+    }
+
+    // The earlier of two deadlines, either of which may be -1 for none
+    private static long earliest(long a, long b) {
+        if (a == -1) return b;
+        if (b == -1) return a;
+        return a - b < 0 ? a : b;
+    }
+
+    // Handles one selected key
+    private void process(SelectionKey key) {
+        Session s = (Session) key.attachment();
+        try {
+            if (key.isReadable()) s.read();
+            if (key.isValid() && key.isWritable()) s.write();
+        } catch (IOException e) {
+            s.close();
+        }
+    }
+
+    // Wraps an accepted channel in a server side TlsChannel
+    private TlsChannel encrypt(SocketChannel channel) throws IOException {
+        SSLEngine engine = tls.createSSLEngine();
+        engine.setUseClientMode(false);
+        return new TlsChannel(channel, engine, server.metrics.bytesIn, server.metrics.bytesOut);
+    }
+
+    private Session nextFlush() {
+        synchronized (flushes) {
+            return flushes.poll();
+        }
+    }
+
+    /**
+     * Session class (inner class of NioEventLoop)
+     * State of one client socket owned by this loop: its partially read input, the frames waiting to be written, and the
+     * Connection it is logged in as (null until the username frame arrives).
+     */
+    class Session {
+        final SocketChannel channel;
+        //encrypts the channel with --tls, null otherwise
+        private final TlsChannel tls;
+        SelectionKey key;
+        volatile Server.Connection connection;
+        //System.nanoTime() when the loop registered the session, the start of its time to log in
+        final long registered = System.nanoTime();
+        //set once the first two bytes show whether the client sent Frame.MAGIC
+        private boolean negotiated;
+        volatile boolean binary;
+        //protocol version the client sent, 0 for legacy clients
+        volatile int version;
+        //whether the client sent protocol version 4 or later and takes ACKs, see Frame
+        volatile boolean acks;
+        //whether the client offered DEFLATE at login and the Server accepted, see flush()
+        volatile boolean deflate;
+        //starts small and grows to fit the largest frame this client has sent
+        private ByteBuffer in = ByteBuffer.allocate(1024);
+        //frames waiting to be written, then the ones taken from out for the current gathering write
+        private final ArrayDeque<ByteBuffer> out = new ArrayDeque<>();
+        private final ByteBuffer[] gather = new ByteBuffer[Math.min(batch, MAX_GATHER)];
+        private int gathered;
+        //PooledFrames whose buffers are queued in gather or out, in the same order, released once written
+        private final ArrayDeque<PooledFrame> inflight = new ArrayDeque<>();
+        //Messages taken from the Connection's mailbox whose buffers are queued in gather or out, and those buffers (once
+        //per message, so a BATCH appears once for each message in it), in the same order.  Dropped once written, and put
+        //back in the mailbox if the session closes first, see close().
+        private final ArrayDeque<Frame> taken = new ArrayDeque<>();
+        private final ArrayDeque<ByteBuffer> takenBuffers = new ArrayDeque<>();
+        private final AtomicBoolean flushScheduled = new AtomicBoolean();
+        //System.nanoTime() when the pending flush was scheduled, the start of its linger
+        private long flushRequested;
+        //set while reading is stopped by backpressure
+        private boolean paused;
+        private final Runnable resumeLater = () -> {
+            resumes.add(this);
+            selector.wakeup();
+        };
+        //Last recipient routed to, so a conversation does not decode and look up the same username for every message
+        private byte[] lastName;
+        private String lastUsername;
+        private Server.Connection lastDest;
+
+        Session(SocketChannel channel, TlsChannel tls) {
+            this.channel = channel;
+            this.tls = tls;
+        }
+
+        /**
+         * Reads whatever is available and handles every complete frame.  The first frame is the username, after that
+         * messages between binary clients are routed by route() and everything else is passed to the Connection's handle().
+         * Replies to everything that was read, and the ACK for its messages, go out together in one write at the end.
+         * With TLS, plaintext left in the TlsChannel once the input buffer is full is handled before returning, as the
+         * socket will not signal it again.
+         */
+        void read() throws IOException {
+            if (tls != null) {
+                readTls();
+                return;
+            }
+            int n = channel.read(in);
+            if (n < 0) {
+                close();
+                return;
+            }
+            server.metrics.bytesIn.add(n);
+            in.flip();
+            process();
+        }
+
+        private void readTls() throws IOException {
+            do {
+                int n = tls.read(in);
+                if (n < 0) {
+                    close();
+                    return;
+                }
+                in.flip();
+                process();
+            } while (tls.buffered() && in.hasRemaining() && !paused && key.isValid());
+        }
+
+        // Handles the complete frames in the (flipped) input buffer, stopping early if backpressure pauses the session
+        private void process() throws IOException {
+            while (true) {
+                Server.Connection c = connection;
+                if (c != null && c.paused()) {
+                    pause(c.pausedOn);
+                    break;
+                }
+                if (c != null && binary && route(c)) continue;
+                Frame msg = nextFrame();
+                if (msg == null) break;
+                if (c == null) {
+                    deflate = binary && server.deflate(msg, version);
+                    Frame rejected = server.login(msg.name, this);
+                    if (rejected != null) {
+                        send(rejected);
+                        write();
+                        close();
+                        return;
+                    }
+                    if (binary) send(Server.loginAccepted(connection));
+                    continue;
+                }
+                c.handle(msg);
+                //"closing" puts the Connection to sleep, its messages stay queued until the user logs in again
+                if (!c.awake) {
+                    close();
+                    return;
+                }
+            }
+            Server.Connection c = connection;
+            if (c != null && c.acks) sendAck(c);
+            in.compact();
+            write();
+        }
+
+        /**
+         * Routes the next frame if it is a complete MSG or SEND for a user who is online, without decoding it: the frame is
+         * copied into a PooledFrame with this client's name as the sender, queued for the recipient, and the recipient's
+         * pre-encoded "Message delivered" warning is sent back (or, to a client that takes ACKs, counted for the next one).  Between two clients measuring latency the copy is a
+         * STAMPED frame with the Server's ingress time, a message from one to a client that does not is left for handle()
+         * which translates its timestamp.  A SEND frame's recipient is found by the id in its handle,
+         * see Server.lookup(long).  Anything else (other frame types, unknown or offline recipients, recipients handed to
+         * another node while the frame was being copied, frames larger than a pool chunk) is left for nextFrame() and
+         * handle().
+         * @param c : this session's Connection
+         * @return true if a frame was routed
+         */
+        private boolean route(Server.Connection c) throws IOException {
+            int start = in.position();
+            if (in.remaining() < 4 + Frame.HEADER_LENGTH) return false;
+            int length = in.getInt(start);
+            if (length > Frame.MAX_LENGTH || in.remaining() < 4 + length) return false;
+            byte type = in.get(start + 4);
+            if (type != Frame.MSG && type != Frame.SEND) return false;
+            int nameLength = in.getShort(start + 5) & 0xFFFF;
+            if (type == Frame.SEND && nameLength != 8) return false;
+            int tail = length - 3 - nameLength;  //timestamp, payload length and payload
+            if (tail < 12) return false;
+            byte[] sender = c.nameBytes;
+            if (4 + 3 + sender.length + tail > pool.chunkSize) return false;
+
+            long lookup = System.nanoTime();
+            long handle = type == Frame.SEND ? in.getLong(start + 7) : Frame.NO_HANDLE;
+            Server.Connection dest = type == Frame.SEND ? server.lookup(handle) : recipient(start + 7, nameLength);
+            if (dest == null || !dest.awake) return false;
+            boolean stamped = c.stamped;
+            if (stamped != (dest.stamped && dest.binary)) return false;
+            int stamps = stamped ? Frame.STAMPS : 0;
+            if (4 + 3 + sender.length + tail + stamps > pool.chunkSize) return false;
+
+            PooledFrame frame = pool.acquire();
+            ByteBuffer buf = frame.buffer;
+            int body = start + 7 + nameLength;
+            buf.putInt(3 + sender.length + tail + stamps);
+            buf.put(stamped ? Frame.STAMPED : Frame.MSG);
+            buf.putShort((short) sender.length);
+            buf.put(sender);
+            if (stamped) {
+                buf.putLong(in.getLong(body));
+                buf.putInt(in.getInt(body + 8) + stamps);
+                buf.putLong(System.nanoTime()).putLong(0);
+                body += 12;
+                tail -= 12;
+            }
+            buf.put(buf.position(), in, body, tail);
+            buf.position(buf.position() + tail);
+            buf.flip();
+            in.position(start + 4 + length);
+            c.received++;
+
+            Mailbox.Delivery delivery = dest.receiveMsg(frame);
+            //handed to another node since the awake check: the frame went back to the pool, and the message is read
+            //again by nextFrame() and handled like any message for a user who is not here
+            if (delivery == Mailbox.Delivery.MOVED) {
+                in.position(start);
+                c.received--;
+                return false;
+            }
+            server.metrics.routing.record(System.nanoTime() - lookup);
+            server.metrics.delivered(delivery);
+            if (delivery == Mailbox.Delivery.QUEUED) {
+                if (c.acks) c.lastDelivered = dest.username;
+                else sendNotice(dest.deliveredNotice);
+            }
+            else if (delivery == Mailbox.Delivery.OFFLINE) c.reply(String.format("%s is offline and will get your message when they wake up.", dest.username));
+            else c.reply(String.format("%s's mailbox is full, your message was not delivered.", dest.username));
+            if (type == Frame.SEND && dest.handle() != handle) send(dest.resolved());
+            c.checkBackpressure(dest);
+            return true;
+        }
+
+        /**
+         * Finds the recipient whose UTF-8 name is stored in the input buffer, reusing the last lookup if the name matches
+         * and that user has not been renamed since.
+         * @return the recipient's Connection, or null if there is no such user
+         */
+        private Server.Connection recipient(int offset, int length) {
+            Server.Connection dest = lastDest;
+            if (dest != null && dest.username == lastUsername && lastName.length == length) {
+                int i = 0;
+                while (i < length && in.get(offset + i) == lastName[i]) i++;
+                if (i == length) return dest;
+            }
+            byte[] name = new byte[length];
+            in.get(offset, name);
+            dest = server.lookup(new String(name, StandardCharsets.UTF_8));
+            if (dest != null) {
+                lastName = name;
+                lastUsername = dest.username;
+                lastDest = dest;
+            }
+            return dest;
+        }
+
+        /**
+         * Decodes the next complete frame from the input buffer.  Legacy strings are translated with Frame.fromLegacy(),
+         * except for the first one which is the username.
+         * @return the frame, or null if more bytes are needed
+         */
+        private Frame nextFrame() throws IOException {
+            if (!negotiated) {
+                if (in.remaining() < 2) return null;
+                if ((in.getShort(in.position()) & 0xFFFF) == Frame.MAGIC) {
+                    //magic followed by the client's version byte
+                    if (in.remaining() < 3) return null;
+                    version = in.get(in.position() + 2) & 0xFF;
+                    acks = version >= 4;
+                    in.position(in.position() + 3);
+                    binary = true;
+                }
+                negotiated = true;
+            }
+            if (binary) {
+                if (in.remaining() < 4) return null;
+                int length = in.getInt(in.position());
+                if (length < Frame.HEADER_LENGTH || length > Frame.MAX_LENGTH) throw new IOException("Bad frame length " + length);
+                if (in.remaining() < 4 + length) {
+                    grow(4 + length);
+                    return null;
+                }
+                in.position(in.position() + 4);
+                return Frame.read(in, length);
+            }
+            if (in.remaining() < 2) return null;
+            int len = in.getShort(in.position()) & 0xFFFF;
+            if (in.remaining() < 2 + len) {
+                grow(2 + len);
+                return null;
+            }
+            in.position(in.position() + 2);
+            String text = Frame.readUTF(in, len);
+            return connection == null ? new Frame(Frame.LOGIN, text, 0, "") : Frame.fromLegacy(text);
+        }
+
+        // Makes sure a frame of the given size fits in the input buffer once it has been compacted
+        private void grow(int size) {
+            if (in.capacity() < size) in = ByteBuffer.allocate(size).put(in).flip();
+        }
+
+        // Stops reading until the mailbox drains.  Frames already read stay in the input buffer.
+        private void pause(Mailbox saturated) {
+            paused = true;
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            if (saturated != null) saturated.whenDrained(resumeLater);
+            else resumeLater.run();
+        }
+
+        // Starts reading again once the mailbox that paused the session has drained, handling the frames left waiting
+        private void resume() throws IOException {
+            if (!paused || !key.isValid()) return;
+            paused = false;
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            in.flip();
+            process();
+            if (tls != null && tls.buffered() && !paused && key.isValid()) readTls();
+        }
+
+        /**
+         * Called from any thread when a message has been queued for this session's Connection.  Hands the session to its
+         * loop, waking the selector only if a flush is not already pending.
+         */
+        void scheduleFlush() {
+            if (flushScheduled.compareAndSet(false, true)) {
+                flushRequested = System.nanoTime();
+                synchronized (flushes) {
+                    flushes.add(this);
+                }
+                selector.wakeup();
+            }
+        }
+
+        // Number of messages waiting in the Connection's msgQueue
+        private int queued() {
+            Server.Connection c = connection;
+            return c == null ? 0 : c.queued();
+        }
+
+        /**
+         * Moves up to a batch of queued messages from the Connection into the output frames and writes as much as the
+         * socket takes.  Nothing is taken while the socket is full, so messages for a slow client wait in its Mailbox
+         * where they count towards its capacity.  Once the output has been written out, write() reschedules the session
+         * if more messages are waiting.  For a client that takes DEFLATE the batch is queued as one compressed BATCH frame
+         * instead, see queueCompressed().
+         */
+        private void flush() throws IOException {
+            flushScheduled.set(false);
+            Server.Connection c = connection;
+            if (c == null || c.session != this || !channel.isOpen() || gathered > 0 || tls != null && tls.pending()) return;
+            if (deflate) {
+                queueCompressed(c);
+                write();
+                return;
+            }
+            Frame msg;
+            int n = 0;
+            while (n < batch && (msg = c.removeMsg()) != null) {
+                taken.add(queue(msg));
+                takenBuffers.add(out.peekLast());
+                n++;
+            }
+            write();
+        }
+
+        /**
+         * Takes up to a batch of queued messages and queues them as one BATCH frame, or as they are if they add up to
+         * fewer than --compress-threshold bytes, see Server.Connection.writeCompressed().  Pooled frames are copied into
+         * the batch and go back to the pool right away, so a compressing client does not take the zero-copy path.
+         */
+        private void queueCompressed(Server.Connection c) throws IOException {
+            Compression.Batch frames = new Compression.Batch();
+            int before = taken.size();
+            Frame msg;
+            for (int n = 0; n < batch && (msg = c.removeMsg()) != null; n++) {
+                frames.add(msg);
+                if (msg instanceof PooledFrame) {
+                    taken.add(((PooledFrame) msg).decode());
+                    ((PooledFrame) msg).release();
+                }
+                else taken.add(msg);
+            }
+            if (frames.size() == 0) return;
+            Frame compressed = frames.compress(compressThreshold);
+            out.add(compressed == null ? frames.buffer() : compressed.encodeBinary());
+            for (int n = taken.size() - before; n > 0; n--)
+                takenBuffers.add(out.peekLast());
+            if (compressed != null) server.metrics.compressionSaved.add(frames.size() - compressed.payload.length);
+        }
+
+        // Flushes again on the loop's next pass, without lingering.  Only called on the loop thread.
+        private void reschedule() {
+            if (flushScheduled.compareAndSet(false, true)) {
+                flushRequested = System.nanoTime() - lingerNanos;
+                pending.add(this);
+                rescheduled = true;
+            }
+        }
+
+        // Adds a frame to the output.  Pooled frames are written straight from their direct buffer to binary clients, and
+        // decoded for legacy ones.  Returns the frame, or the decoded copy of a pooled frame that went back to the pool.
+        private Frame queue(Frame msg) throws IOException {
+            msg.stampEgress();
+            if (msg instanceof PooledFrame) {
+                PooledFrame pooled = (PooledFrame) msg;
+                if (binary) {
+                    out.add(pooled.buffer);
+                    inflight.add(pooled);
+                    return pooled;
+                }
+                Frame decoded = pooled.decode();
+                out.add(decoded.encode(false));
+                pooled.release();
+                return decoded;
+            }
+            out.add(msg.encode(binary));
+            return msg;
+        }
+
+        /**
+         * Queues a frame for this client, written at the end of read().  Only called on this session's loop thread.
+         * @param msg : the frame to send
+         */
+        void send(Frame msg) throws IOException {
+            queue(msg);
+        }
+
+        // Queues the ACK for the messages handled, encoded straight into a pooled buffer
+        private void sendAck(Server.Connection c) throws IOException {
+            PooledFrame frame = pool.acquire();
+            if (c.ack(frame.buffer)) {
+                frame.buffer.flip();
+                out.add(frame.buffer);
+                inflight.add(frame);
+                return;
+            }
+            frame.release();
+            //nothing to acknowledge, or a name too long for a pool chunk
+            Frame ack = c.ack();
+            if (ack != null) send(ack);
+        }
+
+        // Queues an already encoded binary frame by copying it into a pooled buffer
+        private void sendNotice(byte[] encoded) {
+            PooledFrame frame = pool.acquire();
+            frame.buffer.put(encoded).flip();
+            out.add(frame.buffer);
+            inflight.add(frame);
+        }
+
+        /**
+         * Writes queued frames with gathering writes until the socket buffer is full, then waits for OP_WRITE to continue.
+         * Once everything is written, messages that waited in the mailbox meanwhile are flushed next.  With TLS the frames
+         * are done once encrypted, and the session waits for OP_WRITE while encrypted output is left, or for the client's
+         * next handshake message (OP_READ) if the handshake is not finished.
+         */
+        void write() throws IOException {
+            if (!key.isValid()) return;
+            while (true) {
+                while (gathered < gather.length && !out.isEmpty())
+                    gather[gathered++] = out.poll();
+                if (tls != null) {
+                    if (gathered == 0 && !tls.pending()) break;
+                    tls.write(gather, 0, gathered);
+                }
+                else {
+                    if (gathered == 0) break;
+                    server.metrics.bytesOut.add(channel.write(gather, 0, gathered));
+                }
+                int done = 0;
+                while (done < gathered && !gather[done].hasRemaining()) {
+                    while (takenBuffers.peek() == gather[done]) {
+                        takenBuffers.poll();
+                        taken.poll();
+                    }
+                    if (gather[done].isDirect()) inflight.poll().release();
+                    done++;
+                }
+                System.arraycopy(gather, done, gather, 0, gathered - done);
+                Arrays.fill(gather, gathered - done, gathered, null);
+                gathered -= done;
+                if (tls != null && tls.blocked()) {
+                    key.interestOps(paused ? 0 : SelectionKey.OP_READ);
+                    return;
+                }
+                if (gathered > 0 || tls != null && tls.pending()) {
+                    key.interestOps((paused ? 0 : SelectionKey.OP_READ) | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+            key.interestOps(paused ? 0 : SelectionKey.OP_READ);
+            if (queued() > 0) reschedule();
+        }
+
+        /**
+         * Closes the socket.  Messages taken from the Connection's mailbox that have not been written out are put back at
+         * its head, like Server.Connection.writeBatch() does when a write fails.  If this session was the Connection's live
+         * session the Connection goes to sleep, keeping its messages until the user logs in again.  Pooled buffers that
+         * were still waiting to be written go back to the pool.
+         */
+        void close() {
+            Server.Connection c = connection;
+            if (c != null) requeueTaken(c);
+            if (c != null && c.session == this) c.sleep();
+            key.cancel();
+            out.clear();
+            Arrays.fill(gather, null);
+            gathered = 0;
+            PooledFrame pooled;
+            while ((pooled = inflight.poll()) != null)
+                pooled.release();
+            try {
+                if (tls != null) tls.close();
+                else channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        // Puts the messages taken from the mailbox and not written back in it, oldest first.  Pooled frames are decoded,
+        // as their buffers go back to the pool.
+        private void requeueTaken(Server.Connection c) {
+            Frame[] unwritten = new Frame[taken.size()];
+            int n = 0;
+            Frame msg;
+            while ((msg = taken.poll()) != null) {
+                try {
+                    unwritten[n] = msg instanceof PooledFrame ? ((PooledFrame) msg).decode() : msg;
+                    n++;
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            takenBuffers.clear();
+            if (n > 0) c.requeue(unwritten, n);
+        }
+    }
+}
@@ -0,0 +1,317 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * OfflineLog.java
+ * Write-ahead log for messages sent to users who are offline, enabled with --wal=DIR.  Instead of piling up in a sleeping
+ * Connection's msgQueue, such messages are appended to memory mapped segment files, and handed back to the Connection when
+ * the user logs in again (see Server.Connection.replay()), so they survive a Server restart.
+ *
+ * Every record is
+ *     int body length | int CRC32 of body | body
+ * where the body is
+ *     byte kind | long sequence | short user length | user (UTF-8) | (MSG records only) the frame in Frame's binary format
+ * A MSG record is a message waiting for the user, an ACK record says every MSG record for the user with a sequence number
+ * up to its own has been delivered.  Records are never changed once written.  Segments are named by the log offset of
+ * their first byte and are zero filled when created, so the end of the log is the first zero length (or a record whose
+ * CRC does not match, if the Server died in the middle of a write).
+ *
+ * Recovery scans the segments once, keeping only an index of the records that are still pending.  Segments are deleted
+ * from the oldest one as soon as all their MSG records are delivered.  An ACK is always written after the records it
+ * covers, so deleting from the oldest segment never loses an ACK for a record that is still on disk.  When the oldest
+ * segment is kept alive by a few records for users who do not come back, those records are copied to the newest segment
+ * (with their original sequence numbers) so the rest of it can be deleted.
+ *
+ * Records are written to the page cache through the mapping, so they survive the Server process dying.  Segments are
+ * forced to disk when they fill up, a machine crash can lose what was written to the newest segment since then.
+ */
+public class OfflineLog {
+
+    private static final byte MSG = 1;
+    private static final byte ACK = 2;
+    //body length and CRC
+    private static final int RECORD_HEADER = 4 + 4;
+    //an old segment is compacted once less than this fraction of it is still pending
+    private static final int COMPACT_DIVISOR = 4;
+
+    private final File dir;
+    private final int segmentSize;
+    //oldest first, the last one is appended to
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+    //records not yet delivered, per user in sequence order
+    private final HashMap<String, ArrayDeque<Entry>> pending = new HashMap<>();
+    private final CRC32 crc = new CRC32();
+    private long sequence;
+
+    /** One segment file and its mapping */
+    private static class Segment {
+        final long base;
+        final File file;
+        final MappedByteBuffer map;
+        //bytes of MSG records that are still pending
+        long live;
+
+        Segment(long base, File file, MappedByteBuffer map) {
+            this.base = base;
+            this.file = file;
+            this.map = map;
+        }
+    }
+
+    /** Location of a pending MSG record */
+    private static class Entry {
+        final long seq;
+        Segment segment;
+        int position;
+        int size;
+
+        Entry(long seq, Segment segment, int position, int size) {
+            this.seq = seq;
+            this.segment = segment;
+            this.position = position;
+            this.size = size;
+        }
+    }
+
+    private OfflineLog(File dir, int segmentSize) {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Opens the log in a directory, recovering every message that was still pending when the Server last stopped.
+     * @param dir : directory holding the segment files, created if needed
+     * @param segmentSize : size of each segment file in bytes (a single larger message gets a segment of its own)
+     * @return the log, ready for appending
+     * @throws IOException if the directory or a segment cannot be opened
+     */
+    static OfflineLog open(File dir, int segmentSize) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Cannot create " + dir);
+        OfflineLog log = new OfflineLog(dir, segmentSize);
+        File[] files = dir.listFiles((d, name) -> name.endsWith(".wal"));
+        Arrays.sort(files);
+        for (File f : files) {
+            //a segment that was being created when the Server died
+            if (f.length() == 0) {
+                f.delete();
+                continue;
+            }
+            long base = Long.parseLong(f.getName().substring(0, f.getName().length() - 4));
+            log.segments.add(log.recover(log.map(base, f, f.length())));
+        }
+        //copied records are out of order, and a copy and its original both exist if the Server died while compacting
+        for (ArrayDeque<Entry> entries : log.pending.values()) {
+            Entry[] sorted = entries.toArray(new Entry[0]);
+            Arrays.sort(sorted, Comparator.comparingLong(e -> e.seq));
+            entries.clear();
+            for (Entry e : sorted) {
+                Entry previous = entries.peekLast();
+                if (previous != null && previous.seq == e.seq) {
+                    previous.segment.live -= previous.size;
+                    entries.pollLast();
+                }
+                entries.add(e);
+            }
+        }
+        if (log.segments.isEmpty()) log.roll(0, 0);
+        log.compact();
+        return log;
+    }
+
+    // Maps a segment file, creating (and zero filling) it if it does not exist
+    private Segment map(long base, File file, long size) throws IOException {
+        try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            return new Segment(base, file, ch.map(FileChannel.MapMode.READ_WRITE, 0, size));
+        }
+    }
+
+    /**
+     * Scans a segment during open(), adding its MSG records to pending and applying its ACK records, and leaves its
+     * position at the end of the last valid record.
+     */
+    private Segment recover(Segment s) {
+        ByteBuffer map = s.map;
+        while (map.remaining() >= RECORD_HEADER) {
+            int start = map.position();
+            int length = map.getInt(start);
+            if (length <= 0 || length > map.remaining() - RECORD_HEADER) break;
+            crc.reset();
+            crc.update(map.duplicate().position(start + RECORD_HEADER).limit(start + RECORD_HEADER + length));
+            if ((int) crc.getValue() != map.getInt(start + 4)) break;
+            map.position(start + RECORD_HEADER);
+            byte kind = map.get();
+            long seq = map.getLong();
+            byte[] user = new byte[map.getShort() & 0xFFFF];
+            map.get(user);
+            String username = new String(user, StandardCharsets.UTF_8);
+            sequence = Math.max(sequence, seq + 1);
+            int size = RECORD_HEADER + length;
+            if (kind == MSG) {
+                pending.computeIfAbsent(username, u -> new ArrayDeque<>()).add(new Entry(seq, s, start, size));
+                s.live += size;
+            }
+            else if (kind == ACK) {
+                ArrayDeque<Entry> entries = pending.get(username);
+                if (entries != null) {
+                    entries.removeIf(e -> {
+                        if (e.seq > seq) return false;
+                        e.segment.live -= e.size;
+                        return true;
+                    });
+                    if (entries.isEmpty()) pending.remove(username);
+                }
+            }
+            map.position(start + size);
+        }
+        return s;
+    }
+
+    // Starts a new segment at the given log offset (the end of the previous segment), big enough for at least one record of the given size
+    private void roll(long base, int recordSize) throws IOException {
+        Segment last = segments.peekLast();
+        if (last != null) last.map.force();
+        File file = new File(dir, String.format("%020d.wal", base));
+        segments.add(map(base, file, Math.max(segmentSize, recordSize)));
+    }
+
+    /**
+     * Appends one record to the newest segment, rolling to a new segment if it does not fit.
+     * @param frame : the frame in binary format for a MSG record, null for an ACK record
+     * @return where the record was written
+     */
+    private Entry write(byte kind, long seq, byte[] user, ByteBuffer frame) throws IOException {
+        int length = 1 + 8 + 2 + user.length + (frame == null ? 0 : frame.remaining());
+        int size = RECORD_HEADER + length;
+        Segment s = segments.getLast();
+        if (s.map.remaining() < size) {
+            roll(s.base + s.map.capacity(), size);
+            s = segments.getLast();
+        }
+        MappedByteBuffer map = s.map;
+        int start = map.position();
+        map.position(start + RECORD_HEADER);
+        map.put(kind);
+        map.putLong(seq);
+        map.putShort((short) user.length);
+        map.put(user);
+        if (frame != null) map.put(frame.duplicate());
+        crc.reset();
+        crc.update(map.duplicate().position(start + RECORD_HEADER).limit(start + size));
+        map.putInt(start + 4, (int) crc.getValue());
+        //the length goes in last, a record is not part of the log until it is complete
+        map.putInt(start, length);
+        return new Entry(seq, s, start, size);
+    }
+
+    /**
+     * Appends a message for an offline user.
+     * @param username : the recipient
+     * @param msg : the message, addressed from its sender
+     */
+    synchronized void append(String username, Frame msg) throws IOException {
+        Entry e = write(MSG, sequence++, username.getBytes(StandardCharsets.UTF_8), msg.encode(true));
+        e.segment.live += e.size;
+        pending.computeIfAbsent(username, u -> new ArrayDeque<>()).add(e);
+    }
+
+    // Whether messages are waiting in the log for a user
+    synchronized boolean has(String username) {
+        return pending.containsKey(username);
+    }
+
+    // Number of messages waiting in the log for a user
+    synchronized int pending(String username) {
+        ArrayDeque<Entry> entries = pending.get(username);
+        return entries == null ? 0 : entries.size();
+    }
+
+    // Users with messages waiting in the log
+    synchronized Set<String> users() {
+        return new HashSet<>(pending.keySet());
+    }
+
+    /**
+     * Moves the oldest messages waiting for a user out of the log and records that they were delivered.
+     * @param username : the user the messages are for
+     * @param max : most messages to take
+     * @param into : queue the messages are added to, oldest first
+     * @return the number of messages
+     */
+    synchronized int take(String username, int max, Collection<Frame> into) throws IOException {
+        ArrayDeque<Entry> entries = pending.get(username);
+        if (entries == null) return 0;
+        int n = 0;
+        long last = 0;
+        Entry e;
+        while (n < max && (e = entries.poll()) != null) {
+            into.add(readFrame(e));
+            e.segment.live -= e.size;
+            last = e.seq;
+            n++;
+        }
+        if (entries.isEmpty()) pending.remove(username);
+        if (n == 0) return 0;
+        write(ACK, last, username.getBytes(StandardCharsets.UTF_8), null);
+        compact();
+        return n;
+    }
+
+    /**
+     * Moves every message waiting for one user to another, when a user with spilled messages changes their username.
+     * @param from : the old username
+     * @param to : the new username
+     */
+    synchronized void move(String from, String to) throws IOException {
+        ArrayList<Frame> msgs = new ArrayList<>();
+        take(from, Integer.MAX_VALUE, msgs);
+        for (Frame msg : msgs)
+            append(to, msg);
+    }
+
+    // Decodes the frame stored in a MSG record
+    private Frame readFrame(Entry e) throws IOException {
+        ByteBuffer buf = e.segment.map.duplicate();
+        buf.position(e.position + RECORD_HEADER + 1 + 8);
+        buf.position(buf.position() + 2 + (buf.getShort() & 0xFFFF));
+        return Frame.read(buf, buf.getInt());
+    }
+
+    /**
+     * Deletes old segments that no longer hold pending messages.  If the oldest segment is mostly delivered, its pending
+     * records are copied to the newest segment first.
+     */
+    private void compact() throws IOException {
+        while (segments.size() > 1) {
+            Segment oldest = segments.getFirst();
+            if (oldest.live > 0) {
+                if (oldest.live * COMPACT_DIVISOR > oldest.map.capacity()) return;
+                copyForward(oldest);
+            }
+            segments.removeFirst();
+            if (!oldest.file.delete()) Log.warn("Could not delete " + oldest.file);
+        }
+    }
+
+    // Rewrites the pending records of a segment at the end of the log, keeping their sequence numbers
+    private void copyForward(Segment from) throws IOException {
+        for (Map.Entry<String, ArrayDeque<Entry>> user : pending.entrySet()) {
+            byte[] name = user.getKey().getBytes(StandardCharsets.UTF_8);
+            for (Entry e : user.getValue()) {
+                if (e.segment != from) continue;
+                Entry copy = write(MSG, e.seq, name, readFrame(e).encodeBinary());
+                e.segment = copy.segment;
+                e.position = copy.position;
+                e.size = copy.size;
+                e.segment.live += e.size;
+            }
+        }
+        from.live = 0;
+    }
+}
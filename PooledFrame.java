@@ -0,0 +1,47 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ * PooledFrame.java
+ * PooledFrame class stores a complete binary MSG (or STAMPED) frame, already addressed from its sender, in a direct buffer
+ * owned by a BufferPool.  It is written to binary clients as is, and only decoded when a legacy client has to receive it.
+ */
+public class PooledFrame extends Frame {
+
+    final BufferPool pool;
+    final ByteBuffer buffer;
+
+    PooledFrame(BufferPool pool, ByteBuffer buffer) {
+        super(MSG, "", 0, EMPTY);
+        this.pool = pool;
+        this.buffer = buffer;
+    }
+
+    // Decodes the buffer into an ordinary Frame, from its start even if part of it has been written
+    Frame decode() throws IOException {
+        ByteBuffer copy = buffer.duplicate().rewind();
+        return Frame.read(copy, copy.getInt());
+    }
+
+    // Returns the frame to its pool
+    void release() {
+        pool.release(this);
+    }
+
+    // Writes the egress time of a STAMPED frame into the buffer, after its length, header, sender, timestamp and ingress time
+    @Override
+    void stampEgress() {
+        if (buffer.get(4) == STAMPED)
+            buffer.putLong(4 + 3 + (buffer.getShort(5) & 0xFFFF) + 12 + 8, System.nanoTime());
+    }
+
+    @Override
+    ByteBuffer encode(boolean binary) throws IOException {
+        return binary ? buffer : decode().encode(false);
+    }
+
+    @Override
+    void writeTo(DataOutputStream out, boolean binary) throws IOException {
+        decode().writeTo(out, binary);
+    }
+}
@@ -1,9 +1,19 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 
-/** 
+/**
  * Server.java
  * Server class handles the server that connects all clients.
  * Maintains threads used for communication, and a directory to lookup available client threads.
@@ -11,149 +21,1074 @@ import java.util.concurrent.ConcurrentLinkedQueue;
 public class Server {
     //Server directory stores list of connected Clients.
     // Key: username
-    // Value: Connection class (Thread)
-    private Map<String, Connection> server_directory = Collections.synchronizedMap(new HashMap<>());
+    // Value: Connection class (Runnable, one thread per client in thread and virtual mode)
+    private final UserDirectory<Connection> server_directory = new UserDirectory<>();
 
-    //delayFile stores the time delay of messages sent between clients in milliseconds.  Writes all client time delays to a single file.
-    private File delayFile = new File("delay.txt");
+    //Channels by name ("#name"), created by their first JOIN and removed when their last member leaves
+    private final ConcurrentHashMap<String, Channel> channels = new ConcurrentHashMap<>();
+
+    //latencyFile holds the percentiles of the message delays reported by every client that has closed, in milliseconds.
+    private final File latencyFile = new File("latency.txt");
+
+    //Delay histograms sent by closing clients, merged by collectLatencies() so connection threads never wait on the file
+    private final BlockingQueue<byte[]> closings = new LinkedBlockingQueue<>();
+
+    private final ServerConfig config;
+
+    //Creates the threads Connections run on: platform threads in thread mode, virtual threads in virtual mode
+    private final ThreadFactory connectionThreads;
+
+    //Messages for offline users when started with --wal, null otherwise
+    private final OfflineLog offlineLog;
+
+    //Traffic counters, served over HTTP with --metrics
+    final Metrics metrics = new Metrics();
+
+    //The other nodes when started with --cluster, null otherwise
+    final Cluster cluster;
+
+    //Messages handed to this node by the rest of the Cluster for users who have not logged in here since, by username.
+    //Only changed inside server_directory.update() for the username.  With --wal they go to the offline log instead.
+    private final ConcurrentHashMap<String, List<Frame>> adopted = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor for Server.java.  Connections are accepted afterwards by either acceptConnections() or the NIO event
+     * loops, depending on the mode the Server was started in.
+     * @param config : the startup options
+     * @throws IOException if the offline log cannot be opened
+     */
+    Server(ServerConfig config) throws IOException {
+        this.config = config;
+        this.connectionThreads = config.mode == ServerConfig.Mode.VIRTUAL ? virtualThreads() : Thread::new;
+        if(latencyFile.delete()) Log.info("Latency file deleted");
+        if (config.wal != null) {
+            long start = System.nanoTime();
+            offlineLog = OfflineLog.open(new File(config.wal), config.walSegment);
+            Log.info("Offline log " + config.wal + " recovered messages for " + offlineLog.users().size()
+                    + " users in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+        }
+        else offlineLog = null;
+        cluster = config.cluster > 0 ? new Cluster(this, config) : null;
+    }
 
-    //Used in testing to see when all sockets have been closed
-    private int closed = 0;
     /**
-     * Constructor for Server.java continuously listens for client sockets trying to connect.  If one connects and has an
-     * allowable username, the Server starts a new Connections thread for the socket.  The Server also adds the username and
-     * Connection thread to the server_directory.
+     * Listens for clients in thread and virtual mode.  config.acceptors threads accept connections, each on a listening
+     * socket of its own bound with SO_REUSEPORT where the OS supports it, so the kernel spreads new connections over them,
+     * and otherwise all on the same one.  The first acceptor runs on the calling thread.
+     */
+    private void listen() throws IOException {
+        boolean reusePort = config.acceptors > 1
+                && new ServerSocket().supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        ServerSocket shared = reusePort ? null : bind(false);
+        for (int i = config.acceptors - 1; i >= 0; i--) {
+            ServerSocket ss = reusePort ? bind(true) : shared;
+            if (i == 0) {
+                acceptConnections(ss);
+                return;
+            }
+            Thread acceptor = new Thread(() -> {
+                try {
+                    acceptConnections(ss);
+                } catch (IOException e) {
+                    Log.error("Acceptor stopped", e);
+                }
+            }, "acceptor-" + i);
+            acceptor.start();
+        }
+    }
+
+    // A listening socket on config.port with room for config.backlog connections waiting to be accepted
+    private ServerSocket bind(boolean reusePort) throws IOException {
+        ServerSocket ss = new ServerSocket();
+        if (reusePort) ss.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        ss.bind(new InetSocketAddress(config.port), config.backlog);
+        return ss;
+    }
+
+    /**
+     * Continuously listens for client sockets trying to connect, and hands each one to a thread of its own (virtual in
+     * virtual mode) for handshake(), so accepting the next socket never waits for a client to send its username.
      * @param ss ServerSocket the server will listen to for potential new connections
      * @throws IOException If the socket is not connected correctly
      */
-    private Server(ServerSocket ss) throws IOException {
-        if(delayFile.delete()) System.out.println("Delay file deleted");
+    private void acceptConnections(ServerSocket ss) throws IOException {
         while(true){
-            //accept packet and extract name
             Socket s = ss.accept();
-            DataInputStream dis = new DataInputStream(s.getInputStream());
-            DataOutputStream dos = new DataOutputStream(s.getOutputStream());
-            String username = dis.readUTF();
+            metrics.accepted.increment();
+            connectionThreads.newThread(() -> handshake(s)).start();
+        }
+    }
+
+    /**
+     * Reads the username from a newly accepted socket and logs the client in.  If it has an allowable username, a sleeping
+     * Connection of the same name is woken with the socket, and otherwise the Server adds a new Connection to the
+     * server_directory.  Either way the Connection then runs on this thread until the client leaves again.  Logins of different clients run at the same time,
+     * and those of one username are kept apart by login().  A client that has not sent its username within
+     * config.handshakeMillis is disconnected.
+     * @param s : the accepted socket
+     */
+    private void handshake(Socket s) {
+        Connection[] logged = new Connection[1];
+        try {
+            //extract name.  Binary clients start with Frame.MAGIC where legacy clients send the length of their writeUTF
+            //username.
+            s.setSoTimeout(config.handshakeMillis);
+            DataInputStream dis = new DataInputStream(metrics.counting(s.getInputStream()));
+            DataOutputStream dos = output(s);
+            int head = dis.readUnsignedShort();
+            boolean binary = head == Frame.MAGIC;
+            String username;
+            int version = 0;
+            boolean deflate = false;
+            if (binary) {
+                version = dis.readUnsignedByte(); //client version, see Frame
+                Frame login = Frame.read(dis);
+                username = login.name;
+                deflate = deflate(login, version);
+            }
+            else username = Frame.readUTF(dis, head);
+            s.setSoTimeout(0);
 
             //check if the desired client username is allowable.  "username", "warning", and "robotuser"
             // are used in communication, therefore are not allowed as usernames.
-            if(username.equals("username") || username.equals("warning") || username.equals("robotuser")){
-                dos.writeUTF("warning:::0:::Invalid username. Try again.");
+            Frame refused = isReserved(username) ? Frame.warning("Invalid username. Try again.")
+                    : cluster == null ? null : cluster.refuse(username, binary, version);
+            if(refused != null){
+                refused.writeTo(dos, binary);
+                dos.flush();
                 s.close();
-                continue;
+                return;
             }
 
             //see if this name is associated with a connection already, call this connection c
-            Connection c;
-            if((c = server_directory.get(username)) != null){
-                //In this case, the user does exist and wishes to reconnect.
-                if(!c.awake){
-                    c.wake(s);
-                }
-                else{
-                    dos.writeUTF("warning:::0:::Username is taken! Try again.");
-                    s.close();
+            boolean takesAcks = version >= 4;
+            boolean takesDeflate = deflate;
+            boolean accepted = login(username,
+                    //In this case, the user does exist and wishes to reconnect.
+                    c -> {
+                        c.deflate = takesDeflate;
+                        acknowledge(dos, binary, c);
+                        c.acks = takesAcks;
+                        c.wake(s, binary);
+                        logged[0] = c;
+                    },
+                    //establish new user if name not recognized
+                    id -> {
+                        Connection c = new Connection(id, s, username, dis, dos, binary);
+                        c.acks = takesAcks;
+                        c.deflate = takesDeflate;
+                        acknowledge(dos, binary, c);
+                        return logged[0] = c;
+                    });
+            if (!accepted) {
+                Frame.warning("Username is taken! Try again.").writeTo(dos, binary);
+                dos.flush();
+                s.close();
+            }
+        } catch (IOException e) {
+            //silent past the timeout, or gone before sending a username
+            metrics.handshakesFailed.increment();
+            if (Log.DEBUG) Log.debug("Handshake failed for " + s.getRemoteSocketAddress() + ": " + e);
+            try {
+                s.close();
+            } catch (IOException e2) {
+                e2.printStackTrace();
+            }
+            return;
+        }
+        Connection c = logged[0];
+        if (c == null) return;
+        if (config.mode == ServerConfig.Mode.VIRTUAL) c.runBlocking();
+        else c.run();
+    }
+
+    // Binary clients are told which protocol version the server speaks before any message is delivered
+    private static void acknowledge(DataOutputStream dos, boolean binary, Connection c) {
+        if (!binary) return;
+        try {
+            loginAccepted(c).write(dos);
+            dos.flush();
+        } catch (IOException e) {
+            //the Connection finds out about the broken socket itself
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Reconnect-or-create for a username, atomic with respect to other logins, renames and messages for that username.
+     * @param username : the username sent by the client
+     * @param wake : wakes the sleeping Connection registered under the username
+     * @param create : creates the Connection with the given id for a username that is not registered yet
+     * @return false if the username belongs to a client that is awake
+     */
+    private boolean login(String username, Consumer<Connection> wake, IntFunction<Connection> create) {
+        boolean[] taken = new boolean[1];
+        server_directory.update(username, c -> {
+            if (c.awake) taken[0] = true;
+            else wake.accept(c);
+            return c;
+        }, id -> {
+            Connection c = create.apply(id);
+            //messages another node of the cluster handed over before the user first logged in here
+            List<Frame> waiting = c == null ? null : adopted.remove(username);
+            if (waiting != null) {
+                for (Frame msg : waiting)
+                    c.receiveMsg(msg);
+            }
+            return c;
+        });
+        return !taken[0];
+    }
+
+    /**
+     * Login cases for a client connecting through an NIO event loop, mirroring acceptConnections().  A sleeping
+     * Connection is woken with the new session, an awake one means the username is taken, and otherwise a new Connection
+     * (without a thread of its own) is added to the server_directory.
+     * @param username : the username sent by the client
+     * @param session : the event loop session the client connected on
+     * @return null if the client is now logged in, otherwise a warning to send before closing the session
+     */
+    Frame login(String username, NioEventLoop.Session session) {
+        if(isReserved(username)) return Frame.warning("Invalid username. Try again.");
+        Frame refused = cluster == null ? null : cluster.refuse(username, session.binary, session.version);
+        if (refused != null) return refused;
+        if (!login(username, c -> c.wake(session), id -> new Connection(id, session, username)))
+            return Frame.warning("Username is taken! Try again.");
+        return null;
+    }
+
+    /** **USED FOR TESTING**
+     * Logs in a Connection that has no socket or thread of its own, which the benchmarks in jmh/ route messages to and
+     * from without a network.  Replies and drained messages are written to dos.
+     * @param username : the username
+     * @param dos : stream standing in for the client socket
+     * @param binary : whether dos gets binary frames or legacy strings
+     * @return the awake Connection, or null if the username is already registered
+     */
+    Connection connect(String username, DataOutputStream dos, boolean binary) {
+        Connection[] c = new Connection[1];
+        login(username, existing -> {}, id -> c[0] = new Connection(id, null, username, null, dos, binary));
+        return c[0];
+    }
+
+    /**
+     * Returns a factory for virtual threads (Java 21+).  It is looked up reflectively so the project still builds with
+     * older JDKs, where --mode=virtual falls back to platform threads running the same blocking loop.
+     */
+    static ThreadFactory virtualThreads() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            Log.warn("Virtual threads need Java 21, using platform threads for --mode=virtual");
+            return Thread::new;
+        }
+    }
+
+    // Buffered output stream for a client socket.  Nothing reaches the socket until it is flushed, see Connection.writeBatch()
+    DataOutputStream output(Socket s) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(metrics.counting(s.getOutputStream()), 16 * 1024));
+    }
+
+    // Finds the Connection for a username, or null if there is none
+    Connection lookup(String username) {
+        return server_directory.get(username);
+    }
+
+    // Finds the Connection a handle was resolved to, whatever its username is now, or null if there is none
+    Connection lookup(long handle) {
+        return server_directory.byId((int) (handle >>> 32));
+    }
+
+    // The username a handle was resolved to if its Connection has been handed to another node since, otherwise null
+    String retiredName(long handle) {
+        return server_directory.removedName((int) (handle >>> 32));
+    }
+
+    // Whether a binary client's LOGIN frame offers DEFLATE, and the Server runs with --compress=on
+    boolean deflate(Frame login, int version) {
+        return config.compress && version >= 7 && login.payload.length > 0 && (login.payload[0] & Frame.DEFLATE) != 0;
+    }
+
+    // LOGIN frame sent back to a binary client once its username is accepted, carrying the server's protocol version, the
+    // client's own handle and whether compression is on
+    static Frame loginAccepted(Connection c) {
+        byte[] payload = ByteBuffer.allocate(1 + 8 + 1).put(Frame.VERSION).putLong(c.handle())
+                .put(c.deflate ? Frame.DEFLATE : 0).array();
+        return new Frame(Frame.LOGIN, c.username, System.currentTimeMillis(), payload);
+    }
+
+    // RESOLVE frame answering a client's lookup of a username
+    Frame resolve(String username) {
+        Connection c = server_directory.get(username);
+        return c == null ? new Frame(Frame.RESOLVE, username, Frame.NO_HANDLE, Frame.EMPTY) : c.resolved();
+    }
+
+    /**
+     * Users recovered from the offline log after a restart have no Connection until they log in again, so messages for
+     * them keep going to the log.
+     * @param receiver : username of the receiving client
+     * @param msg : message to be sent, addressed from its sender
+     * @return true if the message was logged, false if the receiver has a Connection or no messages in the log
+     */
+    boolean logForRecovered(String receiver, Frame msg) {
+        if (offlineLog == null) return false;
+        boolean[] logged = new boolean[1];
+        //inside update() so a login for the receiver cannot replay the log in between
+        server_directory.update(receiver, c -> c, id -> {
+            if (!offlineLog.has(receiver)) return null;
+            try {
+                offlineLog.append(receiver, msg);
+                logged[0] = true;
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            return null;
+        });
+        return logged[0];
+    }
+
+    /**
+     * Finds a home for a message whose recipient has no Connection here: the offline log for users recovered from it, the
+     * messages handed over for them by another node of the cluster, or the node they are at (see Cluster.forward()).
+     * @param receiver : username of the receiving client
+     * @param msg : message to be sent, addressed from its sender
+     * @param hops : nodes of the cluster the message has already been through, 0 if it was sent to this one
+     * @return how the message was delivered (QUEUED if it was forwarded, REJECTED if the node that has the receiver cannot
+     *         be reached), or null if there is no such user
+     */
+    Mailbox.Delivery deliverElsewhere(String receiver, Frame msg, int hops) {
+        if (logForRecovered(receiver, msg)) return Mailbox.Delivery.OFFLINE;
+        if (cluster == null) return null;
+        boolean[] kept = new boolean[1];
+        server_directory.update(receiver, c -> c, id -> {
+            List<Frame> waiting = adopted.get(receiver);
+            if (waiting != null) {
+                waiting.add(msg);
+                kept[0] = true;
+            }
+            return null;
+        });
+        if (kept[0]) return Mailbox.Delivery.OFFLINE;
+        return cluster.forward(receiver, msg, hops);
+    }
+
+    /**
+     * Delivers a message forwarded by another node of the cluster, like one sent by a local client.
+     * @param receiver : username of the receiving client
+     * @param msg : the message, addressed from its sender
+     * @param hops : nodes it has been through, this one included
+     * @return the warning for the sender, or null if the message was queued for an online user
+     */
+    String deliverForwarded(String receiver, Frame msg, int hops) {
+        Connection dest = server_directory.get(receiver);
+        Mailbox.Delivery delivery = dest == null ? null : dest.receiveMsg(msg);
+        boolean here = delivery != null && delivery != Mailbox.Delivery.MOVED;
+        if (!here) delivery = deliverElsewhere(receiver, msg, hops);
+        if (delivery == null) {
+            metrics.unknown.increment();
+            return String.format("%s does not exist!", receiver);
+        }
+        metrics.delivered(delivery);
+        if (delivery == Mailbox.Delivery.QUEUED) return null;
+        if (delivery == Mailbox.Delivery.OFFLINE) return String.format("%s is offline and will get your message when they wake up.", receiver);
+        if (here) return String.format("%s's mailbox is full, your message was not delivered.", receiver);
+        return String.format("%s's server cannot be reached, your message was not delivered.", receiver);
+    }
+
+    /**
+     * Queues a warning for a user who has a Connection here, for a NOTICE from another node of the cluster.
+     * @return false if the user has no Connection here
+     */
+    boolean notice(String username, String text) {
+        Connection c = server_directory.get(username);
+        return c != null && c.receiveMsg(Frame.warning(text)) != Mailbox.Delivery.MOVED;
+    }
+
+    /**
+     * Takes in a user another node of the cluster has handed over along with their waiting messages.  The messages go to
+     * the user's Connection if they already logged in here, and are otherwise kept (in the offline log with --wal) until
+     * they do.
+     * @param username : the user
+     * @param msgs : their messages, oldest first
+     */
+    void adopt(String username, List<Frame> msgs) {
+        server_directory.update(username, c -> {
+            for (Frame msg : msgs)
+                c.receiveMsg(msg);
+            return c;
+        }, id -> {
+            if (offlineLog != null) {
+                try {
+                    for (Frame msg : msgs)
+                        offlineLog.append(username, msg);
+                } catch (IOException e) {
+                    e.printStackTrace();
                 }
             }
-            //establish new user if name not recognized
-            else {
-                c = new Connection(s, username, dis, dos);
-                c.start();
-                server_directory.put(username, c);
+            else adopted.computeIfAbsent(username, u -> new ArrayList<>()).addAll(msgs);
+            return null;
+        });
+    }
+
+    // Usernames with messages waiting here but no Connection: handed over by the cluster, or recovered from the offline log
+    Set<String> waiting() {
+        Set<String> users = new HashSet<>(adopted.keySet());
+        if (offlineLog != null) users.addAll(offlineLog.users());
+        users.removeIf(server_directory::contains);
+        return users;
+    }
+
+    /**
+     * Takes the messages waiting for a username that has no Connection here, see waiting().
+     * @return the messages, oldest first, empty if there are none or the user has logged in meanwhile
+     */
+    List<Frame> takeWaiting(String username) {
+        List<Frame> msgs = new ArrayList<>();
+        server_directory.update(username, c -> c, id -> {
+            List<Frame> waiting = adopted.remove(username);
+            if (waiting != null) msgs.addAll(waiting);
+            try {
+                if (offlineLog != null && offlineLog.has(username)) offlineLog.take(username, Integer.MAX_VALUE, msgs);
+            } catch (IOException e) {
+                e.printStackTrace();
             }
+            return null;
+        });
+        return msgs;
+    }
+
+    // Every Connection, as a copy
+    List<Connection> connections() {
+        return server_directory.values();
+    }
+
+    /**
+     * Prints the users with the most messages waiting, every config.depthReport seconds.  Runs on its own daemon thread.
+     */
+    private void reportDepths() {
+        while (true) {
+            try {
+                Thread.sleep(config.depthReport * 1000L);
+            } catch (InterruptedException e) {
+                return;
+            }
+            List<Connection> connections = server_directory.values();
+            List<long[]> depths = depths(connections);
+            StringBuilder line = new StringBuilder("Mailbox depths:");
+            for (int i = 0; i < Math.min(10, depths.size()); i++) {
+                long[] d = depths.get(i);
+                line.append(' ').append(connections.get((int) d[2]).username).append('=').append(d[0]);
+                if (d[0] != d[1]) line.append(" (").append(d[0] - d[1]).append(" on disk)");
+            }
+            if (depths.isEmpty()) line.append(" all empty");
+            Log.info(line.toString());
         }
+    }
+
+    // The System.currentTimeMillis() of a System.nanoTime() taken earlier on the Server
+    static long wallClock(long nanoTime) {
+        return System.currentTimeMillis() - (System.nanoTime() - nanoTime) / 1_000_000;
+    }
 
+    /**
+     * Snapshot of the mailboxes with messages waiting, deepest first.
+     * @param connections : every Connection, as returned by server_directory.values()
+     * @return {depth, messages in memory, index in connections} for each of them
+     */
+    private static List<long[]> depths(List<Connection> connections) {
+        List<long[]> depths = new ArrayList<>();
+        for (int i = 0; i < connections.size(); i++) {
+            long[] d = connections.get(i).mailbox.depths();
+            if (d[0] > 0) depths.add(new long[]{d[0], d[1], i});
+        }
+        depths.sort((a, b) -> Long.compare(b[0], a[0]));
+        return depths;
     }
 
     /**
-     * Main method for Server.  Takes port number from argument and gets IP address of the local host.
-     * Instantiates the ServerSocket and calls the constructor for Server.java
+     * Page served at /metrics with --metrics: the traffic counters (see Metrics), the number of awake and sleeping
+     * connections, and the mailbox depth of the 100 users with the most messages waiting.
+     */
+    String metricsPage() {
+        StringBuilder page = new StringBuilder();
+        metrics.render(page);
+        List<Connection> connections = server_directory.values();
+        int awake = 0;
+        for (Connection c : connections)
+            if (c.awake) awake++;
+        Metrics.line(page, "connections_awake", awake);
+        Metrics.line(page, "connections_sleeping", connections.size() - awake);
+        List<long[]> depths = depths(connections);
+        long total = 0;
+        for (long[] d : depths)
+            total += d[0];
+        Metrics.line(page, "mailbox_depth_total", total);
+        if (cluster != null) Metrics.line(page, "cluster_nodes", cluster.size());
+        for (int i = 0; i < Math.min(100, depths.size()); i++) {
+            long[] d = depths.get(i);
+            String user = connections.get((int) d[2]).username.replace("\\", "\\\\").replace("\"", "\\\"");
+            Metrics.line(page, "mailbox_depth{user=\"" + user + "\"}", d[0]);
+        }
+        return page.toString();
+    }
+
+    // "username", "warning", and "robotuser" are used in communication, therefore are not allowed as usernames.
+    static boolean isReserved(String username) {
+        return username.equals("username") || username.equals("warning") || username.equals("robotuser")
+                || username.equals("join") || username.equals("leave") || username.startsWith("#");
+    }
+
+    // Whether a name can be a channel's: "#" followed by at least one character, without the "/" used in "#name/sender"
+    static boolean isChannel(String name) {
+        return name.length() > 1 && name.charAt(0) == '#' && name.indexOf('/') < 0;
+    }
+
+    /**
+     * Main method for Server.  Takes port number and options (see ServerConfig) from the arguments and gets IP address of
+     * the local host.  Instantiates the Server and starts accepting clients in the configured mode.
      * @param args
      * @throws IOException
      */
     public static void main(String[] args) throws IOException {
-        //Create Server Socket
-        ServerSocket ss = new ServerSocket(Integer.parseInt(args[0]));
+        ServerConfig config = ServerConfig.parse(args);
         InetAddress inet = InetAddress.getLocalHost();
-        System.out.println("Server created with port " + args[0]+ " at IP: " + inet);
 
         //Starts the new server
-        new Server(ss);
+        Server server = new Server(config);
+        if (server.cluster != null) {
+            server.cluster.start();
+            Runtime.getRuntime().addShutdownHook(new Thread(server.cluster::leave));
+        }
+        Thread collector = new Thread(server::collectLatencies, "latency");
+        collector.setDaemon(true);
+        collector.start();
+        if (config.metrics > 0) {
+            server.metrics.serve(config.metrics, server::metricsPage);
+            Log.info("Metrics served at http://localhost:" + config.metrics + "/metrics");
+        }
+        if (config.depthReport > 0) {
+            Thread reporter = new Thread(server::reportDepths, "depth-report");
+            reporter.setDaemon(true);
+            reporter.start();
+        }
+        if (config.mode == ServerConfig.Mode.NIO) {
+            Log.info("Server created with port " + config.port + " at IP: " + inet + " using " + config.loops + " event loops"
+                    + (config.tls != null ? " over TLS" : ""));
+            NioEventLoop.listen(server, config);
+        }
+        else {
+            Log.info("Server created with port " + config.port + " at IP: " + inet + " in " + config.mode + " mode with "
+                    + config.acceptors + " acceptors");
+            server.listen();
+        }
     }
 
     /** **USED FOR TESTING**
-     * Takes all delay times from a client and appends them to the delayFile "delay.txt".
-     * @param clientDelayTimes String array containing all delay times during clients test run
+     * Merges the delay histograms of closing clients (recorded in microseconds, see LatencyHistogram.decode() for the
+     * formats accepted) into one, and rewrites latencyFile "latency.txt" with its percentiles.  Clients measuring latency
+     * on the Server's clock also send the client to Server, queueing and Server to client parts of their delays, which
+     * are merged and written the same way.  Every histogram waiting is merged before the file is written, so a burst of
+     * closing clients costs one write.  Runs on its own daemon thread.
      */
-    private synchronized void appendDelayTimes(String[] clientDelayTimes) {
-        try {
-            BufferedWriter out = new BufferedWriter(new FileWriter(delayFile, true));
-            for(int i = 1; i < clientDelayTimes.length; i++) {
-                out.write(clientDelayTimes[i]);
-                out.write('\n');
+    private void collectLatencies() {
+        String[] names = {"delay", "client->server", "queueing", "server->client"};
+        LatencyHistogram[] delays = new LatencyHistogram[names.length];
+        for (int i = 0; i < delays.length; i++)
+            delays[i] = new LatencyHistogram();
+        List<byte[]> batch = new ArrayList<>();
+        int clients = 0;
+        while (true) {
+            try {
+                batch.add(closings.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            closings.drainTo(batch);
+            for (byte[] payload : batch) {
+                try {
+                    List<LatencyHistogram> histograms = LatencyHistogram.decode(payload, 1000);
+                    for (int i = 0; i < Math.min(histograms.size(), delays.length); i++)
+                        delays[i].add(histograms.get(i));
+                    clients++;
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            batch.clear();
+            StringBuilder summary = new StringBuilder("clients=" + clients + " " + delays[0].summary(1000, "ms") + "\n");
+            for (int i = 1; i < delays.length; i++)
+                if (delays[i].count() > 0) summary.append(names[i]).append(' ').append(delays[i].summary(1, "us")).append('\n');
+            Log.info("Latency: " + summary.toString().trim());
+            try (Writer out = new FileWriter(latencyFile)) {
+                out.write(summary.toString());
+            } catch (IOException e) {
+                e.printStackTrace();
             }
-            out.close();
-        }
-        catch (IOException e) {
-            e.printStackTrace();
         }
     }
 
-    /** Connection Class (private inner class of Server.java)
+    /** Connection Class (inner class of Server.java)
      * Running thread for a single client.  Maintains information about their message queue, socket, and state.
      * State being whether they are:
      *  awake: the client is currently connected, reading and writing to the socket
-     *  not awake: the socket is closed and the thread is spinning, waiting for the client to return.  Messages can still
-     *             be added to the client threads queue.
+     *  not awake: the Connection is hibernating until the client returns.  Its socket is closed and everything only an
+     *             online client needs is released (see hibernate()), including its thread, so a user who is offline
+     *             costs the Connection, its username and its Mailbox.  Messages can still be added to the Mailbox.
+     * In thread mode run() polls the socket and the queue.  In virtual mode runBlocking() runs on a virtual thread instead.
+     * In nio mode there is no thread at all: the client is attached to an NioEventLoop.Session, and the event loop calls
+     * handle() and drains the mailbox when the socket is readable or messages are waiting.
+     * Messages for the client wait in its Mailbox, which is bounded and, with --wal, keeps the messages of a Connection
+     * that is not awake in the OfflineLog until replay() brings them back.
      */
-    private class Connection extends Thread {
-        boolean awake;
-        String username;
-        Socket source;
+    class Connection implements Runnable {
+        volatile boolean awake;
+        volatile String username;
+        //index in the server_directory's connection table, see handle()
+        final int id;
+        //number of usernames this Connection has had, so a handle resolved before a rename can be told apart
+        volatile int renames;
+        //username encoded for the NIO routing path: UTF-8 for the sender field of forwarded frames, and the binary warning
+        //frame sent back to everyone who messages this user.  Both are replaced together with the username.
+        volatile byte[] nameBytes;
+        volatile byte[] deliveredNotice;
+        volatile Socket source;
         DataInputStream dis;
         DataOutputStream dos;
-        ConcurrentLinkedQueue<String[]> msgQueue = new ConcurrentLinkedQueue<>();
+        //whether the connected client speaks the binary Frame protocol or legacy writeUTF strings
+        volatile boolean binary;
+        //whether the connected client measures latency on the Server's clock (it has sent a TIME probe), see Frame
+        volatile boolean stamped;
+        //whether the connected client takes ACKs instead of a warning per delivered message (protocol version 4), see ack()
+        volatile boolean acks;
+        //whether the connected client offered DEFLATE at login and it was accepted (protocol version 7), see writeBatch()
+        volatile boolean deflate;
+        //messages (MSG, SEND and ROBOT frames) read from the client since it connected, and how many have been acknowledged.
+        //Only touched by the thread handling the client's input.
+        long received;
+        private long acked;
+        //recipient of the last message delivered since the last ACK, null if none
+        String lastDelivered;
+        //the recipient last written into an ACK by ack(ByteBuffer), and its UTF-8 bytes
+        private String ackName = "";
+        private byte[] ackNameBytes = Frame.EMPTY;
+        //names of the channels this user is in
+        final Set<String> joined = ConcurrentHashMap.newKeySet();
+        volatile NioEventLoop.Session session;
+        //Messages waiting to be written to the client.  Its monitor also guards changes to awake.
+        final Mailbox mailbox = new Mailbox(config.mailbox, config.overflow, offlineLog);
+        //Saturated mailbox this client last sent to, its input is not read until that drains (see paused())
+        volatile Mailbox pausedOn;
+        //Guards dos, which other threads write to in virtual mode
+        final ReentrantLock lock = new ReentrantLock();
+        //Messages taken from the mailbox by writeBatch(), only touched while holding lock
+        private Frame[] batch;
+        //Set while a thread is in drainQueue(), see there
+        private final AtomicBoolean draining = new AtomicBoolean();
 
         /**
          * Constructor for Connection class.  Sets local variables accordingly
+         * @param id : the Connection's id in the server_directory
          * @param s : The socket connecting the client host to the client Thread in the server
          * @param username : the username (unique) associated with the client Thread
          * @param dis : the DataInputStream used for communication along s, from the client host to the client thread
          * @param dos : the DataOutputStream used for communication along s, from the client thread to the client host
+         * @param binary : whether the client negotiated the binary Frame protocol
          */
-        Connection(Socket s, String username, DataInputStream dis, DataOutputStream dos) {
+        Connection(int id, Socket s, String username, DataInputStream dis, DataOutputStream dos, boolean binary) {
+            this.id = id;
             this.source = s;
-            this.username = username;
+            setUsername(username);
             this.dis = dis;
             this.dos = dos;
-            this.awake = true;
+            this.binary = binary;
+            replay();
+        }
+
+        /**
+         * Constructor for a Connection driven by an NIO event loop instead of its own thread.
+         * @param id : the Connection's id in the server_directory
+         * @param session : the event loop session the client is connected through
+         * @param username : the username (unique) associated with the client
+         */
+        Connection(int id, NioEventLoop.Session session, String username) {
+            this.id = id;
+            this.session = session;
+            setUsername(username);
+            this.binary = session.binary;
+            this.acks = session.acks;
+            this.deflate = session.deflate;
+            session.connection = this;
+            replay();
+            session.scheduleFlush();
+        }
+
+        // Sets the username together with its encoded forms, see nameBytes
+        void setUsername(String username) {
+            mailbox.rename(username);
+            this.nameBytes = username.getBytes(StandardCharsets.UTF_8);
+            this.deliveredNotice = Frame.warning("Message delivered to " + username).encodeBinary().array();
+            this.username = username;
+            renames++;
+        }
+
+        // The id and rename count clients address this Connection by, see Frame
+        long handle() {
+            return (long) id << 32 | (renames & 0xFFFFFFFFL);
+        }
+
+        // RESOLVE frame telling a client this Connection's current username and handle
+        Frame resolved() {
+            return new Frame(Frame.RESOLVE, username, handle(), Frame.EMPTY);
         }
 
         /**
          * When a client has been "offline" and returns, they are woken up with the new socket connection.  The new socket is
          * stored in their client thread and used for communication from then on.
          * @param s : new socket to be connected to client thread
+         * @param binary : whether the returning client negotiated the binary Frame protocol
          */
-        void wake(Socket s) {
-            awake = true;
+        void wake(Socket s, boolean binary) {
+            lock.lock();
             try{
+                this.binary = binary;
+                this.stamped = false;
+                this.received = this.acked = 0;
+                this.lastDelivered = null;
                 this.source = s;
-                this.dos = new DataOutputStream(s.getOutputStream());
-                this.dis = new DataInputStream(s.getInputStream());
+                this.dos = output(s);
+                this.dis = new DataInputStream(metrics.counting(s.getInputStream()));
+                replay();
             } catch (IOException e) {
                 e.printStackTrace();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Wakes a sleeping nio mode client with its new event loop session, then schedules the messages that were queued
+         * while it was offline to be written out.
+         * @param session : new session to be connected to the client
+         */
+        void wake(NioEventLoop.Session session) {
+            session.connection = this;
+            this.session = session;
+            this.binary = session.binary;
+            this.acks = session.acks;
+            this.deflate = session.deflate;
+            this.stamped = false;
+            this.received = this.acked = 0;
+            this.lastDelivered = null;
+            replay();
+            session.scheduleFlush();
+        }
+
+        // Brings back the messages waiting in the offline log for this user, then marks the Connection awake
+        private void replay() {
+            synchronized (mailbox) {
+                mailbox.wake();
+                awake = true;
             }
+        }
 
+        /**
+         * Puts the Connection to sleep and hibernates it.  With an offline log, messages still queued in memory are moved to
+         * it so they survive a restart, and messages sent while the user is away go straight to the log (see
+         * Mailbox.offer()).
+         */
+        void sleep() {
+            lock.lock();
+            try {
+                synchronized (mailbox) {
+                    awake = false;
+                    mailbox.sleep();
+                }
+                hibernate();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Releases what only an online client needs: replies still buffered are flushed, the socket is closed, and its
+         * streams (the output buffer alone is 16 KB), the write batch and the event loop session are dropped.  The thread
+         * running the Connection, if any, ends once it sees it asleep, and wake() sets everything up again.  Must hold lock.
+         */
+        private void hibernate() {
+            try {
+                if (dos != null) dos.flush();
+            } catch (IOException e) {
+                //the client is gone, so are the replies
+            }
+            try {
+                if (source != null) source.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            source = null;
+            dis = null;
+            dos = null;
+            batch = null;
+            session = null;
+            pausedOn = null;
+            lastDelivered = null;
+        }
+
+        /**
+         * Removes this sleeping user from the server_directory so the Cluster can hand them to the node that owns them now,
+         * along with their waiting messages.  Messages offered to the mailbox afterwards come back MOVED, and the sender
+         * routes them again.
+         * @param into : gets the waiting messages, oldest first
+         * @return false if the user woke up or was renamed first
+         */
+        boolean retire(Collection<Frame> into) {
+            String name = username;
+            boolean removed = server_directory.remove(name, id, c -> {
+                synchronized (mailbox) {
+                    if (awake) return false;
+                    mailbox.retire(into);
+                    return true;
+                }
+            });
+            if (!removed) return false;
+            for (String channel : joined)
+                leave(channel);
+            return true;
         }
 
         /**
          * adds an incoming message to a client threads queue
-         * @param msg : the message to be added, such that msg[0] is the username of the sender client.
+         * @param msg : the message to be added, such that msg.name is the username of the sender client.  A pooled frame
+         *            that is rejected or moved goes back to its pool.
+         * @return whether the message was queued for an online client, queued for an offline one, rejected because
+         *         the mailbox is full, or refused because the user has been handed to another node (MOVED)
+         */
+        Mailbox.Delivery receiveMsg(Frame msg) {
+            Mailbox.Delivery delivery = mailbox.offer(msg);
+            if ((delivery == Mailbox.Delivery.REJECTED || delivery == Mailbox.Delivery.MOVED) && msg instanceof PooledFrame)
+                ((PooledFrame) msg).release();
+            if (Log.DEBUG) Log.debug(this.username + " is awake? " + this.awake);
+            NioEventLoop.Session s = session;
+            if (delivery == Mailbox.Delivery.QUEUED) {
+                if (s != null) s.scheduleFlush();
+                else if (config.mode == ServerConfig.Mode.VIRTUAL) drainQueue();
+            }
+            return delivery;
+        }
+
+        /**
+         * Called after sending a message to dest.  With --backpressure, stops reading from this client while dest's
+         * mailbox is saturated.
+         */
+        void checkBackpressure(Connection dest) {
+            if (config.backpressure && dest != this && dest.mailbox.saturated()) pausedOn = dest.mailbox;
+        }
+
+        // Whether reading from this client is paused until a saturated mailbox drains
+        boolean paused() {
+            Mailbox m = pausedOn;
+            if (m == null) return false;
+            if (m.saturated()) return true;
+            pausedOn = null;
+            return false;
+        }
+
+        // Blocks the calling thread while paused() (virtual mode), after flushing any replies still buffered
+        private void awaitDrained() throws IOException {
+            Mailbox m = pausedOn;
+            if (m == null) return;
+            lock.lock();
+            try {
+                dos.flush();
+            } finally {
+                lock.unlock();
+            }
+            Thread t = Thread.currentThread();
+            Runnable unpark = () -> LockSupport.unpark(t);
+            //other senders can fill the mailbox again before this thread runs, so it waits for the next drain
+            while (paused()) {
+                m.whenDrained(unpark);
+                LockSupport.park(this);
+            }
+        }
+
+        /**
+         * Writes every queued message to the client, in batches.  In virtual mode the Connection's own thread is blocked
+         * reading, so this runs on whichever thread queued the message (or on the Connection's thread right after it wakes
+         * up).  A thread that finds another one already draining leaves its message to it instead of waiting: the draining
+         * thread checks the queue again once it is done, so many senders targeting one user end up sharing a few large
+         * flushes.
+         */
+        void drainQueue() {
+            do {
+                if (!draining.compareAndSet(false, true)) return;
+                lock.lock();
+                try {
+                    while (awake && peekMsg() != null)
+                        writeBatch();
+                } catch (IOException e) {
+                    //The reading thread sees the broken socket and puts the Connection to sleep, the messages stay queued
+                    return;
+                } finally {
+                    lock.unlock();
+                    draining.set(false);
+                }
+            } while (awake && peekMsg() != null);
+        }
+
+        /**
+         * Takes up to config.batch messages from the mailbox, writes them and flushes once.  If the queue runs dry before the
+         * batch is full, it waits up to config.lingerNanos for more messages.  For a client that takes DEFLATE the messages
+         * go out as one compressed BATCH frame once they add up to config.compressThreshold bytes, so a user coming back
+         * to a backlog gets it compressed a batch at a time.  When the write fails the messages are put back at the head of
+         * the queue, so they are still delivered when the client returns.  Must hold lock.
+         */
+        void writeBatch() throws IOException {
+            if (batch == null) batch = new Frame[config.batch];
+            int n = 0;
+            long deadline = config.lingerNanos == 0 ? 0 : System.nanoTime() + config.lingerNanos;
+            while (n < batch.length) {
+                Frame msg = removeMsg();
+                if (msg != null) {
+                    batch[n++] = msg;
+                    continue;
+                }
+                if (deadline == 0 || System.nanoTime() >= deadline) break;
+                Thread.onSpinWait();
+            }
+            try {
+                if (deflate) writeCompressed(n);
+                else {
+                    for (int i = 0; i < n; i++)
+                        batch[i].writeTo(dos, binary);
+                }
+                dos.flush();
+            } catch (IOException e) {
+                mailbox.requeue(batch, n);
+                throw e;
+            } finally {
+                Arrays.fill(batch, 0, n, null);
+            }
+        }
+
+        // Writes the first n messages of the batch as one BATCH frame, or as they are if they are too few bytes to compress
+        private void writeCompressed(int n) throws IOException {
+            Compression.Batch frames = new Compression.Batch();
+            for (int i = 0; i < n; i++)
+                frames.add(batch[i]);
+            Frame compressed = frames.compress(config.compressThreshold);
+            if (compressed == null) {
+                frames.writeTo(dos);
+                return;
+            }
+            compressed.write(dos);
+            metrics.compressionSaved.add(frames.size() - compressed.payload.length);
+        }
+
+        /**
+         * ACK for the messages handled since the last one, for a client that takes them, see Frame.  Null if there is
+         * nothing to acknowledge.
+         */
+        Frame ack() {
+            if (!acks || received == acked) return null;
+            acked = received;
+            Frame ack = new Frame(Frame.ACK, lastDelivered == null ? "" : lastDelivered, acked, Frame.EMPTY);
+            lastDelivered = null;
+            return ack;
+        }
+
+        /**
+         * Writes the ACK ack() would return into a buffer instead, for the event loop to queue without allocating: the
+         * recipient's name is encoded again only when it differs from the last ACK's.
+         * @param buf : buffer to write the binary frame at, such as a PooledFrame's
+         * @return false if there is nothing to acknowledge or the frame does not fit, in which case nothing is written
+         */
+        boolean ack(ByteBuffer buf) {
+            if (!acks || received == acked) return false;
+            String name = lastDelivered == null ? "" : lastDelivered;
+            if (name != ackName) {
+                ackNameBytes = name.getBytes(StandardCharsets.UTF_8);
+                ackName = name;
+            }
+            byte[] n = ackNameBytes;
+            if (buf.remaining() < 4 + Frame.HEADER_LENGTH + n.length) return false;
+            acked = received;
+            buf.putInt(Frame.HEADER_LENGTH + n.length).put(Frame.ACK).putShort((short) n.length).put(n);
+            buf.putLong(acked).putInt(0);
+            lastDelivered = null;
+            return true;
+        }
+
+        // Tells this client a message reached its recipient's mailbox: in the next ACK, or with a warning right away
+        private void confirm(String receiver) throws IOException {
+            if (acks) lastDelivered = receiver;
+            else reply(String.format("Message delivered to %s", receiver));
+        }
+
+        /**
+         * Flushes warnings written by reply(), and the ACK for the messages handled, once the client has no more input
+         * waiting (or has just closed), so a client sending a burst of messages gets its replies back in one write instead
+         * of one per message.  A long burst is acknowledged every Frame.ACK_EVERY messages.
          */
-        boolean receiveMsg(String[] msg) {
-            msgQueue.add(msg);
-            System.out.println(this.username + "is awake? " + this.awake);
-            return this.awake;
+        void flushReplies() throws IOException {
+            //asleep, the replies went out in hibernate()
+            if (!awake) return;
+            if (dis.available() != 0 && received - acked < Frame.ACK_EVERY) return;
+            lock.lock();
+            try {
+                if (!awake) return;
+                Frame ack = ack();
+                if (ack != null) ack.writeTo(dos, binary);
+                dos.flush();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // Returns the oldest queued message without removing it, or null if the queue is empty
+        Frame peekMsg() {
+            return mailbox.peek();
+        }
+
+        // Removes and returns the oldest queued message, or null if the queue is empty
+        Frame removeMsg() {
+            return mailbox.poll();
+        }
+
+        // Puts back messages taken with removeMsg() that were not written, oldest first, ahead of everything else
+        void requeue(Frame[] msgs, int n) {
+            mailbox.requeue(msgs, n);
+        }
+
+        // Number of messages waiting in memory to be written to the client
+        int queued() {
+            return mailbox.size();
+        }
+
+        /**
+         * Writes a warning directly back to this client, either on the Connection's own output stream or through its event
+         * loop session.  The stream is not flushed here, see flushReplies().
+         * @param text : the warning text
+         */
+        void reply(String text) throws IOException {
+            reply(Frame.warning(text));
+        }
+
+        // Writes any frame directly back to this client, see reply(String)
+        void reply(Frame frame) throws IOException {
+            NioEventLoop.Session s = session;
+            if (s != null) {
+                s.send(frame);
+                return;
+            }
+            lock.lock();
+            try {
+                //asleep, the client is gone
+                if (dos != null) frame.writeTo(dos, binary);
+            } finally {
+                lock.unlock();
+            }
         }
 
         /**
@@ -162,131 +1097,295 @@ public class Server {
          *  username in the server_directory.
          * @param msg : robot message to be sent.
          */
-        void sendRobotMsgToSocket(String[] msg) {
-            Object[] users = server_directory.keySet().toArray();
-            String randomUser = String.valueOf(users[new Random().nextInt(server_directory.size())]);
-            msg[0] = randomUser;
-            sendMsgToSocket(msg);
+        void sendRobotMsgToSocket(Frame msg) {
+            //sampled without copying the directory, this Connection is registered so there is always one
+            Connection randomUser = server_directory.random();
+            sendMsgToSocket(randomUser.username, msg);
         }
 
         /**
          * When a client thread receives a message to be sent to another client, sendMsgToSocket ensures that the desired
          * receiving client is in the server_directory, then finds the associated client Thread and adds the message to
-         * their queue, appending the sending clients username to the beginning of the message.
+         * their queue with the sending clients username in place of the recipient's.  Only the header changes, the payload
+         * bytes are shared with the received frame.
+         * @param receiver : username of the receiving client
          * @param msg : message to be sent.
          */
-        void sendMsgToSocket(String[] msg) {
-            String receiver = msg[0];
-            if (server_directory.containsKey(receiver)) {
-                Connection dest = server_directory.get(receiver);
-                //SETS USERNAME TO BE SENDER USERNAME INSTEAD OF DESTINATION USERNAME
-                msg[0] = this.username;
+        void sendMsgToSocket(String receiver, Frame msg) {
+            if (receiver.startsWith("#")) {
                 try {
-                    if (dest.receiveMsg(msg)) dos.writeUTF(String.format("warning:::0:::Message delivered to %s", receiver));
-                    else dos.writeUTF(String.format("warning:::0:::%s is offline and will get your message when they wake up.", receiver));
+                    publish(receiver, msg);
                 } catch (IOException e) {e.printStackTrace();}
+                return;
+            }
+            long start = System.nanoTime();
+            Connection dest = server_directory.get(receiver);
+            if (dest != null) {
+                deliver(dest, msg, start);
             }
             else {
                 try {
-                    dos.writeUTF(String.format("warning:::0:::%s does not exist!", receiver));
+                    Mailbox.Delivery delivery = deliverElsewhere(receiver, forward(null, msg), 0);
+                    if (delivery == null) {
+                        metrics.unknown.increment();
+                        reply(String.format("%s does not exist!", receiver));
+                        return;
+                    }
+                    metrics.delivered(delivery);
+                    //a forwarded message is confirmed once it is on its way, the node it went to warns about anything else
+                    if (delivery == Mailbox.Delivery.QUEUED) confirm(receiver);
+                    else if (delivery == Mailbox.Delivery.OFFLINE) reply(String.format("%s is offline and will get your message when they wake up.", receiver));
+                    else reply(String.format("%s's server cannot be reached, your message was not delivered.", receiver));
                 } catch (IOException e) {e.printStackTrace();}
             }
         }
 
         /**
-         * Connection class run() method for the client Thread.
-         * Continuously checks if a message is waiting to be received.  If so, checks the type of message.
+         * Sends a message to every other member of a channel this client is in.  The frame is built and encoded once
+         * (see SharedFrame) and the same frame is queued to every member's Mailbox, going over a snapshot of the members
+         * without holding any lock.  Members who are offline get it when they return, like any other message, and members
+         * whose mailbox is full miss it.  This client is only told about the channel as a whole.
+         * @param channel : the channel's name
+         * @param msg : the message from this client
+         */
+        void publish(String channel, Frame msg) throws IOException {
+            Channel ch = channels.get(channel);
+            if (ch == null || !joined.contains(channel)) {
+                reply(String.format("You are not in %s, join it first.", channel));
+                return;
+            }
+            long start = System.nanoTime();
+            long timestamp = stamped ? wallClock(msg.timestamp) : msg.timestamp;
+            SharedFrame shared = new SharedFrame(Frame.MSG, channel + "/" + username, timestamp, msg.payload);
+            for (Connection member : ch.members()) {
+                if (member != this) metrics.delivered(member.receiveMsg(shared));
+            }
+            metrics.routing.record(System.nanoTime() - start);
+            confirm(channel);
+        }
+
+        /**
+         * Adds this client to a channel, creating the channel if it does not exist yet.
+         * @param channel : the channel's name
+         * @return the warning answering the JOIN
+         */
+        String join(String channel) {
+            if (!isChannel(channel)) return "Channel names start with # and cannot contain /.";
+            int[] members = new int[1];
+            channels.compute(channel, (name, ch) -> {
+                if (ch == null) ch = new Channel(name);
+                ch.join(this);
+                members[0] = ch.size();
+                return ch;
+            });
+            joined.add(channel);
+            return String.format("Joined %s, %d members.", channel, members[0]);
+        }
+
+        /**
+         * Removes this client from a channel, and removes the channel once nobody is left in it.
+         * @param channel : the channel's name
+         * @return the warning answering the LEAVE
+         */
+        String leave(String channel) {
+            boolean[] left = new boolean[1];
+            channels.computeIfPresent(channel, (name, ch) -> {
+                left[0] = ch.leave(this);
+                return ch.size() == 0 ? null : ch;
+            });
+            joined.remove(channel);
+            return left[0] ? String.format("Left %s.", channel) : String.format("You are not in %s.", channel);
+        }
+
+        /**
+         * Sends a SEND frame to the Connection its handle was resolved to, found by index instead of by username.  If the
+         * recipient renamed since, the message still reaches them and this client is sent their new username and handle.
+         * If the recipient was handed to another node (see Cluster), the message is sent by the username they had, and the
+         * client is told the handle is gone so it addresses them by name, and resolves the name again, from then on.
+         * @param msg : SEND frame from this client
+         */
+        void sendMsgToHandle(Frame msg) {
+            long start = System.nanoTime();
+            Connection dest = lookup(msg.handle);
+            try {
+                String retired = dest == null ? retiredName(msg.handle) : null;
+                if (retired != null) {
+                    reply(new Frame(Frame.RESOLVE, retired, Frame.NO_HANDLE, Frame.EMPTY));
+                    sendMsgToSocket(retired, msg);
+                    return;
+                }
+                if (dest == null) {
+                    metrics.unknown.increment();
+                    reply("Unknown recipient, your message was not delivered.");
+                    return;
+                }
+                deliver(dest, msg, start);
+                if (dest.handle() != msg.handle) reply(dest.resolved());
+            } catch (IOException e) {e.printStackTrace();}
+        }
+
+        /**
+         * The message as it is delivered from this client: STAMPED with the Server's ingress time if both clients measure
+         * latency, otherwise MSG with the sender's timestamp on the wall clock (see wallClock()).
+         * @param dest : the recipient, null if they are not connected
+         * @param msg : the message from this client
+         */
+        Frame forward(Connection dest, Frame msg) {
+            if (!stamped) return new Frame(Frame.MSG, this.username, msg.timestamp, msg.payload);
+            if (dest != null && dest.stamped && dest.binary)
+                return Frame.stamped(Frame.STAMPED, this.username, msg.timestamp, System.nanoTime(), msg.payload);
+            return new Frame(Frame.MSG, this.username, wallClock(msg.timestamp), msg.payload);
+        }
+
+        // Queues a message for a recipient with this client's username as the sender, and tells this client how it went.
+        // start is when the recipient started being looked up, for the routing latency in metrics.
+        private void deliver(Connection dest, Frame msg, long start) {
+            //SETS USERNAME TO BE SENDER USERNAME INSTEAD OF DESTINATION USERNAME
+            Frame forward = forward(dest, msg);
+            String receiver = dest.username;
+            try {
+                if (dest.awake && !dest.binary && !forward.fitsLegacy()) {
+                    metrics.delivered(Mailbox.Delivery.REJECTED);
+                    reply(String.format("%s's client cannot take messages over %d bytes, your message was not delivered.",
+                            receiver, Frame.MAX_UTF_LENGTH));
+                    return;
+                }
+                Mailbox.Delivery delivery = dest.receiveMsg(forward);
+                //handed to another node meanwhile, it is no longer in the server_directory
+                if (delivery == Mailbox.Delivery.MOVED) {
+                    sendMsgToSocket(receiver, msg);
+                    return;
+                }
+                metrics.routing.record(System.nanoTime() - start);
+                metrics.delivered(delivery);
+                if (delivery == Mailbox.Delivery.QUEUED) confirm(receiver);
+                else if (delivery == Mailbox.Delivery.OFFLINE) reply(String.format("%s is offline and will get your message when they wake up.", receiver));
+                else reply(String.format("%s's mailbox is full, your message was not delivered.", receiver));
+            } catch (IOException e) {e.printStackTrace();}
+            checkBackpressure(dest);
+        }
+
+        /**
+         * Reads the next message from the client in whichever protocol it negotiated.
+         * @return the message as a frame
+         */
+        Frame readFrame() throws IOException {
+            return binary ? Frame.read(dis) : Frame.fromLegacy(dis.readUTF());
+        }
+
+        /**
+         * Handles one message read from the client.  Checks the type of message.
          * Message Types:
-         *     msg[0] = "robotuser": this is used in testing, and implies that the message should be sent using the
+         *     ROBOT ("robotuser"): this is used in testing, and implies that the message should be sent using the
          *              sendRobotMsgToSocket() method.
-         *     msg[0] = "username": this is used for a request to change usernames.  Calls update_username(), and writes a
+         *     RENAME ("username"): this is used for a request to change usernames.  Calls update_username(), and writes a
          *              response to the client whether or not their username was successfully updated.
-         *     msg[0] = "closing": this is sent by the client to signify that they are closing their socket.  This includes their
-         *              list of delay times and lets the server know to set their thread to awake = "false"
-         *     else: the message is intended to be sent to another client.  Calls sendMsgToSocket() with the message.
+         *     CLOSING ("closing"): this is sent by the client to signify that they are closing their socket.  This includes
+         *              the histogram of their delay times and lets the server know to set their thread to awake = "false"
+         *     MSG: the message is intended to be sent to another client, or to a channel.  Calls sendMsgToSocket() with
+         *              the message.
+         *     JOIN, LEAVE ("join", "leave"): joins or leaves a channel, answered with a warning.
+         *     SEND: a message addressed by handle instead of username.  Calls sendMsgToHandle() with the message.
+         *     RESOLVE: a binary client looking up a username's handle, answered with the handle or -1.
+         *     TIME: a clock probe from a client measuring latency, answered with the Server's ingress and egress times.
+         * @param msg : the message, see Frame.fromLegacy() for how legacy strings map to frames
+         */
+        void handle(Frame msg) throws IOException {
+            if (msg.type == Frame.ROBOT || msg.type == Frame.MSG || msg.type == Frame.SEND) received++;
+            if (msg.type == Frame.ROBOT)
+            {
+                sendRobotMsgToSocket(msg);
+            }
+            else if (msg.type == Frame.RENAME)
+            {
+                String old_username = msg.text();
+                Log.info("Request to change username to " + msg.name + " from " + old_username);
+                //Writes a warning to the client that says whether the username was successfully changed
+                reply(update_username(old_username, msg.name));
+            }
+            else if (msg.type == Frame.CLOSING)
+            {
+                Log.info("received close from " + username);
+                closings.add(msg.payload);
+                sleep();
+                Log.info("Set " + this.username + " awake to " + this.awake);
+            }
+            else if (msg.type == Frame.SEND)
+                sendMsgToHandle(msg);
+            else if (msg.type == Frame.MSG)
+                sendMsgToSocket(msg.name, msg);
+            else if (msg.type == Frame.RESOLVE)
+                reply(resolve(msg.name));
+            else if (msg.type == Frame.JOIN)
+                reply(join(msg.name));
+            else if (msg.type == Frame.LEAVE)
+                reply(leave(msg.name));
+            else if (msg.type == Frame.TIME)
+            {
+                stamped = true;
+                reply(Frame.stamped(Frame.TIME, "", msg.timestamp, System.nanoTime(), Frame.EMPTY));
+            }
+        }
+
+        /**
+         * Connection class run() method for the client Thread.
+         * Continuously checks if a message is waiting to be received, and passes it to handle().  When the client closes
+         * or the socket breaks, the Connection goes to sleep and the thread ends: a client that returns is run by the
+         * thread that logged it in, see handshake().  Input is not read while paused() by backpressure.
          *
-         * After checking input, the thread checks if there are any messages in its msgQueue waiting to be sent to the client.
-         * It writes a message to the socket, then removes it from the queue.
+         * After checking input, the thread checks if there are any messages in its mailbox waiting to be sent to the client.
+         * It writes them to the socket in batches, see writeBatch().
          */
         @Override
         public void run() {
-	        System.out.println("Thread started for username " + username);
-	        while(true) {
+	        Log.info("Thread started for username " + username);
+	        Socket s = source;
+	        while(awake && source == s) {
                 try {
-                    if (dis.available() != 0) {
-                        String[] msg = dis.readUTF().split(":::");
-                        if (msg[0].equals("robotuser"))
-                        {
-                            sendRobotMsgToSocket(msg);
-                        }
-                        else if (msg[0].equals("username"))
-                        {
-                            System.out.println("Request to change username to " + msg[2] + " from " + msg[1]);
-                            //Writes a warning to the client that says whether the username was successfully changed
-                            dos.writeUTF(update_username(msg[1], msg[2]));
-                        }
-                        else if (msg[0].equals("closing"))
-                        {
-			                closed += 1;
-                            System.out.println("received close "+closed);
-                            appendDelayTimes(msg);
-                            this.awake = false;
-                            System.out.println("Set " + this.username + " awake to " + this.awake);
-                            while (!awake)
-                                yield();
-                            continue;
+                    if (!paused() && dis.available() != 0) {
+                        handle(readFrame());
+                        flushReplies();
+                        if (!awake) return;
+                    }
+                    if(peekMsg() != null) {
+                        lock.lock();
+                        try {
+                            if (awake) writeBatch();
+                        } finally {
+                            lock.unlock();
                         }
-                        else
-                            sendMsgToSocket(msg);
                     }
                 }
-                //If socket connections get broken, the socket is closed and the thread is set to awake = "false".  The thread
-                //spins until it is woken back up.
+                //If socket connections get broken, the Connection goes to sleep and the thread ends
                 catch(IOException e){
-                    if(e.getMessage().contains("Broken")){
-                        try{
-                        source.close();
-                        }catch(Exception e2){
-                            e2.printStackTrace();
-                        }
-                        this.awake = false;
-                        while(!awake)
-                            yield();
-                        continue;
-                    }
-                    e.printStackTrace();
-                    break;
+                    if (e.getMessage() == null || !e.getMessage().contains("Broken")) e.printStackTrace();
+                    if (source == s) sleep();
+                    return;
                 }
-                if(!msgQueue.isEmpty()) {
-                    String[] msg = msgQueue.peek();
-                    StringBuilder inMessage = new StringBuilder(msg[0] + ":::" + msg[1]);
-                    for (int i = 2; i < msg.length; i++) { 
-			            inMessage.append(":::");
-			            inMessage.append(msg[i]);
-		            }
-                    try {
-                        dos.writeUTF(inMessage.toString());
-			            dos.flush();
-                        msgQueue.remove();
+            }
+        }
 
-                    }
-                    //If socket connections get broken, the socket is closed and the thread is set to awake = "false".  The thread
-                    //spins until it is woken back up.
-                    catch (Exception e) {
-                        if(e.getMessage().contains("Broken")){
-                            try{
-                                source.close();
-                            }catch(Exception e2){
-                                e2.printStackTrace();
-                            }
-                            awake = false;
-                            while(!awake)
-                                yield();
-                            continue;
-                        }
-                    }
+        /**
+         * Blocking replacement for run() used in virtual mode.  The thread blocks in readUTF() until the client sends
+         * something, while messages from other clients are written by drainQueue(), so an idle client costs nothing.
+         * When the client closes or the socket breaks, the Connection goes to sleep and the thread ends, as in run().
+         * With backpressure, the thread parks after sending to a saturated mailbox until it drains.
+         */
+        void runBlocking() {
+            Log.info("Thread started for username " + username);
+            Socket s = source;
+            drainQueue();
+            try {
+                while (awake && source == s) {
+                    handle(readFrame());
+                    flushReplies();
+                    awaitDrained();
                 }
             }
+            catch (IOException e) {
+                //a socket closed by sleep() also ends up here, after the Connection may have been woken with a new one
+                if (source == s) sleep();
+            }
         }
 
         /**
@@ -297,23 +1396,24 @@ public class Server {
          * @return a message for the client as to whether their request was successful.
          */
         private String update_username(String old_username, String new_username) {
-            String retMsg = "warning:::0:::";
-            if(new_username.equals("username") || new_username.equals("warning") || new_username.equals("robotuser")) {
-                return retMsg + "Invalid username. Try again.";
-            }
-            if(server_directory.containsKey(old_username)) {
-                if(!server_directory.containsKey(new_username)){
-                    Connection client_thread = server_directory.remove(old_username);
-                    server_directory.put(new_username, client_thread);
-                    this.username = new_username;
-                    return retMsg + "Successfully changed username.";
+            if(isReserved(new_username)) {
+                return "Invalid username. Try again.";
+            }
+            //in a cluster the new username has to be one this node owns, see Cluster
+            if (cluster != null && !cluster.self.equals(cluster.owner(new_username))) {
+                return "That username belongs to another server. Try again.";
+            }
+            if(server_directory.get(old_username) == this) {
+                if((offlineLog == null || !offlineLog.has(new_username)) && server_directory.rename(old_username, new_username, this)){
+                    setUsername(new_username);
+                    return "Successfully changed username.";
                 }
                 else {
-                    return retMsg + "Username is taken! Try again.";
+                    return "Username is taken! Try again.";
                 }
             }
             //This should never be returned, because the client should be sending a message with a valid old_username.  Just in case...
-            return retMsg + "Invalid username.  Try again.";
+            return "Invalid username.  Try again.";
         }
     }
 }
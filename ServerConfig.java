@@ -0,0 +1,186 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * ServerConfig.java
+ * Startup options for the Server.  The first argument is always the port number, any following arguments are options of
+ * the form --name=value.
+ *   --mode=thread|virtual|nio : how client sockets are handled.  "thread" (default) runs one polling Connection thread
+ *                               per client, "virtual" runs each Connection on a virtual thread that blocks in readUTF(), and
+ *                               "nio" multiplexes every client socket over a small number of selector event loops.
+ *   --loops=N                 : number of event loop threads used in nio mode (default: number of available processors)
+ *   --acceptors=N             : threads accepting connections in thread and virtual mode, each on its own listening
+ *                               socket where the OS has SO_REUSEPORT (default 1)
+ *   --backlog=N               : connections the OS queues for the Server before it accepts them (default 1024)
+ *   --handshake-timeout-ms=MS : how long a new connection has to send its username before it is closed (default 5000)
+ *   --pool-chunk=BYTES        : size of the pooled direct buffers binary messages are routed in, in nio mode (default 4096)
+ *   --pool-size=N             : number of free pooled buffers kept for reuse (default 1024)
+ *   --batch=N                 : most queued messages written to a client with a single flush (default 64)
+ *   --linger-us=MICROS        : how long a batch that is not full waits for more messages before it is flushed
+ *                               (default 0, flush as soon as the queue is empty)
+ *   --wal=DIR                 : keep messages for offline users in a write-ahead log in DIR (see OfflineLog) instead of
+ *                               in memory, so they survive a restart (default: off)
+ *   --wal-segment=BYTES       : size of each log segment file (default 16 MB)
+ *   --mailbox=N               : most messages kept in memory for one user (default 10000), see Mailbox
+ *   --overflow=POLICY         : what happens to a message for a full mailbox: reject (default), drop-oldest, or spill
+ *                               to the offline log (needs --wal)
+ *   --backpressure=on|off     : stop reading from clients that send to a full mailbox until it drains (default on)
+ *   --depth-report=SECONDS    : print the deepest mailboxes this often (default 0, never)
+ *   --metrics=PORT            : serve traffic counters, connection counts and mailbox depths as plain text at
+ *                               http://localhost:PORT/metrics (default 0, off), see Metrics
+ *   --cluster=PORT            : run as one node of a Cluster, linking to the other nodes on PORT (default 0, standalone)
+ *   --peers=HOST:PORT,...     : cluster ports of nodes to join the cluster through (default: none, start a new cluster)
+ *   --advertise=HOST          : host name the other nodes, and the clients they redirect, reach this node at
+ *                               (default localhost)
+ *   --compress=on|off         : compress traffic with clients that offer DEFLATE at login (default on), see Compression
+ *   --compress-threshold=BYTES: smallest payload, or batch of messages written together, that is compressed (default 512)
+ *   --tls=KEYSTORE            : accept clients over TLS only, with the key and certificate in the PKCS12 key store KEYSTORE
+ *                               (needs --mode=nio, default: off), see TlsChannel
+ *   --tls-password=PASS       : password of the --tls key store and its key
+ */
+public class ServerConfig {
+
+    enum Mode { THREAD, VIRTUAL, NIO }
+
+    int port;
+    Mode mode = Mode.THREAD;
+    int loops = Runtime.getRuntime().availableProcessors();
+    int acceptors = 1;
+    int backlog = 1024;
+    int handshakeMillis = 5000;
+    int poolChunk = 4096;
+    int poolSize = 1024;
+    int batch = 64;
+    long lingerNanos = 0;
+    String wal;
+    int walSegment = 16 << 20;
+    int mailbox = 10000;
+    Mailbox.Overflow overflow = Mailbox.Overflow.REJECT;
+    boolean backpressure = true;
+    int depthReport = 0;
+    int metrics = 0;
+    int cluster = 0;
+    List<String> peers = new ArrayList<>();
+    String advertise = "localhost";
+    boolean compress = true;
+    int compressThreshold = Compression.THRESHOLD;
+    String tls;
+    String tlsPassword;
+
+    /**
+     * Parses the command line arguments given to Server.main
+     * @param args : port number followed by optional --name=value options
+     * @return the parsed configuration
+     * @throws IllegalArgumentException if an option is not recognized or has an invalid value
+     */
+    static ServerConfig parse(String[] args) {
+        ServerConfig config = new ServerConfig();
+        config.port = Integer.parseInt(args[0]);
+        for (int i = 1; i < args.length; i++) {
+            String arg = args[i];
+            int eq = arg.indexOf('=');
+            if (!arg.startsWith("--") || eq < 0)
+                throw new IllegalArgumentException("Options must look like --name=value: " + arg);
+            String name = arg.substring(2, eq);
+            String value = arg.substring(eq + 1);
+            switch (name) {
+                case "mode":
+                    config.mode = Mode.valueOf(value.toUpperCase());
+                    break;
+                case "loops":
+                    config.loops = positive(name, value);
+                    break;
+                case "acceptors":
+                    config.acceptors = positive(name, value);
+                    break;
+                case "backlog":
+                    config.backlog = positive(name, value);
+                    break;
+                case "handshake-timeout-ms":
+                    config.handshakeMillis = positive(name, value);
+                    break;
+                case "pool-chunk":
+                    config.poolChunk = positive(name, value);
+                    break;
+                case "pool-size":
+                    config.poolSize = positive(name, value);
+                    break;
+                case "batch":
+                    config.batch = positive(name, value);
+                    break;
+                case "linger-us":
+                    long micros = Long.parseLong(value);
+                    if (micros < 0) throw new IllegalArgumentException("--linger-us must not be negative");
+                    config.lingerNanos = micros * 1000;
+                    break;
+                case "wal":
+                    config.wal = value;
+                    break;
+                case "wal-segment":
+                    config.walSegment = positive(name, value);
+                    break;
+                case "mailbox":
+                    config.mailbox = positive(name, value);
+                    break;
+                case "overflow":
+                    config.overflow = Mailbox.Overflow.valueOf(value.toUpperCase().replace('-', '_'));
+                    break;
+                case "backpressure":
+                    if (!value.equals("on") && !value.equals("off"))
+                        throw new IllegalArgumentException("--backpressure must be on or off");
+                    config.backpressure = value.equals("on");
+                    break;
+                case "depth-report":
+                    config.depthReport = positive(name, value);
+                    break;
+                case "metrics":
+                    config.metrics = positive(name, value);
+                    break;
+                case "cluster":
+                    config.cluster = positive(name, value);
+                    break;
+                case "peers":
+                    for (String peer : value.split(",")) {
+                        if (peer.lastIndexOf(':') <= 0) throw new IllegalArgumentException("--peers must be HOST:PORT,...");
+                        config.peers.add(peer.trim());
+                    }
+                    break;
+                case "advertise":
+                    config.advertise = value;
+                    break;
+                case "compress":
+                    if (!value.equals("on") && !value.equals("off"))
+                        throw new IllegalArgumentException("--compress must be on or off");
+                    config.compress = value.equals("on");
+                    break;
+                case "compress-threshold":
+                    config.compressThreshold = positive(name, value);
+                    break;
+                case "tls":
+                    config.tls = value;
+                    break;
+                case "tls-password":
+                    config.tlsPassword = value;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option --" + name);
+            }
+        }
+        if (config.overflow == Mailbox.Overflow.SPILL && config.wal == null)
+            throw new IllegalArgumentException("--overflow=spill needs --wal");
+        if (!config.peers.isEmpty() && config.cluster == 0)
+            throw new IllegalArgumentException("--peers needs --cluster");
+        if (config.tls != null && config.mode != Mode.NIO)
+            throw new IllegalArgumentException("--tls needs --mode=nio");
+        if (config.tls != null && config.tlsPassword == null)
+            throw new IllegalArgumentException("--tls needs --tls-password");
+        return config;
+    }
+
+    // Parses an option value that must be a positive integer
+    static int positive(String name, String value) {
+        int n = Integer.parseInt(value);
+        if (n <= 0) throw new IllegalArgumentException("--" + name + " must be positive");
+        return n;
+    }
+}
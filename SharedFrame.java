@@ -0,0 +1,46 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ * SharedFrame.java
+ * SharedFrame class is a frame encoded once and then queued, unchanged, for any number of recipients: a message published
+ * to a Channel.  The binary encoding is made when the frame is created and the legacy one the first time a legacy client
+ * needs it, and every write after that copies those bytes instead of encoding the frame again.
+ */
+public class SharedFrame extends Frame {
+
+    private final byte[] binary;
+    private volatile byte[] legacy;
+
+    SharedFrame(byte type, String name, long timestamp, byte[] payload) {
+        super(type, name, timestamp, payload);
+        this.binary = super.encodeBinary().array();
+    }
+
+    // The writeUTF form of the frame, encoded by the first caller
+    private byte[] legacy() throws IOException {
+        byte[] bytes = legacy;
+        if (bytes == null) legacy = bytes = encodeUTF(legacyText()).array();
+        return bytes;
+    }
+
+    @Override
+    ByteBuffer encodeBinary() {
+        return ByteBuffer.wrap(binary);
+    }
+
+    @Override
+    ByteBuffer encode(boolean binary) throws IOException {
+        return ByteBuffer.wrap(binary ? this.binary : legacy());
+    }
+
+    @Override
+    void write(DataOutputStream out) throws IOException {
+        out.write(binary);
+    }
+
+    @Override
+    void writeTo(DataOutputStream out, boolean binary) throws IOException {
+        out.write(binary ? this.binary : legacy());
+    }
+}
@@ -0,0 +1,217 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.concurrent.atomic.LongAdder;
+import javax.net.ssl.*;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLEngineResult.Status;
+
+/**
+ * TlsChannel.java
+ * A non-blocking SocketChannel encrypted with an SSLEngine, for a selector loop that owns the channel: the NioEventLoop
+ * sessions of a Server started with --tls, and the simulated clients of LoadGenerator --tls=on.  read() and write() never
+ * block, and the handshake is driven from inside them as records arrive and the socket takes output, so no thread is
+ * spent per connection.  The engine's delegated tasks (the key exchange and certificate signature) run on the calling
+ * loop.
+ *
+ * Sessions are resumed rather than handshaken in full when a client reconnects: the Server uses one SSLContext for every
+ * connection, whose session tickets (TLS 1.3) or session cache (TLS 1.2) let a client that presents a session from an
+ * earlier connection skip the certificate exchange.  Clients keep their sessions in their own SSLContext, keyed by the
+ * host and port the engine was created for.
+ *
+ * Each channel holds three buffers of about one TLS record (16 KB): encrypted input not yet decrypted, decrypted input the
+ * caller has not taken yet, and encrypted output the socket has not taken yet.
+ */
+public class TlsChannel {
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    final SocketChannel channel;
+    final SSLEngine engine;
+    private final LongAdder bytesIn;
+    private final LongAdder bytesOut;
+    //records read from the socket and not yet decrypted (write mode)
+    private ByteBuffer netIn;
+    //decrypted bytes the caller has not taken yet (write mode)
+    private final ByteBuffer appIn;
+    //records waiting for the socket (read mode)
+    private final ByteBuffer netOut;
+    //the last unwrap stopped because appIn was full, so netIn may still hold whole records
+    private boolean overflowed;
+    //the peer closed the connection or sent close_notify
+    private boolean closed;
+
+    /**
+     * Starts the handshake on a connected channel.  A client engine sends its first message on the next write().
+     * @param channel : a connected, non-blocking channel
+     * @param engine : the engine, already in client or server mode
+     * @param bytesIn : counts the bytes read from the socket
+     * @param bytesOut : counts the bytes written to the socket
+     */
+    TlsChannel(SocketChannel channel, SSLEngine engine, LongAdder bytesIn, LongAdder bytesOut) throws IOException {
+        this.channel = channel;
+        this.engine = engine;
+        this.bytesIn = bytesIn;
+        this.bytesOut = bytesOut;
+        SSLSession session = engine.getSession();
+        netIn = ByteBuffer.allocate(session.getPacketBufferSize());
+        appIn = ByteBuffer.allocate(session.getApplicationBufferSize());
+        netOut = ByteBuffer.allocate(session.getPacketBufferSize()).flip();
+        engine.beginHandshake();
+    }
+
+    /**
+     * Loads an SSLContext for a Server from a key store holding its private key and certificate.
+     * @param keyStore : path of a PKCS12 (or JKS) key store
+     * @param password : password of the store and the key
+     * @return the context every connection of the Server shares, so their sessions can be resumed
+     */
+    static SSLContext serverContext(String keyStore, String password) throws IOException, GeneralSecurityException {
+        KeyStore store = KeyStore.getInstance(new File(keyStore), password.toCharArray());
+        KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keys.init(store, password.toCharArray());
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(keys.getKeyManagers(), null, null);
+        return context;
+    }
+
+    /**
+     * Reads what the socket has, decrypts it, and moves as much plaintext as fits into dst.  Plaintext that does not fit
+     * stays buffered (see buffered()) until the next call, which needs no new input from the socket.
+     * @param dst : buffer in write mode
+     * @return bytes of plaintext added to dst, -1 once the peer has closed and everything has been handed over
+     */
+    int read(ByteBuffer dst) throws IOException {
+        if (!closed) {
+            int n = channel.read(netIn);
+            if (n < 0) closed = true;
+            else bytesIn.add(n);
+        }
+        netIn.flip();
+        overflowed = false;
+        try {
+            while (netIn.hasRemaining()) {
+                SSLEngineResult result = engine.unwrap(netIn, appIn);
+                boolean progressed = handshake();
+                if (result.getStatus() == Status.CLOSED) {
+                    closed = true;
+                    break;
+                }
+                if (result.getStatus() == Status.BUFFER_OVERFLOW) {
+                    overflowed = true;
+                    break;
+                }
+                if (result.getStatus() == Status.BUFFER_UNDERFLOW) {
+                    int packet = engine.getSession().getPacketBufferSize();
+                    if (netIn.capacity() < packet) netIn = ByteBuffer.allocate(packet).put(netIn).flip();
+                    break;
+                }
+                if (result.bytesConsumed() == 0 && result.bytesProduced() == 0 && !progressed) break;
+            }
+        } finally {
+            netIn.compact();
+        }
+        appIn.flip();
+        int moved = Math.min(appIn.remaining(), dst.remaining());
+        dst.put(appIn.slice(appIn.position(), moved));
+        appIn.position(appIn.position() + moved);
+        appIn.compact();
+        if (moved == 0 && closed && appIn.position() == 0) return -1;
+        return moved;
+    }
+
+    /**
+     * Encrypts as much of the given buffers as the socket takes and writes it.  Buffers are consumed as they are
+     * encrypted, so one without remaining bytes can be reused even if its record is still waiting in pending().
+     * Application data waits while the handshake needs input from the peer, see blocked().
+     * @return bytes written to the socket
+     */
+    long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        long before = bytesOut.sum();
+        if (!flushNet()) return bytesOut.sum() - before;
+        handshake();
+        while (!netOut.hasRemaining() && !handshaking() && hasRemaining(srcs, offset, length)) {
+            netOut.clear();
+            SSLEngineResult result = engine.wrap(srcs, offset, length, netOut);
+            netOut.flip();
+            if (result.getStatus() == Status.CLOSED) throw new IOException("TLS session closed");
+            flushNet();
+            if (result.bytesConsumed() == 0) break;
+        }
+        return bytesOut.sum() - before;
+    }
+
+    // Runs the handshake steps that need no input from the peer: delegated tasks, and messages to send.  Returns whether
+    // it did anything.
+    private boolean handshake() throws IOException {
+        boolean progressed = false;
+        while (true) {
+            HandshakeStatus status = engine.getHandshakeStatus();
+            if (status == HandshakeStatus.NEED_TASK) {
+                Runnable task;
+                while ((task = engine.getDelegatedTask()) != null)
+                    task.run();
+            }
+            else if (status == HandshakeStatus.NEED_WRAP && !netOut.hasRemaining()) {
+                netOut.clear();
+                SSLEngineResult result = engine.wrap(EMPTY, netOut);
+                netOut.flip();
+                flushNet();
+                if (result.getStatus() == Status.CLOSED) return true;
+            }
+            else return progressed;
+            progressed = true;
+        }
+    }
+
+    // Writes the waiting records, returns whether they have all gone out
+    private boolean flushNet() throws IOException {
+        while (netOut.hasRemaining()) {
+            int n = channel.write(netOut);
+            if (n == 0) return false;
+            bytesOut.add(n);
+        }
+        return true;
+    }
+
+    private static boolean hasRemaining(ByteBuffer[] srcs, int offset, int length) {
+        for (int i = offset; i < offset + length; i++)
+            if (srcs[i].hasRemaining()) return true;
+        return false;
+    }
+
+    // Whether the handshake is still going on
+    boolean handshaking() {
+        HandshakeStatus status = engine.getHandshakeStatus();
+        return status != HandshakeStatus.NOT_HANDSHAKING && status != HandshakeStatus.FINISHED;
+    }
+
+    // Whether encrypted output is waiting for the socket to take it, so the caller should wait for OP_WRITE
+    boolean pending() {
+        return netOut.hasRemaining();
+    }
+
+    // Whether application data has to wait for the peer's next handshake message rather than for the socket
+    boolean blocked() {
+        return !pending() && engine.getHandshakeStatus() == HandshakeStatus.NEED_UNWRAP;
+    }
+
+    // Whether read() has plaintext, or records, left over that it can hand out without reading the socket again
+    boolean buffered() {
+        return appIn.position() > 0 || overflowed;
+    }
+
+    // Sends close_notify if the socket takes it, then closes the channel
+    void close() throws IOException {
+        try {
+            engine.closeOutbound();
+            handshake();
+        } catch (IOException e) {
+            //closing anyway
+        } finally {
+            channel.close();
+        }
+    }
+}
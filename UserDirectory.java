@@ -0,0 +1,153 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntFunction;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+
+/**
+ * UserDirectory.java
+ * The Server's username to Connection directory.  Lookups are lock-free reads of a ConcurrentHashMap, which is already
+ * split into independently locked bins, so logins and renames of different users never contend with each other or with
+ * message routing.
+ *
+ * Users are only removed when a Server in a Cluster hands them to another node, otherwise they are renamed, so every
+ * value that was ever added is also kept in an append-only table and identified by its index there.  The id is handed to the value when it is created, stays the same when it is renamed,
+ * and is what clients address messages to on the routing hot path (see byId()).  Robot messages sample the same table in
+ * O(1) without copying the key set.
+ * @param <V> : the value stored for each username (Server.Connection)
+ */
+public class UserDirectory<V> {
+
+    private final ConcurrentHashMap<String, V> byName = new ConcurrentHashMap<>();
+    //every value added so far, by id.  Written while holding this directory's monitor, read without it: members is
+    //written again after every slot, so a reader sees either the value or, while it is still being created, null.
+    private volatile Object[] members = new Object[16];
+    private final AtomicInteger nextId = new AtomicInteger();
+    //username of every removed value by its id, so what clients addressed by id can still be found by name
+    private final ConcurrentHashMap<Integer, String> removedNames = new ConcurrentHashMap<>();
+
+    // Returns the value for a username, or null if there is none
+    V get(String username) {
+        return byName.get(username);
+    }
+
+    // Returns the value with an id, or null if there is none
+    @SuppressWarnings("unchecked")
+    V byId(int id) {
+        Object[] m = members;
+        return id >= 0 && id < m.length ? (V) m[id] : null;
+    }
+
+    boolean contains(String username) {
+        return byName.containsKey(username);
+    }
+
+    /**
+     * Atomically looks at the value for a username and decides what to store, while no other update, rename or login
+     * for the same username can run.  Neither function may use the directory itself.
+     * @param username : the username
+     * @param update : given the current value, returns the value to keep
+     * @param create : called if there is no value, with the id the new value gets.  Returns the value to add, or null to
+     *                 leave the username without a value.
+     * @return the value now stored, or null
+     */
+    V update(String username, UnaryOperator<V> update, IntFunction<V> create) {
+        return byName.compute(username, (name, current) -> {
+            if (current != null) return update.apply(current);
+            int id = nextId.getAndIncrement();
+            V value = create.apply(id);
+            //the id is handed out again unless a later one was taken meanwhile, in which case its slot stays empty
+            if (value == null) nextId.compareAndSet(id + 1, id);
+            else addMember(id, value);
+            return value;
+        });
+    }
+
+    /**
+     * Moves a value to a new username.  The new username is claimed first, so two users can never end up with the same
+     * name, and the value is reachable under at least one of its names at all times.
+     * @param from : the current username
+     * @param to : the requested username
+     * @param value : the value stored under from
+     * @return false if to is already taken or from does not hold value
+     */
+    boolean rename(String from, String to, V value) {
+        if (byName.get(from) != value) return false;
+        if (byName.putIfAbsent(to, value) != null) return false;
+        if (!byName.remove(from, value)) {
+            byName.remove(to, value);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Removes the value stored under a username if it is the one with the given id and a check on it passes, atomically
+     * like update().  Its slot in the table is left empty, the id is not handed out again, and the username is kept for
+     * removedName().
+     * @param username : the username
+     * @param id : the value's id
+     * @param check : called with the value while no update for the username can run, false keeps it
+     * @return whether the value was removed
+     */
+    boolean remove(String username, int id, Predicate<V> check) {
+        boolean[] removed = new boolean[1];
+        byName.computeIfPresent(username, (name, current) -> {
+            if (current != byId(id) || !check.test(current)) return current;
+            removed[0] = true;
+            return null;
+        });
+        if (removed[0]) {
+            removedNames.put(id, username);
+            clearMember(id);
+        }
+        return removed[0];
+    }
+
+    // Returns the username the value with an id had when it was removed, or null if it was not removed
+    String removedName(int id) {
+        return removedNames.get(id);
+    }
+
+    private synchronized void clearMember(int id) {
+        Object[] m = members;
+        m[id] = null;
+        members = m;
+    }
+
+    private synchronized void addMember(int id, V value) {
+        Object[] m = members;
+        if (id >= m.length) m = Arrays.copyOf(m, Math.max(m.length * 2, id + 1));
+        m[id] = value;
+        members = m;
+    }
+
+    /**
+     * Picks a random value in O(1), uniformly unless another value is being created at the same time.
+     * @return the value, or null if the directory is empty
+     */
+    V random() {
+        int n = Math.min(nextId.get(), members.length);
+        if (n == 0) return null;
+        int start = ThreadLocalRandom.current().nextInt(n);
+        for (int i = 0; i < n; i++) {
+            V value = byId((start + i) % n);
+            if (value != null) return value;
+        }
+        return null;
+    }
+
+    // A copy of every value, for reporting
+    @SuppressWarnings("unchecked")
+    List<V> values() {
+        Object[] m = members;
+        List<V> values = new ArrayList<>();
+        for (Object value : m)
+            if (value != null) values.add((V) value);
+        return values;
+    }
+}
@@ -0,0 +1,44 @@
+package lab1;
+
+import java.io.*;
+import java.util.Random;
+
+/**
+ * Fixtures.java
+ * Inputs shared by the benchmarks.  Everything is generated from fixed seeds so every run measures the same data, and
+ * nothing touches the network.
+ */
+class Fixtures {
+
+    static final long SEED = 42;
+    static final long TIMESTAMP = 1571870000000L;
+
+    // Random lower case message text of the given length
+    static String text(int length, long seed) {
+        Random random = new Random(seed);
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++)
+            chars[i] = (char) ('a' + random.nextInt(26));
+        return new String(chars);
+    }
+
+    // The numbers 0 to n-1 in a fixed random order
+    static int[] shuffled(int n) {
+        Random random = new Random(SEED);
+        int[] order = new int[n];
+        for (int i = 0; i < n; i++)
+            order[i] = i;
+        for (int i = n - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int t = order[i];
+            order[i] = order[j];
+            order[j] = t;
+        }
+        return order;
+    }
+
+    // Stream standing in for a client socket, discarding everything after the same buffering Server.output() uses
+    static DataOutputStream sink() {
+        return new DataOutputStream(new BufferedOutputStream(OutputStream.nullOutputStream(), 16 * 1024));
+    }
+}
@@ -0,0 +1,71 @@
+package lab1;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * HistoryBenchmark.java
+ * Cost of History.addMessage(), of reading back only the new message with since() (what ClientGui does after every send
+ * and receive), of reading one conversation, and of History.getMessages() (a full redraw) with 10k to 1M messages already
+ * stored.  The window is as large as the history, and the history is rebuilt before every iteration so addMessage()
+ * always starts from the same size.
+ */
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgs = {"-Xms2g", "-Xmx2g"})
+public class HistoryBenchmark {
+
+    // messages already in the history
+    @Param({"10000", "100000", "1000000"})
+    int size;
+
+    private History history;
+    private String text;
+    private long cursor;
+
+    @Setup(Level.Iteration)
+    public void fill() {
+        text = Fixtures.text(64, Fixtures.SEED);
+        history = new History(size + 1_000_000);
+        for (int i = 0; i < size; i++)
+            history.addMessage(i % 2 == 0 ? "alice" : "bob", i % 2 == 0, text);
+        cursor = history.end();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public History addMessage() {
+        history.addMessage("alice", true, text);
+        return history;
+    }
+
+    // One message added and read back by cursor
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public List<Message> appendDelta() {
+        history.addMessage("alice", true, text);
+        List<Message> added = history.since(cursor);
+        cursor = history.end();
+        return added;
+    }
+
+    // The latest 100 messages of one conversation, which holds half of the history
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public List<Message> conversation() {
+        return history.conversation("bob", history.end() - 200);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public String[] getMessages() {
+        return history.getMessages();
+    }
+}
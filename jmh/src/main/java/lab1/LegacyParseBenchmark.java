@@ -0,0 +1,76 @@
+package lab1;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * LegacyParseBenchmark.java
+ * Cost of taking apart one "recipient:::timestamp:::text" message, the way Client.readMessage() does with
+ * split(":::") and the alternatives: a precompiled Pattern, Frame.fromLegacy()'s indexOf scan, and decoding the same
+ * message as a binary Frame.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class LegacyParseBenchmark {
+
+    private static final Pattern SEPARATOR = Pattern.compile(":::", Pattern.LITERAL);
+
+    // length of the message text
+    @Param({"16", "256", "4096"})
+    int length;
+
+    private String legacy;
+    private ByteBuffer binary;
+
+    @Setup
+    public void setup() {
+        String text = Fixtures.text(length, Fixtures.SEED);
+        legacy = "bob:::" + Fixtures.TIMESTAMP + ":::" + text;
+        binary = new Frame(Frame.MSG, "bob", Fixtures.TIMESTAMP, text).encodeBinary();
+    }
+
+    // Client.readMessage(): split on every separator, then join the text back together
+    @Benchmark
+    public void split(Blackhole bh) {
+        String[] inputs = legacy.split(":::");
+        bh.consume(inputs[0]);
+        bh.consume(Long.parseLong(inputs[1]));
+        StringBuilder text = new StringBuilder();
+        for (int i = 2; i < inputs.length; i++) {
+            text.append(inputs[i]);
+            if (i != inputs.length - 1) text.append(":::");
+        }
+        bh.consume(text.toString());
+    }
+
+    // Precompiled literal pattern, splitting only on the first two separators
+    @Benchmark
+    public void pattern(Blackhole bh) {
+        String[] inputs = SEPARATOR.split(legacy, 3);
+        bh.consume(inputs[0]);
+        bh.consume(Long.parseLong(inputs[1]));
+        bh.consume(inputs[2]);
+    }
+
+    // What the Server does with legacy strings
+    @Benchmark
+    public Frame fromLegacy() {
+        return Frame.fromLegacy(legacy);
+    }
+
+    // The same message in the binary protocol
+    @Benchmark
+    public Frame binaryRead() throws IOException {
+        ByteBuffer buf = binary.duplicate();
+        return Frame.read(buf, buf.getInt());
+    }
+}
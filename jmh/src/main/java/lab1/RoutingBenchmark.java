@@ -0,0 +1,70 @@
+package lab1;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * RoutingBenchmark.java
+ * One client sending to users picked in a fixed random order out of a directory of N, through
+ * Server.Connection.sendMsgToSocket() (by username) and sendMsgToHandle() (by handle).  Each message is taken back out
+ * of the recipient's mailbox so mailboxes stay empty, and the sender's "Message delivered" replies go to a null stream.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgs = {"-Xms2g", "-Xmx2g", "-Dlog=warn"})
+public class RoutingBenchmark {
+
+    // number of users in the directory
+    @Param({"10", "10000", "100000"})
+    int users;
+
+    private Server.Connection sender;
+    private Server.Connection[] receivers;
+    private String[] names;
+    private Frame[] sends;
+    private Frame msg;
+    private int[] order;
+    private int next;
+
+    @Setup
+    public void setup() throws IOException {
+        Server server = new Server(ServerConfig.parse(new String[]{"0"}));
+        sender = server.connect("sender", Fixtures.sink(), true);
+        receivers = new Server.Connection[users];
+        names = new String[users];
+        sends = new Frame[users];
+        String text = Fixtures.text(64, Fixtures.SEED);
+        for (int i = 0; i < users; i++) {
+            names[i] = "user" + i;
+            receivers[i] = server.connect(names[i], Fixtures.sink(), true);
+            sends[i] = Frame.send(receivers[i].handle(), Fixtures.TIMESTAMP, text);
+        }
+        msg = new Frame(Frame.MSG, "", Fixtures.TIMESTAMP, text);
+        order = Fixtures.shuffled(users);
+    }
+
+    private int nextUser() {
+        int i = order[next];
+        next = next + 1 == order.length ? 0 : next + 1;
+        return i;
+    }
+
+    @Benchmark
+    public Frame byName() {
+        int i = nextUser();
+        sender.sendMsgToSocket(names[i], msg);
+        return receivers[i].removeMsg();
+    }
+
+    @Benchmark
+    public Frame byHandle() {
+        int i = nextUser();
+        sender.sendMsgToHandle(sends[i]);
+        return receivers[i].removeMsg();
+    }
+}
@@ -0,0 +1,70 @@
+package lab1;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SerializationBenchmark.java
+ * Cost of getting messages out of a Connection: writing one frame in either protocol, encoding one for a non-blocking
+ * channel, and draining a full batch (--batch, default 64) from a mailbox to a buffered null stream with
+ * Server.Connection.drainQueue().
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgs = "-Dlog=warn")
+public class SerializationBenchmark {
+
+    // length of the message text
+    @Param({"16", "256", "4096"})
+    int length;
+
+    // binary frames or legacy writeUTF strings
+    @Param({"true", "false"})
+    boolean binary;
+
+    private Server.Connection connection;
+    private DataOutputStream dos;
+    private Frame msg;
+    private Frame[] batch;
+
+    @Setup
+    public void setup() throws IOException {
+        ServerConfig config = ServerConfig.parse(new String[]{"0"});
+        Server server = new Server(config);
+        dos = Fixtures.sink();
+        connection = server.connect("reader", Fixtures.sink(), binary);
+        msg = new Frame(Frame.MSG, "alice", Fixtures.TIMESTAMP, Fixtures.text(length, Fixtures.SEED));
+        batch = new Frame[config.batch];
+        for (int i = 0; i < batch.length; i++)
+            batch[i] = new Frame(Frame.MSG, "alice", Fixtures.TIMESTAMP + i, Fixtures.text(length, Fixtures.SEED + i));
+    }
+
+    // One frame written to a buffered stream, as writeBatch() does for each message
+    @Benchmark
+    public DataOutputStream writeTo() throws IOException {
+        msg.writeTo(dos, binary);
+        return dos;
+    }
+
+    // One frame encoded into a buffer, as an NIO session does
+    @Benchmark
+    public ByteBuffer encode() throws IOException {
+        return msg.encode(binary);
+    }
+
+    // A full batch queued and drained with one flush
+    @Benchmark
+    @OperationsPerInvocation(64)
+    public void drainQueue() {
+        for (Frame f : batch)
+            connection.mailbox.offer(f);
+        connection.drainQueue();
+    }
+}
@@ -0,0 +1,21 @@
+#!/bin/bash
+# Regression harness.  For each mode a Server is started on port 8080 and driven by LoadGenerator, which simulates the
+# clients from a single JVM (see LoadGenerator.java for its options).  The RESULT line of each run is appended, with the
+# date and mode, to NetworkTesting/load/summary.txt.
+# Usage: ./loadtester.bash [LoadGenerator options...]   e.g. ./loadtester.bash --clients=2000 --rate=20000 --duration=60
+# MODES="virtual nio" limits the modes, SERVER_OPTS="--batch=128 ..." is passed on to the Server.
+
+modes=${MODES:-thread virtual nio}
+outdir=NetworkTesting/load
+mkdir -p $outdir
+
+for mode in $modes
+do
+    java Server 8080 --mode=$mode $SERVER_OPTS > /dev/null &
+    server=$!
+    sleep 1
+    result=$(java LoadGenerator localhost 8080 "$@" | tee /dev/stderr | grep "^RESULT")
+    kill $server
+    wait $server 2>/dev/null
+    echo "$(date +%F_%T) mode=$mode ${result#RESULT }" | tee -a $outdir/summary.txt
+done
@@ -0,0 +1,42 @@
+#!/bin/bash
+# Compares the Server connection modes.  For each mode a Server is started on port 8080, $1 robot Clients are forked
+# (like shelltester.bash), and once they have closed the script records the Server's thread count and the CPU it burns
+# over 10 idle seconds while all of those users are offline.  Clients keep reading for $linger ms after sending so their
+# delays are recorded.  Latency files are copied to NetworkTesting/modes/, and every summary line names the Java version,
+# since before Java 21 --mode=virtual runs on platform threads (recorded as virtual/platform).
+# Usage: ./modetester.bash ${number of clients} [modes...]
+
+clients=$1
+shift
+modes=${@:-thread virtual nio}
+outdir=NetworkTesting/modes
+mkdir -p $outdir
+ticks=$(getconf CLK_TCK)
+java=$(java -version 2>&1 | head -1 | cut -d'"' -f2)
+linger=${LINGER:-$(( clients * 200 + 2000 ))}
+
+for mode in $modes
+do
+    java Server 8080 --mode=$mode > $outdir/server.log 2>&1 &
+    server=$!
+    sleep 1
+    for i in `seq 1 $clients`
+    do
+        java -DpostponeRun=$linger Client localhost 8080 $mode${i} > /dev/null &
+    done
+    wait $(jobs -p | grep -v "^$server$")
+    sleep 2
+
+    threads=$(ps -o nlwp= -p $server)
+    before=$(awk '{print $14 + $15}' /proc/$server/stat)
+    sleep 10
+    after=$(awk '{print $14 + $15}' /proc/$server/stat)
+    kill $server
+    wait $server 2>/dev/null
+
+    label=$mode
+    grep -q "using platform threads" $outdir/server.log && label=$mode/platform
+    rm $outdir/server.log
+    cp latency.txt $outdir/latency_${mode}_${clients}.txt
+    echo "$label: java=$java threads=$threads idle_cpu=$(( (after - before) * 100 / ticks / 10 ))% $(head -1 latency.txt)" | tee -a $outdir/summary.txt
+done
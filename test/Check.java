@@ -0,0 +1,11 @@
+/**
+ * Check.java
+ * The assertion the checks in test/ share: a failed check throws, which makes the check's main() and make check fail.
+ */
+public class Check {
+
+    // Fails with a message unless the condition holds
+    static void check(boolean condition, String failure) {
+        if (!condition) throw new AssertionError(failure);
+    }
+}
@@ -0,0 +1,33 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * FrameTest.java
+ * Checks that a message too long for one writeUTF string still reaches a legacy client, as a warning in its place, rather
+ * than failing the write.  Run with make check.
+ */
+public class FrameTest {
+
+    public static void main(String[] args) throws IOException {
+        Frame small = new Frame(Frame.MSG, "alice", 42, "hello");
+        Check.check(small.fitsLegacy() && small.legacyText().equals("alice:::42:::hello"), small.legacyText());
+
+        //22,000 three byte chars are far fewer than 65535 chars, but 66,000 bytes
+        Frame wide = new Frame(Frame.MSG, "alice", 42, "\u20AC".repeat(22_000));
+        Check.check(!wide.fitsLegacy(), "a 66,000 byte text fits in writeUTF");
+        Frame large = new Frame(Frame.MSG, "alice", 42, "x".repeat(70_000));
+        for (Frame f : new Frame[]{wide, large, new SharedFrame(Frame.MSG, "#room/alice", 42, large.payload)}) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            f.writeTo(new DataOutputStream(bytes), false);
+            String written = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())).readUTF();
+            Check.check(written.startsWith("warning:::0:::A message from ") && written.contains("too long"), written);
+            Check.check(Frame.readUTF(f.encode(false).position(2), bytes.size() - 2).equals(written),
+                    "encode(false) differs from writeTo()");
+        }
+        Check.check(new Frame(Frame.MSG, "alice", 42, "x".repeat(65_000)).fitsLegacy(), "a 65,000 byte message does not fit");
+        System.out.println("FrameTest passed");
+    }
+}
@@ -0,0 +1,88 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+
+/**
+ * HistoryTest.java
+ * Checks a History reopened from its archive: the window it reads back, and messages added after it, come back complete
+ * and in order while the ring grows from its first 16 slots to the window, whether they are read before or after new
+ * messages push the oldest out, and when the window spans several pages of the archive; and the messages of one user
+ * found in the archive by time.  Run with make check.
+ */
+public class HistoryTest {
+
+    public static void main(String[] args) throws IOException {
+        File dir = Files.createTempDirectory("history").toFile();
+        File base = new File(dir, "test");
+        try {
+            History history = History.open(base, 40);
+            for (int i = 0; i < 100; i++)
+                history.addMessage("bob", i % 2 == 0, "m" + i);
+            history.close();
+
+            history = History.open(base, 40);
+            Check.check(history.end() == 100, "end() after reopening is " + history.end());
+            expect(history.since(0), 60, 100);
+            expect(history.conversation("bob", 0), 60, 100);
+            for (int i = 100; i < 130; i++)
+                history.addMessage("bob", true, "m" + i);
+            expect(history.since(0), 90, 130);
+            expect(history.since(120), 120, 130);
+            Check.check(history.getMessages().length == 80, "getMessages() has " + history.getMessages().length + " lines");
+            history.close();
+
+            //nothing read back before new messages push the oldest out of the window
+            history = History.open(base, 40);
+            for (int i = 130; i < 150; i++)
+                history.addMessage("bob", true, "m" + i);
+            expect(history.conversation("bob", 0), 110, 150);
+            expect(history.since(0), 110, 150);
+            history.close();
+
+            //a window of several pages, read back a little at a time
+            File pages = new File(dir, "pages");
+            int total = 2 * HistoryArchive.PAGE + 5_000;
+            history = History.open(pages, total);
+            for (int i = 0; i < total; i++)
+                history.addMessage(i % 2 == 0 ? "bob" : "carol", true, "m" + i);
+            history.close();
+            int window = total - 3_000;
+            history = History.open(pages, window);
+            expect(history.since(total - 10), total - 10, total);
+            expect(history.since(total - HistoryArchive.PAGE - 10), total - HistoryArchive.PAGE - 10, total);
+            List<Message> carol = history.conversation("carol", 0);
+            Check.check(carol.size() == window / 2, "carol has " + carol.size() + " messages in the window");
+            for (int i = 0; i < carol.size(); i++)
+                Check.check(carol.get(i).getMessage().equals("m" + (3_001 + 2 * i)), "carol's message " + i + " is " + carol.get(i).getMessage());
+            expect(history.since(0), 3_000, total);
+            //from the archive, through carol's postings
+            List<Message> all = history.between("carol", 0, Long.MAX_VALUE);
+            Check.check(all.size() == total / 2, "between() found " + all.size() + " of carol's messages");
+            for (int i = 0; i < all.size(); i++)
+                Check.check(all.get(i).getSeq() == 2 * i + 1 && all.get(i).getUsername().equals("carol"), "carol's message " + i + " has seq " + all.get(i).getSeq());
+            history.addMessage("carol", false, "m" + total);
+            List<Message> last = history.between("carol", all.get(all.size() - 1).getTime(), Long.MAX_VALUE);
+            Check.check(last.get(last.size() - 1).getSeq() == total, "a message added after the postings were built is not found");
+            Check.check(history.between("dave", 0, Long.MAX_VALUE).isEmpty(), "dave has messages");
+            Check.check(history.between(null, 0, Long.MAX_VALUE).size() == total + 1, "between() for everyone misses messages");
+            history.close();
+        } finally {
+            for (File f : dir.listFiles())
+                f.delete();
+            dir.delete();
+        }
+        System.out.println("HistoryTest passed");
+    }
+
+    // Checks that the messages are "m" + from up to "m" + (to - 1), in order
+    private static void expect(List<Message> messages, int from, int to) {
+        Check.check(messages.size() == to - from, "expected " + (to - from) + " messages, got " + messages.size());
+        for (int i = 0; i < messages.size(); i++) {
+            Message m = messages.get(i);
+            Check.check(m != null, "message " + i + " is null");
+            Check.check(m.getSeq() == from + i && m.getMessage().equals("m" + (from + i)),
+                    "expected m" + (from + i) + " at " + i + ", got " + m.getMessage() + " (seq " + m.getSeq() + ")");
+        }
+    }
+}
@@ -0,0 +1,159 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * OfflineLogTest.java
+ * Checks the write-ahead log of messages for offline users: messages come back in order and only once taken, the ACK
+ * records of what was taken hold after reopening, a last record that was zeroed, torn or cut off is dropped without
+ * losing the records before it, and a Server that died between copying the pending records of the oldest segment
+ * forward and deleting it leaves no duplicates behind.  Run with make check.
+ */
+public class OfflineLogTest {
+
+    static final int SEGMENT_SIZE = 4096;
+    //about 150 byte records, so a segment holds a few dozen
+    static final String PADDING = "x".repeat(100);
+
+    public static void main(String[] args) throws IOException {
+        File dir = Files.createTempDirectory("wal").toFile();
+        try {
+            appendTakeReopen(new File(dir, "reopen"));
+            damagedTail(new File(dir, "zeroed"), Damage.ZEROED);
+            damagedTail(new File(dir, "torn"), Damage.TORN);
+            damagedTail(new File(dir, "cut"), Damage.CUT);
+            compactionCrash(new File(dir, "compact"));
+        } finally {
+            delete(dir);
+        }
+        System.out.println("OfflineLogTest passed");
+    }
+
+    private static void appendTakeReopen(File dir) throws IOException {
+        OfflineLog log = OfflineLog.open(dir, SEGMENT_SIZE);
+        for (int i = 0; i < 5; i++)
+            log.append("bob", msg(i));
+        log.append("carol", msg(100));
+        Check.check(log.has("bob") && log.pending("bob") == 5, "bob has " + log.pending("bob") + " messages pending");
+        Check.check(log.users().size() == 2, "users() is " + log.users());
+        expect(log, "bob", 3, 0, 3);
+
+        log = OfflineLog.open(dir, SEGMENT_SIZE);
+        Check.check(log.pending("bob") == 2, "bob has " + log.pending("bob") + " messages pending after reopening");
+        expect(log, "bob", 10, 3, 5);
+        Check.check(!log.has("bob"), "bob still has messages after taking them all");
+        expect(log, "carol", 10, 100, 101);
+
+        log = OfflineLog.open(dir, SEGMENT_SIZE);
+        Check.check(log.users().isEmpty(), "users() after taking everything and reopening is " + log.users());
+    }
+
+    enum Damage { ZEROED, TORN, CUT }
+
+    // Damages the last of five records the way a Server dying in the middle of writing it could
+    private static void damagedTail(File dir, Damage damage) throws IOException {
+        OfflineLog log = OfflineLog.open(dir, SEGMENT_SIZE);
+        for (int i = 0; i < 5; i++)
+            log.append("bob", msg(i));
+        File[] files = dir.listFiles();
+        Check.check(files.length == 1, files.length + " segments for five records");
+        try (RandomAccessFile f = new RandomAccessFile(files[0], "rw")) {
+            long last = lastRecord(f);
+            switch (damage) {
+                case ZEROED:
+                    f.seek(last);
+                    f.write(new byte[(int) (f.length() - last)]);
+                    break;
+                case TORN:
+                    //a byte of the payload, so the CRC no longer matches
+                    f.seek(last);
+                    int length = f.readInt();
+                    f.seek(last + 8 + length - 1);
+                    f.write('?');
+                    break;
+                case CUT:
+                    f.setLength(last + 20);
+                    break;
+            }
+        }
+
+        log = OfflineLog.open(dir, SEGMENT_SIZE);
+        Check.check(log.pending("bob") == 4, damage + " tail left " + log.pending("bob") + " messages pending");
+        log.append("bob", msg(5));
+        log = OfflineLog.open(dir, SEGMENT_SIZE);
+        List<Frame> msgs = new ArrayList<>();
+        log.take("bob", 10, msgs);
+        Check.check(msgs.size() == 5, damage + " tail: " + msgs.size() + " messages after appending to it");
+        for (int i = 0; i < 5; i++)
+            Check.check(msgs.get(i).text().equals(text(i == 4 ? 5 : i)),
+                    damage + " tail: message " + i + " is " + msgs.get(i).text());
+    }
+
+    // Offset of the last record in a segment, found by following the length of each record from the first
+    private static long lastRecord(RandomAccessFile f) throws IOException {
+        long position = 0, last = -1;
+        while (position + 8 <= f.length()) {
+            f.seek(position);
+            int length = f.readInt();
+            if (length == 0) break;
+            last = position;
+            position += 8 + length;
+        }
+        Check.check(last >= 0, "no records in the segment");
+        return last;
+    }
+
+    private static void compactionCrash(File dir) throws IOException {
+        OfflineLog log = OfflineLog.open(dir, SEGMENT_SIZE);
+        //dan never comes back, and keeps one record alive in the oldest segment once bob's are taken
+        log.append("dan", msg(1000));
+        for (int i = 0; i < 40; i++)
+            log.append("bob", msg(i));
+        File[] files = dir.listFiles();
+        Check.check(files.length == 2, files.length + " segments before compacting");
+        File oldest = new File(dir, String.format("%020d.wal", 0));
+        byte[] copy = Files.readAllBytes(oldest.toPath());
+
+        expect(log, "bob", 40, 0, 40);
+        Check.check(!oldest.exists(), "the oldest segment was not compacted");
+        //as if the Server died after copying dan's record forward, but before deleting the segment
+        Files.write(oldest.toPath(), copy);
+
+        log = OfflineLog.open(dir, SEGMENT_SIZE);
+        Check.check(log.pending("dan") == 1, "dan has " + log.pending("dan") + " messages pending after the crash");
+        Check.check(!log.has("bob"), "bob has " + log.pending("bob") + " messages pending after the crash");
+        Check.check(!oldest.exists(), "the oldest segment was not deleted on reopening");
+
+        log = OfflineLog.open(dir, SEGMENT_SIZE);
+        expect(log, "dan", 10, 1000, 1001);
+    }
+
+    // Takes up to max messages for a user, which must be msg(from) to msg(to - 1)
+    private static void expect(OfflineLog log, String username, int max, int from, int to) throws IOException {
+        List<Frame> msgs = new ArrayList<>();
+        int n = log.take(username, max, msgs);
+        Check.check(n == to - from && msgs.size() == n, "took " + n + " messages for " + username + ", expected " + (to - from));
+        for (int i = 0; i < n; i++)
+            Check.check(msgs.get(i).text().equals(text(from + i)),
+                    "message " + i + " for " + username + " is " + msgs.get(i).text() + ", expected " + text(from + i));
+    }
+
+    private static Frame msg(int i) {
+        return new Frame(Frame.MSG, "alice", i, text(i));
+    }
+
+    private static String text(int i) {
+        return "m" + i + " " + PADDING;
+    }
+
+    private static void delete(File f) {
+        File[] children = f.listFiles();
+        if (children != null)
+            for (File child : children)
+                delete(child);
+        f.delete();
+    }
+}
@@ -0,0 +1,131 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.ConnectException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * RoutingAllocationTest.java
+ * Checks that an nio mode Server with one event loop routes binary messages between two binary clients without
+ * allocating on the loop thread once its buffer pool is warm (see PooledFrame), by reading the thread's allocated bytes
+ * before and after MESSAGES messages.  Runs once with clients at protocol version 3, where each message is confirmed
+ * with the receiver's pre-encoded "Message delivered" warning, and once at the current version, where the messages of a
+ * read are confirmed with one ACK encoded into a pooled buffer.  Run with make check.
+ */
+public class RoutingAllocationTest {
+
+    static final int WARMUP = 20_000;
+    static final int MESSAGES = 50_000;
+    //allowed per message for the odd wakeup or resize, a heap copy of every message would be several times this
+    static final double MAX_BYTES = 8;
+    //the last protocol version without ACKs, and the one clients use now
+    static final byte[] VERSIONS = {3, Frame.VERSION};
+
+    public static void main(String[] args) {
+        try {
+            run();
+        } catch (Throwable e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+        //the event loop threads never end
+        System.exit(0);
+    }
+
+    private static void run() throws Exception {
+        int port;
+        try (ServerSocket free = new ServerSocket(0)) {
+            port = free.getLocalPort();
+        }
+        ServerConfig config = ServerConfig.parse(new String[]{String.valueOf(port), "--mode=nio", "--loops=1",
+                "--pool-size=65536"});
+        Server server = new Server(config);
+        Thread listener = new Thread(() -> {
+            try {
+                NioEventLoop.listen(server, config);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, "listen");
+        listener.setDaemon(true);
+        listener.start();
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        StringBuilder results = new StringBuilder();
+        for (byte version : VERSIONS) {
+            DataOutputStream sender = login(port, "sender" + version, version, new AtomicLong());
+            AtomicLong received = new AtomicLong();
+            login(port, "receiver" + version, version, received);
+            Frame msg = new Frame(Frame.MSG, "receiver" + version, 0, "x".repeat(64));
+            send(sender, msg, WARMUP, received);
+
+            long loop = loopThread();
+            long before = threads.getThreadAllocatedBytes(loop);
+            send(sender, msg, MESSAGES, received);
+            double perMessage = (threads.getThreadAllocatedBytes(loop) - before) / (double) MESSAGES;
+            Check.check(perMessage <= MAX_BYTES,
+                    String.format("the event loop allocated %.2f bytes per message at version %d", perMessage, version));
+            results.append(String.format(", %.2f bytes per message at version %d", perMessage, version));
+        }
+        System.out.println("RoutingAllocationTest passed" + results);
+    }
+
+    // Logs a binary client in, and counts the MSG frames it gets on a thread of its own that reads everything else too
+    private static DataOutputStream login(int port, String name, byte version, AtomicLong received) throws Exception {
+        Socket s = connect(port);
+        s.setTcpNoDelay(true);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+        DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+        out.writeShort(Frame.MAGIC);
+        out.writeByte(version);
+        new Frame(Frame.LOGIN, name, 0, Frame.EMPTY).write(out);
+        out.flush();
+        Check.check(Frame.read(in).type == Frame.LOGIN, name + " was not logged in");
+        Thread reader = new Thread(() -> {
+            try {
+                while (true)
+                    if (Frame.read(in).type == Frame.MSG) received.incrementAndGet();
+            } catch (IOException e) {
+                //the test is over
+            }
+        }, name);
+        reader.setDaemon(true);
+        reader.start();
+        return out;
+    }
+
+    // Sends n messages a thousand at a time, each thousand once the last has arrived, so no mailbox grows
+    private static void send(DataOutputStream out, Frame msg, int n, AtomicLong received) throws Exception {
+        long target = received.get();
+        for (int i = 0; i < n; i += 1000) {
+            for (int j = 0; j < 1000; j++)
+                msg.write(out);
+            out.flush();
+            target += 1000;
+            long deadline = System.currentTimeMillis() + 10_000;
+            while (received.get() < target) {
+                Check.check(System.currentTimeMillis() < deadline, "only " + received.get() + " of " + target + " arrived");
+                Thread.sleep(1);
+            }
+        }
+    }
+
+    // Connects once the listening thread has bound the port
+    private static Socket connect(int port) throws Exception {
+        for (int tries = 0; ; tries++) {
+            try {
+                return new Socket("localhost", port);
+            } catch (ConnectException e) {
+                if (tries == 100) throw e;
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    private static long loopThread() {
+        for (Thread t : Thread.getAllStackTraces().keySet())
+            if (t.getName().equals("nio-loop-0")) return t.getId();
+        throw new AssertionError("no event loop thread");
+    }
+}